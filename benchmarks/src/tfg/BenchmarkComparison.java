@@ -0,0 +1,130 @@
+package tfg;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Command-line tool that compares two JMH result files in JSON format, e.g. a
+ * baseline kept from a previous build and the results of the current one.
+ *
+ * Benchmarks are matched by name, mode and parameters. A benchmark regresses
+ * when its score is worse than the baseline by more than the threshold:
+ * higher for the time modes, lower for throughput. The tool prints the
+ * change of every benchmark found in both files and exits with status 1 if
+ * any regressed, so it can gate a build.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp ... tfg.BenchmarkComparison baseline.json current.json
+ *        [--threshold percent]
+ * </pre>
+ *
+ * @author Carlota de la Vega
+ */
+public class BenchmarkComparison {
+
+    /**
+     * Default percentage a score may worsen before it counts as a regression
+     */
+    private static final double DEFAULT_THRESHOLD = 10.0;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        File baseline = null;
+        File current = null;
+        double threshold = DEFAULT_THRESHOLD;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threshold" -> threshold = Double.parseDouble(args[++i]);
+                    default -> {
+                        if (baseline == null) {
+                            baseline = new File(args[i]);
+                        } else {
+                            current = new File(args[i]);
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            current = null;
+        }
+        if (current == null) {
+            System.err.println("Usage: BenchmarkComparison baseline.json current.json [--threshold percent]");
+            System.exit(2);
+        }
+
+        int regressions;
+        try {
+            regressions = compare(read(baseline), read(current), threshold);
+        } catch (IOException | JSONException ex) {
+            System.err.println("Comparison failed: " + ex.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Prints the change of each benchmark present in both results.
+     *
+     * @return the number of regressions
+     */
+    private static int compare(Map<String, JSONObject> baseline, Map<String, JSONObject> current, double threshold) {
+        int regressions = 0;
+        System.out.printf("%-80s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, JSONObject> e : current.entrySet()) {
+            JSONObject before = baseline.get(e.getKey());
+            if (before == null) {
+                System.out.printf("%-80s %14s %14.3f %9s%n", e.getKey(), "-", score(e.getValue()), "new");
+                continue;
+            }
+            double old = score(before);
+            double now = score(e.getValue());
+            double change = old == 0 ? 0 : 100.0 * (now - old) / old;
+            // for throughput higher is better, for the time modes lower is
+            boolean worse = "thrpt".equals(e.getValue().getString("mode")) ? change < -threshold : change > threshold;
+            if (worse) {
+                regressions++;
+            }
+            System.out.printf("%-80s %14.3f %14.3f %+8.1f%%%s%n", e.getKey(), old, now, change, worse ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions + " regressions (threshold " + threshold + "%)");
+        return regressions;
+    }
+
+    private static double score(JSONObject result) {
+        return result.getJSONObject("primaryMetric").getDouble("score");
+    }
+
+    /**
+     * Reads a JMH result file, keyed by benchmark, mode and parameters.
+     */
+    private static Map<String, JSONObject> read(File file) throws IOException {
+        JSONArray results = new JSONArray(Files.readString(file.toPath(), StandardCharsets.UTF_8));
+        Map<String, JSONObject> byKey = new LinkedHashMap<>();
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.getJSONObject(i);
+            StringBuilder key = new StringBuilder(result.getString("benchmark"))
+                    .append(" [").append(result.getString("mode")).append(']');
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                for (Map.Entry<String, Object> p : new TreeMap<>(params.toMap()).entrySet()) {
+                    key.append(' ').append(p.getKey()).append('=').append(p.getValue());
+                }
+            }
+            byKey.put(key.toString(), result);
+        }
+        return byKey;
+    }
+}
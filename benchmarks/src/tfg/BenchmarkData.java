@@ -0,0 +1,240 @@
+package tfg;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import jmr.db.ListDB;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.color.SingleColorDescriptor;
+
+/**
+ * Synthetic images and databases shared by the benchmarks.
+ *
+ * Images are drawn by {@link StandInGenerationServer#render}, so the same
+ * seed always gives the same image. Large databases are built from a pool of
+ * described images, since computing the descriptors of 100 000 images would
+ * take longer than the benchmark itself. Each further record is a copy of a
+ * pooled descriptor list with a seeded perturbation of its values, kept
+ * within the ranges of the descriptors: the engines prune, abandon or
+ * approximate depending on the values, so the records have to be distinct.
+ * A fraction of the copies is left unchanged, as the exact duplicates found
+ * in real collections.
+ *
+ * @author Carlota de la Vega
+ */
+final class BenchmarkData {
+
+    /**
+     * Descriptors of the databases, those of the application
+     */
+    static final Class[] DESCRIPTORS = {MPEG7ColorStructure.class, MPEG7ScalableColor.class, SingleColorDescriptor.class};
+
+    /**
+     * Number of images described to build the synthetic databases
+     */
+    static final int DISTINCT_RECORDS = 1000;
+
+    /**
+     * Fraction of the copies of the pooled records left unchanged
+     */
+    static final double DUPLICATE_FRACTION = 0.1;
+
+    /**
+     * Largest change of a value of a perturbed copy
+     */
+    private static final int PERTURBATION = 1;
+
+    /**
+     * Histograms of the MPEG-7 descriptors, held in protected fields
+     */
+    private static final Field CSD_HISTO = field(MPEG7ColorStructure.class, "histo");
+    private static final Field SCD_HISTO = field(MPEG7ScalableColor.class, "histoHaar");
+
+    /**
+     * Side of the images described to fill the databases
+     */
+    private static final int RECORD_IMAGE_SIZE = 64;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns a synthetic image.
+     *
+     * @param width the width
+     * @param height the height
+     * @param seed the seed of the image
+     * @return the image
+     */
+    static BufferedImage image(int width, int height, int seed) {
+        return StandInGenerationServer.render("benchmark " + seed, width, height);
+    }
+
+    /**
+     * Builds a database of synthetic records, with the locators
+     * {@code file:/benchmark/record<i>.png}. The same number of records
+     * always gives the same database.
+     *
+     * @param records the number of records
+     * @return the database
+     */
+    static ListDB<BufferedImage> database(int records) {
+        ListDB<BufferedImage> database = new ListDB<>(DESCRIPTORS);
+        List<List<MediaDescriptor<BufferedImage>>> pool = new ArrayList<>();
+        for (int i = 0; i < Math.min(records, DISTINCT_RECORDS); i++) {
+            pool.add(DescriptorExtractor.describe(image(RECORD_IMAGE_SIZE, RECORD_IMAGE_SIZE, i), database.getDescriptorClasses()));
+        }
+        for (int i = 0; i < records; i++) {
+            List<MediaDescriptor<BufferedImage>> descriptors = pool.get(i % pool.size());
+            Random random = new Random(i);
+            if (i >= pool.size() && random.nextDouble() >= DUPLICATE_FRACTION) {
+                descriptors = perturb(descriptors, random);
+            }
+            database.add(DescriptorExtractor.toRecord(database, descriptors, locator(i)));
+        }
+        return database;
+    }
+
+    /**
+     * Returns a copy of a descriptor list with every value changed by up to
+     * {@value #PERTURBATION}. The color structure bins and the mean color
+     * stay between 0 and 255.
+     */
+    private static List<MediaDescriptor<BufferedImage>> perturb(List<MediaDescriptor<BufferedImage>> descriptors, Random random) {
+        List<MediaDescriptor<BufferedImage>> copy = new ArrayList<>(descriptors.size());
+        for (MediaDescriptor<BufferedImage> descriptor : descriptors) {
+            if (descriptor instanceof SingleColorDescriptor single) {
+                Color c = single.getColor();
+                copy.add(new SingleColorDescriptor(new Color(shift(c.getRed(), random, 0, 255),
+                        shift(c.getGreen(), random, 0, 255), shift(c.getBlue(), random, 0, 255))));
+                continue;
+            }
+            MediaDescriptor<BufferedImage> d = deepCopy(descriptor);
+            if (d instanceof MPEG7ColorStructure) {
+                int[] histo = (int[]) get(CSD_HISTO, d);
+                for (int i = 0; i < histo.length; i++) {
+                    histo[i] = shift(histo[i], random, 0, 255);
+                }
+            } else if (d instanceof MPEG7ScalableColor) {
+                int[] histo = (int[]) get(SCD_HISTO, d);
+                for (int i = 0; i < histo.length; i++) {
+                    histo[i] = shift(histo[i], random, Integer.MIN_VALUE, Integer.MAX_VALUE);
+                }
+            }
+            copy.add(d);
+        }
+        return copy;
+    }
+
+    private static int shift(int value, Random random, int min, int max) {
+        long shifted = (long) value + random.nextInt(2 * PERTURBATION + 1) - PERTURBATION;
+        return (int) Math.max(min, Math.min(max, shifted));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MediaDescriptor<BufferedImage> deepCopy(MediaDescriptor<BufferedImage> descriptor) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(descriptor);
+            }
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+                return (MediaDescriptor<BufferedImage>) in.readObject();
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Field field(Class<?> c, String name) {
+        try {
+            Field f = c.getDeclaredField(name);
+            f.setAccessible(true);
+            return f;
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalStateException("Incompatible JMR version: " + c.getName() + "." + name, ex);
+        }
+    }
+
+    private static Object get(Field field, Object target) {
+        try {
+            return field.get(target);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Returns the query record of a synthetic image, with no locator.
+     *
+     * @param database the database queried
+     * @param image the query image
+     * @return the query record
+     */
+    static ListDB<BufferedImage>.Record query(ListDB<BufferedImage> database, BufferedImage image) {
+        return DescriptorExtractor.toRecord(database, DescriptorExtractor.describe(image, database.getDescriptorClasses()), null);
+    }
+
+    /**
+     * Creates a query engine over a database.
+     *
+     * @param name the name of the engine: {@code topk}, {@code parallel},
+     * {@code flat}, {@code cascade}, {@code hnsw}, {@code store} or
+     * {@code pq}; the weights of {@code cascade} are all 1, the graph of
+     * {@code hnsw} is built with every record, and the store of
+     * {@code store} and {@code pq} is written to a temporary file deleted on
+     * exit; the store engine has to be closed by the caller
+     * @param database the database
+     * @return the engine
+     * @throws IOException if the store cannot be written
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    static QueryEngine engine(String name, ListDB<BufferedImage> database) throws IOException {
+        return switch (name) {
+            case "topk" -> new TopKQuery(database);
+            case "parallel" -> new ParallelQueryEngine(database);
+            case "flat" -> new FlatIndex(database);
+            case "cascade" -> new CascadeQueryEngine(database, new FlatIndex(database));
+            case "hnsw" -> {
+                HnswIndex index = new HnswIndex(database, new FlatIndex(database));
+                index.insert(Integer.MAX_VALUE);
+                yield index;
+            }
+            case "store" -> store(database);
+            case "pq" -> PqIndex.train(store(database));
+            default -> throw new IllegalArgumentException("Unknown engine: " + name);
+        };
+    }
+
+    /**
+     * Writes a database to a temporary store file deleted on exit, and opens
+     * it.
+     */
+    private static DescriptorStore store(ListDB<BufferedImage> database) throws IOException {
+        File file = File.createTempFile("benchmark", DescriptorStore.EXTENSION);
+        file.deleteOnExit();
+        DescriptorStoreWriter.write(database, file);
+        return DescriptorStore.open(file);
+    }
+
+    private static URL locator(int i) {
+        try {
+            return new File("/benchmark/record" + i + ".png").toURI().toURL();
+        } catch (MalformedURLException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
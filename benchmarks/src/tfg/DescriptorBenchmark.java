@@ -0,0 +1,61 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.color.SingleColorDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to compute each descriptor of the application on square images of
+ * several sizes.
+ *
+ * @author Carlota de la Vega
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DescriptorBenchmark {
+
+    /**
+     * Side of the image, in pixels
+     */
+    @Param({"128", "512", "1024"})
+    public int size;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setUp() {
+        image = BenchmarkData.image(size, size, size);
+    }
+
+    @Benchmark
+    public SingleColorDescriptor singleColor() {
+        return new SingleColorDescriptor(image);
+    }
+
+    @Benchmark
+    public MPEG7ColorStructure colorStructure() {
+        return new MPEG7ColorStructure(image);
+    }
+
+    @Benchmark
+    public MPEG7ScalableColor scalableColor() {
+        return new MPEG7ScalableColor(image);
+    }
+}
@@ -0,0 +1,186 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import jmr.db.ListDB;
+
+/**
+ * Command-line tool that checks the results of the query engines against
+ * {@link ListDB#query(ListDB.Record, int)}.
+ *
+ * For each database and engine, a sample of synthetic query images is run
+ * through both, and the tool reports how many queries returned exactly the
+ * same records, in the same order and at the same distances, and the mean
+ * recall@k (the fraction of the k records of ListDB found by the engine; a
+ * record at the same distance as the k-th one counts as found, since any of
+ * them is a valid k-th result).
+ * Exact engines must match every query; approximate ones are accepted while
+ * their recall reaches the minimum given for them. The tool exits with status
+ * 1 if any engine fails.
+ *
+ * The synthetic database repeats a pool of descriptor lists, so it also
+ * checks the order of the records at the same distance.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp ... tfg.EngineVerifier [--records n] [--queries n] [--k results]
+ *        [--engines name,...] [--min-recall value] [--ef-search n]
+ *        [database.jmr.db ...]
+ * </pre>
+ *
+ * @author Carlota de la Vega
+ */
+public class EngineVerifier {
+
+    private static final int DEFAULT_RECORDS = 5000;
+    private static final int DEFAULT_QUERIES = 50;
+    private static final int DEFAULT_RESULTS = 10;
+    private static final String DEFAULT_ENGINES = "topk,parallel,flat,cascade,store";
+
+    /**
+     * Side of the query images
+     */
+    private static final int QUERY_IMAGE_SIZE = 128;
+
+    /**
+     * @param args the command line arguments
+     */
+    @SuppressWarnings("unchecked")
+    public static void main(String args[]) {
+        int records = DEFAULT_RECORDS;
+        int queries = DEFAULT_QUERIES;
+        int k = DEFAULT_RESULTS;
+        String[] engines = DEFAULT_ENGINES.split(",");
+        double minRecall = 1.0;
+        int efSearch = HnswIndex.DEFAULT_EF_SEARCH;
+        List<File> files = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--records" -> records = Integer.parseInt(args[++i]);
+                    case "--queries" -> queries = Integer.parseInt(args[++i]);
+                    case "--k" -> k = Integer.parseInt(args[++i]);
+                    case "--engines" -> engines = args[++i].split(",");
+                    case "--min-recall" -> minRecall = Double.parseDouble(args[++i]);
+                    case "--ef-search" -> efSearch = Integer.parseInt(args[++i]);
+                    default -> files.add(new File(args[i]));
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Usage: EngineVerifier [--records n] [--queries n] [--k results]"
+                    + " [--engines name,...] [--min-recall value] [--ef-search n] [database.jmr.db ...]");
+            System.exit(2);
+        }
+
+        boolean passed = true;
+        try {
+            passed &= verify("synthetic (" + records + " records)", BenchmarkData.database(records), engines, queries, k, minRecall,
+                    efSearch);
+            for (File file : files) {
+                passed &= verify(file.getName(), ListDB.open(file), engines, queries, k, minRecall, efSearch);
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            System.err.println("Verification failed: " + ex.getMessage());
+            System.exit(2);
+        }
+        System.out.println(passed ? "All engines passed." : "Some engines failed.");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Runs the sample queries on a database through every engine.
+     *
+     * @return true if every engine passed
+     */
+    private static boolean verify(String name, ListDB<BufferedImage> database, String[] engines, int queries, int k,
+            double minRecall, int efSearch) throws IOException {
+        System.out.println(name + ":");
+        if (database.size() == 0) {
+            System.out.println("  skipped: the database is empty");
+            return true;
+        }
+        List<ListDB<BufferedImage>.Record> sample = new ArrayList<>(queries);
+        for (int q = 0; q < queries; q++) {
+            sample.add(BenchmarkData.query(database, BenchmarkData.image(QUERY_IMAGE_SIZE, QUERY_IMAGE_SIZE, -1 - q)));
+        }
+        Map<ListDB<BufferedImage>.Record, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < database.size(); i++) {
+            indices.put(database.get(i), i);
+        }
+        List<int[]> expected = new ArrayList<>(queries);
+        List<double[]> distances = new ArrayList<>(queries);
+        for (ListDB<BufferedImage>.Record query : sample) {
+            // ListDB.query fails when asked for more records than it holds
+            List<ListDB<BufferedImage>.Record> results = database.query(query, Math.min(k, database.size()));
+            int[] ids = new int[results.size()];
+            double[] ds = new double[results.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = indices.get(results.get(i));
+                ds[i] = query.compare(results.get(i));
+            }
+            expected.add(ids);
+            distances.add(ds);
+        }
+
+        boolean passed = true;
+        for (String engineName : engines) {
+            QueryEngine engine = BenchmarkData.engine(engineName, database);
+            if (engine instanceof HnswIndex index) {
+                index.setEfSearch(efSearch);
+            }
+            try {
+                int exact = 0;
+                double recall = 0;
+                for (int q = 0; q < queries; q++) {
+                    List<QueryResult> results = engine.query(sample.get(q), k);
+                    int[] ids = new int[results.size()];
+                    double[] ds = new double[results.size()];
+                    for (int i = 0; i < ids.length; i++) {
+                        ids[i] = results.get(i).getIndex();
+                        ds[i] = results.get(i).getDistance();
+                    }
+                    if (Arrays.equals(ids, expected.get(q)) && Arrays.equals(ds, distances.get(q))) {
+                        exact++;
+                    }
+                    recall += recall(distances.get(q), ds);
+                }
+                recall /= Math.max(1, queries);
+                boolean ok = exact == queries || recall >= minRecall;
+                passed &= ok;
+                System.out.printf("  %-10s %d/%d exact, recall@%d %.4f%s%n", engineName, exact, queries, k, recall,
+                        ok ? "" : "  FAILED");
+            } finally {
+                if (engine instanceof Closeable closeable) {
+                    closeable.close();
+                }
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Fraction of the expected records found, given the distances of both
+     * lists in increasing order: a record found no farther than the last
+     * expected one is one of the nearest.
+     */
+    private static double recall(double[] expected, double[] found) {
+        if (expected.length == 0) {
+            return 1.0;
+        }
+        double last = expected[expected.length - 1];
+        int hits = 0;
+        for (int i = 0; i < Math.min(found.length, expected.length); i++) {
+            if (found[i] <= last) {
+                hits++;
+            }
+        }
+        return hits / (double) expected.length;
+    }
+}
@@ -0,0 +1,226 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.imageio.ImageIO;
+import jmr.db.ListDB;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.color.SingleColorDescriptor;
+
+/**
+ * Command-line benchmark of the prompt search path: from a prompt to the
+ * thumbnails of its results.
+ *
+ * Each prompt goes through the same components as a search from the main
+ * window: the image is generated through a {@link GenerationCache} by a
+ * {@link LocalImageGenerator}, its descriptors are computed through a
+ * {@link QueryDescriptorCache}, the database is scanned by the engine of the
+ * main window ({@link QueryEngine#forDatabase}, or the {@link HnswIndex} over
+ * its flat index with {@code --approximate}) and the results are loaded from a
+ * {@link ThumbnailCache}. The time of each stage is reported separately. The
+ * prompts are then searched a second time, to measure the path where every
+ * cache hits.
+ *
+ * By default the images are generated by a {@link StandInGenerationServer}
+ * started in process, so the benchmark runs without a GPU; the database is
+ * filled with synthetic images from the same renderer. All the files are
+ * written to a temporary directory, removed at the end.
+ *
+ * Usage, from the project directory:
+ * <pre>
+ *   ant benchmark-generation -Dgeneration.args="[--prompts n] [--records n]
+ *        [--latency milliseconds] [--size widthxheight] [--k results]
+ *        [--server url] [--approximate]"
+ * </pre>
+ *
+ * @author Carlota de la Vega
+ */
+public class GenerationBenchmark {
+
+    private static final int DEFAULT_PROMPTS = 20;
+    private static final int DEFAULT_RECORDS = 200;
+    private static final int DEFAULT_LATENCY = 50;
+    private static final int DEFAULT_SIZE = 256;
+    private static final int DEFAULT_RESULTS = 10;
+
+    /**
+     * Names of the measured stages
+     */
+    private static final String[] STAGES = {"generation", "descriptors", "query", "thumbnails", "total"};
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        int prompts = DEFAULT_PROMPTS;
+        int records = DEFAULT_RECORDS;
+        long latency = DEFAULT_LATENCY;
+        int width = DEFAULT_SIZE;
+        int height = DEFAULT_SIZE;
+        int k = DEFAULT_RESULTS;
+        URI server = null;
+        boolean approximate = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--prompts" -> prompts = Integer.parseInt(args[++i]);
+                    case "--records" -> records = Integer.parseInt(args[++i]);
+                    case "--latency" -> latency = Long.parseLong(args[++i]);
+                    case "--size" -> {
+                        String[] size = args[++i].split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                    }
+                    case "--k" -> k = Integer.parseInt(args[++i]);
+                    case "--server" -> server = URI.create(args[++i]);
+                    case "--approximate" -> approximate = true;
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Usage: GenerationBenchmark [--prompts n] [--records n] [--latency milliseconds]"
+                    + " [--size widthxheight] [--k results] [--server url] [--approximate]");
+            System.exit(2);
+        }
+
+        StandInGenerationServer standIn = null;
+        Path dir = null;
+        try {
+            dir = Files.createTempDirectory("generation-benchmark");
+            if (server == null) {
+                standIn = new StandInGenerationServer(0, latency, width, height);
+                standIn.start();
+                server = standIn.getURI();
+            }
+            System.out.println("Generator: " + server);
+
+            long start = System.nanoTime();
+            ListDB<BufferedImage> database = createDatabase(dir.resolve("database").toFile(), records, width, height);
+            System.out.printf("Database: %d records in %.1f ms%n", database.size(), (System.nanoTime() - start) / 1e6);
+
+            ImageGenerator generator = new LocalImageGenerator(server);
+            GenerationCache generations = new GenerationCache(dir.resolve("generated").toFile(), GenerationCache.DEFAULT_MEMORY_BYTES);
+            QueryDescriptorCache descriptors = new QueryDescriptorCache(QueryDescriptorCache.DEFAULT_CAPACITY);
+            ThumbnailCache thumbnails = new ThumbnailCache(dir.resolve("thumbnails").toFile());
+            QueryEngine engine = QueryEngine.forDatabase(database);
+            if (approximate && engine instanceof CascadeQueryEngine cascade) {
+                HnswIndex index = new HnswIndex(database, cascade.getVectors());
+                index.insert(Integer.MAX_VALUE);
+                engine = index;
+            }
+            System.out.println("Query engine: " + engine.getClass().getSimpleName());
+
+            List<String> texts = new ArrayList<>(prompts);
+            for (int i = 0; i < prompts; i++) {
+                texts.add("benchmark prompt " + i);
+            }
+            run("Cold", texts, generator, generations, descriptors, engine, thumbnails, database, k);
+            run("Cached", texts, generator, generations, descriptors, engine, thumbnails, database, k);
+
+            System.out.println("Generation cache: " + generations.getStatistics());
+            System.out.println("Descriptor cache: " + descriptors.getStatistics());
+            System.out.println("Thumbnail cache: " + thumbnails.getStatistics());
+            System.out.println("HTTP client: " + GenerationClient.forBackend(generator.getName(), HttpClient.Version.HTTP_1_1).getStatistics());
+            ImageWriterService.getDefault().flush();
+            System.out.println("Image writer: " + ImageWriterService.getDefault().getStatistics());
+        } catch (IOException | InterruptedException ex) {
+            System.err.println("Benchmark failed: " + ex.getMessage());
+            System.exit(1);
+        } finally {
+            if (standIn != null) {
+                standIn.close();
+            }
+            if (dir != null) {
+                delete(dir.toFile());
+            }
+        }
+    }
+
+    /**
+     * Fills a database with synthetic images saved as files, so the results
+     * have locators to load.
+     */
+    private static ListDB<BufferedImage> createDatabase(File dir, int records, int width, int height) throws IOException {
+        ListDB<BufferedImage> database = new ListDB<>(MPEG7ColorStructure.class, MPEG7ScalableColor.class, SingleColorDescriptor.class);
+        Files.createDirectories(dir.toPath());
+        for (int i = 0; i < records; i++) {
+            BufferedImage image = StandInGenerationServer.render("record " + i, width, height);
+            File file = new File(dir, "record" + i + ".png");
+            ImageIO.write(image, "png", file);
+            database.add(DescriptorExtractor.toRecord(database,
+                    DescriptorExtractor.describe(image, database.getDescriptorClasses()), file.toURI().toURL()));
+        }
+        return database;
+    }
+
+    /**
+     * Searches every prompt and prints the percentiles of each stage.
+     */
+    private static void run(String name, List<String> prompts, ImageGenerator generator, GenerationCache generations,
+            QueryDescriptorCache descriptors, QueryEngine engine, ThumbnailCache thumbnails,
+            ListDB<BufferedImage> database, int k) throws IOException, InterruptedException {
+        double[][] times = new double[STAGES.length][prompts.size()];
+        for (int i = 0; i < prompts.size(); i++) {
+            long t0 = System.nanoTime();
+            BufferedImage image = generations.generate(generator, prompts.get(i)).getImage();
+            long t1 = System.nanoTime();
+            ListDB<BufferedImage>.Record query = descriptors.record(database, image);
+            long t2 = System.nanoTime();
+            List<QueryResult> results = engine.query(query, k);
+            long t3 = System.nanoTime();
+            for (QueryResult r : results) {
+                URL locator = r.getLocator();
+                if (locator != null) {
+                    thumbnails.get(locator);
+                }
+            }
+            long t4 = System.nanoTime();
+            times[0][i] = (t1 - t0) / 1e6;
+            times[1][i] = (t2 - t1) / 1e6;
+            times[2][i] = (t3 - t2) / 1e6;
+            times[3][i] = (t4 - t3) / 1e6;
+            times[4][i] = (t4 - t0) / 1e6;
+        }
+
+        System.out.println();
+        System.out.println(name + " (" + prompts.size() + " prompts, milliseconds):");
+        System.out.printf("  %-12s %9s %9s %9s %9s%n", "stage", "mean", "p50", "p95", "max");
+        for (int s = 0; s < STAGES.length; s++) {
+            double[] t = times[s];
+            Arrays.sort(t);
+            System.out.printf("  %-12s %9.2f %9.2f %9.2f %9.2f%n", STAGES[s], Arrays.stream(t).average().orElse(0),
+                    percentile(t, 50), percentile(t, 95), t.length == 0 ? 0 : t[t.length - 1]);
+        }
+    }
+
+    /**
+     * Returns a percentile of sorted values, by the nearest-rank method.
+     */
+    private static double percentile(double[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
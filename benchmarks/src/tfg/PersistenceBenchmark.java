@@ -0,0 +1,90 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import jmr.db.ListDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to open and save the databases shipped with the project, with
+ * {@link ListDB#open} and {@link ListDB#save}, and to open the same database
+ * converted to a {@link DescriptorStore}.
+ *
+ * The database files are looked up in the working directory, the project
+ * directory when run through {@code ant benchmark}. The files written go to
+ * the temporary directory.
+ *
+ * @author Carlota de la Vega
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PersistenceBenchmark {
+
+    @Param({"grande.jmr.db", "dogsFinal.jmr.db"})
+    public String file;
+
+    private File source;
+    private ListDB<BufferedImage> database;
+    private File saved;
+    private File storeFile;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException, ClassNotFoundException {
+        source = new File(file);
+        if (!source.isFile()) {
+            throw new IllegalStateException("Database not found: " + source.getAbsolutePath());
+        }
+        database = ListDB.open(source);
+        saved = File.createTempFile("benchmark", ".jmr.db");
+        storeFile = File.createTempFile("benchmark", DescriptorStore.EXTENSION);
+        DescriptorStoreWriter.write(database, storeFile);
+    }
+
+    @TearDown
+    public void tearDown() {
+        saved.delete();
+        storeFile.delete();
+    }
+
+    @Benchmark
+    public ListDB open() throws IOException, ClassNotFoundException {
+        return ListDB.open(source);
+    }
+
+    @Benchmark
+    public long save() throws IOException {
+        database.save(saved);
+        return saved.length();
+    }
+
+    @Benchmark
+    public ListDB roundTrip() throws IOException, ClassNotFoundException {
+        database.save(saved);
+        return ListDB.open(saved);
+    }
+
+    @Benchmark
+    public int openStore() throws IOException {
+        try (DescriptorStore opened = DescriptorStore.open(storeFile)) {
+            return opened.size();
+        }
+    }
+}
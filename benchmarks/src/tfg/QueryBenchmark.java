@@ -0,0 +1,116 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import jmr.db.ListDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time of a k-nearest query over synthetic databases of several sizes, for
+ * each query engine.
+ *
+ * The engines are:
+ * <ul>
+ *   <li>{@code listdb-image}: {@link ListDB#query(Object, int)}, which also
+ *   computes the descriptors of the query image; the baseline of the
+ *   application before any engine was added.</li>
+ *   <li>{@code listdb}: {@link ListDB#query(ListDB.Record, int)}, with the
+ *   query descriptors already computed.</li>
+ *   <li>{@code topk}: {@link TopKQuery}.</li>
+ *   <li>{@code parallel}: {@link ParallelQueryEngine}.</li>
+ *   <li>{@code flat}: {@link FlatIndex}.</li>
+ *   <li>{@code cascade}: {@link CascadeQueryEngine} over a flat index, with
+ *   every weight equal to 1.</li>
+ *   <li>{@code hnsw}: {@link HnswIndex} with the default parameters, built
+ *   during the setup; approximate.</li>
+ *   <li>{@code store}: {@link DescriptorStore}, over the database converted
+ *   to a store file.</li>
+ *   <li>{@code pq}: {@link PqIndex} over that store, trained during the
+ *   setup; approximate.</li>
+ * </ul>
+ * Queries cycle through {@value #QUERIES} images that are not in the
+ * database.
+ *
+ * @author Carlota de la Vega
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class QueryBenchmark {
+
+    /**
+     * Number of distinct query images
+     */
+    private static final int QUERIES = 16;
+
+    /**
+     * Side of the query images
+     */
+    private static final int QUERY_IMAGE_SIZE = 256;
+
+    @Param({"1000", "10000", "100000"})
+    public int records;
+
+    @Param({"listdb-image", "listdb", "topk", "parallel", "flat", "cascade", "hnsw", "store", "pq"})
+    public String engine;
+
+    @Param({"10"})
+    public int k;
+
+    private ListDB<BufferedImage> database;
+    private BufferedImage[] images;
+    private ListDB<BufferedImage>.Record[] queries;
+    private QueryEngine queryEngine;
+    private int next = 0;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        database = BenchmarkData.database(records);
+        images = new BufferedImage[QUERIES];
+        queries = new ListDB.Record[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            images[i] = BenchmarkData.image(QUERY_IMAGE_SIZE, QUERY_IMAGE_SIZE, -1 - i);
+            queries[i] = BenchmarkData.query(database, images[i]);
+        }
+        if (!engine.startsWith("listdb")) {
+            queryEngine = BenchmarkData.engine(engine, database);
+            // fill the indexes before measuring
+            queryEngine.query(queries[0], k);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (queryEngine instanceof Closeable closeable) {
+            closeable.close();
+        }
+    }
+
+    @Benchmark
+    public Object query() {
+        int i = next;
+        next = (i + 1) % QUERIES;
+        return switch (engine) {
+            case "listdb-image" -> database.query(images[i], k);
+            case "listdb" -> database.query(queries[i], k);
+            default -> queryEngine.query(queries[i], k);
+        };
+    }
+}
@@ -0,0 +1,134 @@
+package tfg;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import javax.swing.SwingUtilities;
+import jmr.db.ListDB;
+
+/**
+ * Generates the images of a list of prompts in background, through a
+ * {@link GenerationQueue}.
+ *
+ * All the prompts are queued at once, and the queue sends them to the backend
+ * respecting its concurrency limit. Each generated image is handed to a
+ * callback on the Swing event dispatch thread (e.g. to add it to the history)
+ * and, if a database is given, described and appended to it in batches, with
+ * the file of the generated image as locator. Repeated prompts of the list
+ * are generated once, and images whose file is already a locator of the
+ * database are not added again.
+ *
+ * @author Carlota de la Vega
+ */
+public class BatchGenerationTask extends IngestionTask {
+
+    private final GenerationQueue queue;
+    private final ImageGenerator generator;
+    private final List<String> prompts;
+    private final Set<String> indexed;
+    private final BiConsumer<GenerationCache.CachedImage, String> consumer;
+
+    /**
+     * Images generated so far
+     */
+    private volatile int generated = 0;
+
+    /**
+     * Creates a new generation task. The task starts when {@link #execute} is
+     * called.
+     *
+     * @param parent the component used as parent of the error dialogs
+     * @param database the database where the images are added, or null to
+     * only generate them
+     * @param extractor the extractor computing the descriptors
+     * @param queue the queue dispatching the prompts
+     * @param generator the backend
+     * @param prompts the prompts to generate
+     * @param indexed the locators already present in the database, as
+     * strings
+     * @param consumer receives each generated image and its prompt, on the
+     * event dispatch thread
+     * @param window the window showing the progress
+     */
+    public BatchGenerationTask(Component parent, ListDB<BufferedImage> database, DescriptorExtractor extractor,
+            GenerationQueue queue, ImageGenerator generator, List<String> prompts, Set<String> indexed,
+            BiConsumer<GenerationCache.CachedImage, String> consumer, TaskProgressWindow window) {
+        super(parent, database, extractor, window);
+        this.queue = queue;
+        this.generator = generator;
+        this.indexed = new HashSet<>(indexed);
+        this.consumer = consumer;
+        Map<String, String> unique = new LinkedHashMap<>();
+        for (String prompt : prompts) {
+            if (!prompt.isBlank()) {
+                unique.putIfAbsent(GenerationCache.normalize(prompt), prompt.trim());
+            }
+        }
+        this.prompts = new ArrayList<>(unique.values());
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        int n = prompts.size();
+        List<CompletableFuture<GenerationCache.CachedImage>> pending = new ArrayList<>(n);
+        for (String prompt : prompts) {
+            pending.add(queue.submit(generator, prompt));
+        }
+
+        startClock();
+        List<ListDB<BufferedImage>.Record> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            for (int i = 0; i < n && !isCancelled(); i++) {
+                String prompt = prompts.get(i);
+                GenerationCache.CachedImage image;
+                try {
+                    image = pending.get(i).get();
+                } catch (ExecutionException ex) {
+                    System.err.println("Error generating \"" + prompt + "\": " + ex.getCause());
+                    addFailure();
+                    image = null;
+                }
+                if (image != null) {
+                    generated++;
+                    GenerationCache.CachedImage generatedImage = image;
+                    SwingUtilities.invokeLater(() -> consumer.accept(generatedImage, prompt));
+                    URL locator = image.getURL();
+                    if (database != null && indexed.add(locator.toString())) {
+                        batch.add(DescriptorExtractor.toRecord(database,
+                                DescriptorExtractor.describe(image.getImage(), database.getDescriptorClasses()), locator));
+                    }
+                }
+                if (database != null && (batch.size() == BATCH_SIZE || i == n - 1)) {
+                    append(batch);
+                    batch.clear();
+                }
+                report(i + 1, n);
+            }
+        } finally {
+            pending.forEach(f -> f.cancel(false));
+        }
+        return generated;
+    }
+
+    @Override
+    protected String summary() {
+        String status = "Generated " + generated + " images";
+        if (database != null) {
+            status += ", added " + getAdded() + " records";
+        }
+        int failed = prompts.size() - generated;
+        if (failed > 0) {
+            status += " (" + failed + " failed)";
+        }
+        return status + "; queue: " + queue.getStatistics();
+    }
+}
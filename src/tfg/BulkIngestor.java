@@ -0,0 +1,103 @@
+package tfg;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import jmr.db.ListDB;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Adds a set of images already loaded in memory to a {@link ListDB} in
+ * background.
+ *
+ * The descriptors of every image are computed by a
+ * {@link DescriptorExtractor}, one task per image and descriptor class, so the
+ * images are described in parallel. The resulting records are appended to the
+ * database in batches of {@link #BATCH_SIZE}.
+ *
+ * @author Carlota de la Vega
+ */
+public class BulkIngestor extends IngestionTask {
+
+    private final List<BufferedImage> images;
+    private final List<URL> locators;
+
+    /**
+     * Creates a new ingestion task. The task starts when {@link #execute} is
+     * called.
+     *
+     * @param parent the component used as parent of the error dialogs
+     * @param database the database where the records are added
+     * @param extractor the extractor computing the descriptors
+     * @param images the images to add
+     * @param locators the locator of each image; entries can be null
+     * @param window the window showing the progress
+     */
+    public BulkIngestor(Component parent, ListDB<BufferedImage> database, DescriptorExtractor extractor,
+            List<BufferedImage> images, List<URL> locators, TaskProgressWindow window) {
+        super(parent, database, extractor, window);
+        if (images.size() != locators.size()) {
+            throw new IllegalArgumentException("Every image needs a locator entry.");
+        }
+        this.images = new ArrayList<>(images);
+        this.locators = new ArrayList<>(locators);
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        int n = images.size();
+        List<Class> classes = database.getDescriptorClasses();
+        List<List<Future<MediaDescriptor<BufferedImage>>>> pending = new ArrayList<>(n);
+        for (BufferedImage image : images) {
+            pending.add(extractor.submit(image, classes));
+        }
+        images.clear();
+
+        startClock();
+        List<ListDB<BufferedImage>.Record> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            for (int i = 0; i < n; i++) {
+                ListDB<BufferedImage>.Record record = collect(pending.get(i), locators.get(i));
+                pending.set(i, null);
+                if (record != null) {
+                    batch.add(record);
+                }
+                if (batch.size() == BATCH_SIZE || i == n - 1) {
+                    append(batch);
+                    batch.clear();
+                    report(i + 1, n);
+                }
+            }
+        } finally {
+            for (List<Future<MediaDescriptor<BufferedImage>>> futures : pending) {
+                if (futures != null) {
+                    futures.forEach(f -> f.cancel(true));
+                }
+            }
+        }
+        return getAdded();
+    }
+
+    /**
+     * Waits for the descriptors of an image and builds its record.
+     *
+     * @return the record, or null if a descriptor could not be computed
+     */
+    private ListDB<BufferedImage>.Record collect(List<Future<MediaDescriptor<BufferedImage>>> futures, URL locator) throws InterruptedException {
+        List<MediaDescriptor<BufferedImage>> descriptors = new ArrayList<>(futures.size());
+        try {
+            for (Future<MediaDescriptor<BufferedImage>> f : futures) {
+                descriptors.add(f.get());
+            }
+        } catch (ExecutionException ex) {
+            System.err.println("Error computing descriptors of " + locator + ": " + ex.getCause());
+            addFailure();
+            return null;
+        }
+        return DescriptorExtractor.toRecord(database, descriptors, locator);
+    }
+}
@@ -0,0 +1,303 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jmr.db.ListDB;
+
+/**
+ * Exact query engine that fuses the descriptors of a database with weights,
+ * evaluating them in stages of increasing cost.
+ *
+ * The distance of a record is the weighted combination of the distances of
+ * its descriptors, sqrt(sum of (weight * distance)<sup>2</sup>); with every
+ * weight equal to 1 (the default) it is the distance of
+ * {@link jmr.descriptor.DescriptorList}, so the results are those of
+ * {@link ListDB#query(ListDB.Record, int)}. A descriptor with weight 0 is not
+ * evaluated at all.
+ *
+ * The descriptors are evaluated from the cheapest (fewest values, e.g. the
+ * mean color) to the most expensive (the MPEG-7 histograms), over the columns
+ * of a {@link FlatIndex}:
+ * <ol>
+ *   <li>the cheapest descriptor is computed for every record;</li>
+ *   <li>the k records closest by it are evaluated completely, which bounds
+ *   the distance of the k-th result;</li>
+ *   <li>the records whose cheap distance already exceeds that bound are
+ *   discarded, and the rest are evaluated descriptor by descriptor,
+ *   abandoning each one as soon as its partial distance exceeds the k-th
+ *   result found so far.</li>
+ * </ol>
+ * Since the partial distance of a record never exceeds its full distance, no
+ * record of the results is discarded.
+ *
+ * The engine accumulates the time spent in each stage and the number of
+ * records evaluated for each descriptor, reported by {@link #getStatistics()}.
+ *
+ * @author Carlota de la Vega
+ */
+public class CascadeQueryEngine implements QueryEngine {
+
+    /**
+     * Relative margin under which a partial distance is never used to discard
+     * a record, as in {@link FlatIndex}
+     */
+    private static final double PRUNE_MARGIN = 1e-9;
+
+    /**
+     * Names of the stages, in the order of {@link #stageNanos}
+     */
+    private static final String[] STAGES = {"prune", "seed", "refine"};
+
+    /**
+     * Database queried
+     */
+    private final ListDB<BufferedImage> database;
+
+    /**
+     * Values of the records
+     */
+    private final FlatIndex vectors;
+
+    /**
+     * Weight of each descriptor, in the order of the database
+     */
+    private final double[] weights;
+
+    /**
+     * Distances of the cheapest descriptor to the last query, one per record;
+     * guarded by the database monitor
+     */
+    private double[] partial = new double[0];
+
+    /**
+     * Accumulated statistics: queries run, time per stage and records
+     * evaluated per descriptor
+     */
+    private long queries = 0;
+    private final long[] stageNanos = new long[STAGES.length];
+    private final long[] evaluated;
+
+    /**
+     * Creates an engine with every weight equal to 1.
+     *
+     * @param database the database to be queried
+     * @param vectors a flat index over the same database
+     */
+    public CascadeQueryEngine(ListDB<BufferedImage> database, FlatIndex vectors) {
+        this.database = database;
+        this.vectors = vectors;
+        int descriptors = database.getDescriptorClasses().size();
+        weights = new double[descriptors];
+        Arrays.fill(weights, 1.0);
+        evaluated = new long[descriptors];
+    }
+
+    /**
+     * Returns the flat index the descriptors are read from, whose distances
+     * are those of the engine with every weight equal to 1.
+     *
+     * @return the flat index
+     */
+    FlatIndex getVectors() {
+        return vectors;
+    }
+
+    /**
+     * Returns the weights of the descriptors.
+     *
+     * @return the weights, in the order of the descriptors of the database
+     */
+    public double[] getWeights() {
+        synchronized (database) {
+            return weights.clone();
+        }
+    }
+
+    /**
+     * Sets the weights of the descriptors. The statistics are reset, since
+     * the cost of the stages depends on them.
+     *
+     * @param weights the weights, in the order of the descriptors of the
+     * database; 0 leaves a descriptor out
+     * @throws IllegalArgumentException if the number of weights does not match
+     * the descriptors, or a weight is negative or not finite
+     */
+    public void setWeights(double[] weights) {
+        if (weights.length != this.weights.length) {
+            throw new IllegalArgumentException("Expected " + this.weights.length + " weights, got " + weights.length);
+        }
+        for (double w : weights) {
+            if (!(w >= 0) || Double.isInfinite(w)) {
+                throw new IllegalArgumentException("Invalid weight: " + w);
+            }
+        }
+        synchronized (database) {
+            System.arraycopy(weights, 0, this.weights, 0, weights.length);
+            resetStatistics();
+        }
+    }
+
+    /**
+     * Clears the accumulated statistics.
+     */
+    public void resetStatistics() {
+        synchronized (database) {
+            queries = 0;
+            Arrays.fill(stageNanos, 0);
+            Arrays.fill(evaluated, 0);
+        }
+    }
+
+    /**
+     * Returns the mean time per query of each stage, and the mean number of
+     * records evaluated for each descriptor.
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        synchronized (database) {
+            if (queries == 0) {
+                return "no queries";
+            }
+            StringBuilder s = new StringBuilder(queries + " queries; mean ms per stage:");
+            for (int i = 0; i < STAGES.length; i++) {
+                s.append(String.format(" %s %.3f", STAGES[i], stageNanos[i] / 1e6 / queries));
+            }
+            s.append("; mean records evaluated:");
+            List<Class> classes = database.getDescriptorClasses();
+            for (int c = 0; c < evaluated.length; c++) {
+                s.append(' ').append(classes.get(c).getSimpleName()).append(' ').append(evaluated[c] / queries);
+            }
+            return s.toString();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The database monitor is held during the query, so records cannot be
+     * added while it is running.
+     */
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (!query.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        synchronized (database) {
+            vectors.update();
+            int n = database.size();
+            int capacity = Math.min(k, n);
+            if (capacity <= 0) {
+                return new ArrayList<>();
+            }
+            float[][] values = vectors.queryValues(query);
+            int[] stages = stages();
+            TopKHeap best = new TopKHeap(capacity);
+            if (stages.length == 0) {
+                // every weight is 0: all the records are at distance 0
+                for (int i = 0; i < capacity; i++) {
+                    best.offer(0.0, i);
+                }
+            } else {
+                search(values, stages, n, best);
+            }
+            best.sort();
+
+            List<QueryResult> results = new ArrayList<>(best.size());
+            for (int i = 0; i < best.size(); i++) {
+                int index = best.getIndex(i);
+                results.add(new QueryResult(index, best.getDistance(i), database.get(index).getLocator()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Runs the three stages, filling the heap with the closest records.
+     */
+    private void search(float[][] values, int[] stages, int n, TopKHeap best) {
+        queries++;
+        int first = stages[0];
+        double w = weights[first];
+
+        long start = System.nanoTime();
+        if (partial.length < n) {
+            partial = new double[Math.max(n, 2 * partial.length)];
+        }
+        TopKHeap seeds = new TopKHeap(best.capacity());
+        for (int i = 0; i < n; i++) {
+            double d = w * vectors.distance(values, first, i);
+            partial[i] = d * d;
+            seeds.offer(partial[i], i);
+        }
+        evaluated[first] += n;
+        long pruned = System.nanoTime();
+        stageNanos[0] += pruned - start;
+
+        // the k-th distance of the seeds bounds the k-th distance of the
+        // results, since there are k records at that distance or closer
+        seeds.sort();
+        double bound = 0.0;
+        for (int s = 0; s < seeds.size(); s++) {
+            bound = Math.max(bound, distance(values, stages, seeds.getIndex(s), Double.POSITIVE_INFINITY));
+        }
+        long seeded = System.nanoTime();
+        stageNanos[1] += seeded - pruned;
+
+        double limit = bound * bound * (1 + PRUNE_MARGIN);
+        for (int i = 0; i < n; i++) {
+            if (partial[i] > limit) {
+                continue;
+            }
+            double threshold = Math.min(bound, best.threshold());
+            double d = distance(values, stages, i, threshold * threshold * (1 + PRUNE_MARGIN));
+            if (d >= 0) {
+                best.offer(d, i);
+            }
+        }
+        stageNanos[2] += System.nanoTime() - seeded;
+    }
+
+    /**
+     * Computes the fused distance of a record, starting from the partial
+     * distance of the first stage and adding the other descriptors in order.
+     *
+     * @return the distance, or -1 if the squared sum exceeded the limit and
+     * the record was abandoned
+     */
+    private double distance(float[][] values, int[] stages, int i, double limit) {
+        double sum = partial[i];
+        for (int s = 1; s < stages.length; s++) {
+            int c = stages[s];
+            double d = weights[c] * vectors.distance(values, c, i);
+            sum += d * d;
+            evaluated[c]++;
+            if (sum > limit) {
+                return -1;
+            }
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Returns the descriptors with a weight above 0, from the cheapest to the
+     * most expensive.
+     */
+    private int[] stages() {
+        List<Integer> stages = new ArrayList<>();
+        for (int c = 0; c < weights.length; c++) {
+            if (weights[c] > 0) {
+                stages.add(c);
+            }
+        }
+        stages.sort((a, b) -> Integer.compare(vectors.stride(a), vectors.stride(b)));
+        int[] order = new int[stages.size()];
+        for (int s = 0; s < order.length; s++) {
+            order[s] = stages.get(s);
+        }
+        return order;
+    }
+}
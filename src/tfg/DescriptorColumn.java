@@ -0,0 +1,378 @@
+package tfg;
+
+import java.awt.Color;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.color.MPEG7ColorStructure;
+import jmr.descriptor.color.MPEG7ScalableColor;
+import jmr.descriptor.color.SingleColorDescriptor;
+
+/**
+ * Flat, fixed-stride representation of the descriptors supported by the
+ * columnar stores.
+ *
+ * Each constant knows how to extract the raw values of one descriptor class,
+ * how to encode them in a column and how to compute the distance between a
+ * query and a stored record. The distances reproduce the arithmetic of the
+ * descriptor {@code compare} methods, so rankings computed over a column match
+ * the ones computed over the descriptor objects.
+ *
+ * The same distances can be computed over columns of floats, as kept in memory
+ * by {@link FlatIndex}. The values of the supported descriptors are integers
+ * well below 2<sup>24</sup>, so the float sums are exact and the distances
+ * equal those of the byte columns.
+ *
+ * The MPEG-7 descriptors keep their values in protected fields, which are read
+ * through reflection.
+ *
+ * @author Carlota de la Vega
+ */
+public enum DescriptorColumn {
+
+    /**
+     * Color structure histogram; one unsigned byte per bin. The parameter is
+     * the number of quantization levels.
+     */
+    COLOR_STRUCTURE(MPEG7ColorStructure.class, Byte.BYTES) {
+        @Override
+        int[] values(MediaDescriptor<?> descriptor) {
+            int[] histo = (int[]) Reflection.get(Reflection.CSD_HISTO, descriptor);
+            return histo.clone();
+        }
+
+        @Override
+        int parameter(MediaDescriptor<?> descriptor) {
+            return (Integer) Reflection.get(Reflection.CSD_LEVELS, descriptor);
+        }
+
+        @Override
+        void check(int[] values) {
+            for (int v : values) {
+                if (v < 0 || v > 255) {
+                    throw new IllegalArgumentException("Color structure bin out of range: " + v);
+                }
+            }
+        }
+
+        @Override
+        void put(int[] values, ByteBuffer dst) {
+            check(values);
+            for (int v : values) {
+                dst.put((byte) v);
+            }
+        }
+
+        @Override
+        double distance(int[] query, ByteBuffer src, int position) {
+            long sum = 0;
+            for (int i = 0; i < query.length; i++) {
+                sum += Math.abs(query[i] - (src.get(position + i) & 0xFF));
+            }
+            return sum / (double) (256 * query.length);
+        }
+
+        @Override
+        double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            return l1(a, aOffset, b, bOffset, length) / (double) (256 * length);
+        }
+
+        @Override
+        int value(ByteBuffer src, int position, int i) {
+            return src.get(position + i) & 0xFF;
+        }
+
+        @Override
+        double l1Scale(int stride) {
+            return 1.0 / (256 * stride);
+        }
+    },
+    /**
+     * Haar coefficients of the scalable color descriptor; one float per
+     * coefficient. The parameter is the number of discarded bit planes.
+     */
+    SCALABLE_COLOR(MPEG7ScalableColor.class, Float.BYTES) {
+        @Override
+        int[] values(MediaDescriptor<?> descriptor) {
+            int[] histo = (int[]) Reflection.get(Reflection.SCD_HISTO, descriptor);
+            int n = (Integer) Reflection.get(Reflection.SCD_COEFFICIENTS, descriptor);
+            return Arrays.copyOf(histo, n);
+        }
+
+        @Override
+        int parameter(MediaDescriptor<?> descriptor) {
+            return (Integer) Reflection.get(Reflection.SCD_BITPLANES, descriptor);
+        }
+
+        @Override
+        void put(int[] values, ByteBuffer dst) {
+            for (int v : values) {
+                dst.putFloat(v);
+            }
+        }
+
+        @Override
+        double distance(int[] query, ByteBuffer src, int position) {
+            double sum = 0;
+            for (int i = 0; i < query.length; i++) {
+                sum += Math.abs(query[i] - (int) src.getFloat(position + i * Float.BYTES));
+            }
+            return sum;
+        }
+
+        @Override
+        double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            return l1(a, aOffset, b, bOffset, length);
+        }
+
+        @Override
+        int value(ByteBuffer src, int position, int i) {
+            return (int) src.getFloat(position + i * Float.BYTES);
+        }
+
+        @Override
+        double l1Scale(int stride) {
+            return 1.0;
+        }
+    },
+    /**
+     * Mean color; three unsigned bytes (red, green, blue). It has no
+     * parameter.
+     */
+    SINGLE_COLOR(SingleColorDescriptor.class, Byte.BYTES) {
+        @Override
+        int[] values(MediaDescriptor<?> descriptor) {
+            Color c = ((SingleColorDescriptor) descriptor).getColor();
+            return new int[]{c.getRed(), c.getGreen(), c.getBlue()};
+        }
+
+        @Override
+        int parameter(MediaDescriptor<?> descriptor) {
+            return 0;
+        }
+
+        @Override
+        void put(int[] values, ByteBuffer dst) {
+            for (int v : values) {
+                dst.put((byte) v);
+            }
+        }
+
+        @Override
+        double distance(int[] query, ByteBuffer src, int position) {
+            double r = query[0] - (src.get(position) & 0xFF);
+            double g = query[1] - (src.get(position + 1) & 0xFF);
+            double b = query[2] - (src.get(position + 2) & 0xFF);
+            return Math.sqrt(r * r + g * g + b * b);
+        }
+
+        @Override
+        double distance(float[] a, int aOffset, float[] b, int bOffset, int length) {
+            double red = a[aOffset] - b[bOffset];
+            double green = a[aOffset + 1] - b[bOffset + 1];
+            double blue = a[aOffset + 2] - b[bOffset + 2];
+            return Math.sqrt(red * red + green * green + blue * blue);
+        }
+
+        @Override
+        int value(ByteBuffer src, int position, int i) {
+            return src.get(position + i) & 0xFF;
+        }
+
+        @Override
+        double l1Scale(int stride) {
+            return 0.0;
+        }
+    };
+
+    /**
+     * Descriptor class stored in this column
+     */
+    private final Class<?> descriptorClass;
+
+    /**
+     * Bytes used by each value
+     */
+    private final int elementSize;
+
+    DescriptorColumn(Class<?> descriptorClass, int elementSize) {
+        this.descriptorClass = descriptorClass;
+        this.elementSize = elementSize;
+    }
+
+    /**
+     * Returns the descriptor class stored in this column.
+     *
+     * @return the descriptor class
+     */
+    public Class<?> getDescriptorClass() {
+        return descriptorClass;
+    }
+
+    /**
+     * Returns the number of bytes used by each value.
+     *
+     * @return the size of a value, in bytes
+     */
+    public int getElementSize() {
+        return elementSize;
+    }
+
+    /**
+     * Extracts the raw values of a descriptor. The number of values is the
+     * stride of the column.
+     *
+     * @param descriptor a descriptor of the class stored in this column
+     * @return a new array with the descriptor values
+     */
+    abstract int[] values(MediaDescriptor<?> descriptor);
+
+    /**
+     * Returns the parameter two descriptors must share to be comparable (e.g.
+     * the number of quantization levels).
+     *
+     * @param descriptor a descriptor of the class stored in this column
+     * @return the descriptor parameter
+     */
+    abstract int parameter(MediaDescriptor<?> descriptor);
+
+    /**
+     * Checks that the values of a record can be encoded in this column. The
+     * values of most descriptors always fit, so nothing is checked by
+     * default.
+     *
+     * @param values the values returned by {@link #values}
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    void check(int[] values) {
+    }
+
+    /**
+     * Encodes the values of a record at the current position of the buffer.
+     *
+     * @param values the values returned by {@link #values}
+     * @param dst the destination buffer
+     */
+    abstract void put(int[] values, ByteBuffer dst);
+
+    /**
+     * Computes the distance between a query and a stored record, as the
+     * {@code compare} method of the descriptor would.
+     *
+     * @param query the query values
+     * @param src the buffer holding the record
+     * @param position the absolute position of the record in the buffer
+     * @return the distance between the query and the record
+     */
+    abstract double distance(int[] query, ByteBuffer src, int position);
+
+    /**
+     * Computes the distance between two records held in float arrays (e.g. a
+     * query and a record of a column), as the {@code compare} method of the
+     * descriptor would.
+     *
+     * @param a the values of the first record
+     * @param aOffset the position of the first record in its array
+     * @param b the values of the second record
+     * @param bOffset the position of the second record in its array
+     * @param length the number of values of a record, the stride
+     * @return the distance between the records
+     */
+    abstract double distance(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /**
+     * Decodes a value of a stored record.
+     *
+     * @param src the buffer holding the record
+     * @param position the absolute position of the record in the buffer
+     * @param i the index of the value in the record
+     * @return the value, as returned by {@link #values}
+     */
+    abstract int value(ByteBuffer src, int position, int i);
+
+    /**
+     * Returns the factor that turns the sum of absolute differences between
+     * two records into their distance, or 0 if the distance is not an L1
+     * distance. An L1 distance is the sum of the distances of any split of the
+     * values, which product quantization relies on (see {@link PqIndex}).
+     *
+     * @param stride the number of values of a record
+     * @return the factor, or 0
+     */
+    abstract double l1Scale(int stride);
+
+    /**
+     * Sum of absolute differences between two records. The loop is unrolled
+     * over four independent sums, which the JIT compiles to vector
+     * instructions; the values being integers, the order of the additions
+     * does not change the result.
+     *
+     * @param a the values of the first record
+     * @param aOffset the position of the first record in its array
+     * @param b the values of the second record
+     * @param bOffset the position of the second record in its array
+     * @param n the number of values of a record
+     * @return the L1 distance
+     */
+    static float l1(float[] a, int aOffset, float[] b, int bOffset, int n) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+            s1 += Math.abs(a[aOffset + i + 1] - b[bOffset + i + 1]);
+            s2 += Math.abs(a[aOffset + i + 2] - b[bOffset + i + 2]);
+            s3 += Math.abs(a[aOffset + i + 3] - b[bOffset + i + 3]);
+        }
+        for (; i < n; i++) {
+            s0 += Math.abs(a[aOffset + i] - b[bOffset + i]);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Returns the column storing the given descriptor class.
+     *
+     * @param descriptorClass a descriptor class
+     * @return the column for that class
+     * @throws IllegalArgumentException if the class is not supported
+     */
+    public static DescriptorColumn forClass(Class<?> descriptorClass) {
+        for (DescriptorColumn c : values()) {
+            if (c.descriptorClass == descriptorClass) {
+                return c;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported descriptor: " + descriptorClass.getName());
+    }
+
+    /**
+     * Reflective access to the protected fields of the MPEG-7 descriptors.
+     */
+    private static final class Reflection {
+
+        static final Field CSD_HISTO = field(MPEG7ColorStructure.class, "histo");
+        static final Field CSD_LEVELS = field(MPEG7ColorStructure.class, "qLevels");
+        static final Field SCD_HISTO = field(MPEG7ScalableColor.class, "histoHaar");
+        static final Field SCD_COEFFICIENTS = field(MPEG7ScalableColor.class, "nofCoefficients");
+        static final Field SCD_BITPLANES = field(MPEG7ScalableColor.class, "nofBitPlanesDiscarded");
+
+        private static Field field(Class<?> c, String name) {
+            try {
+                Field f = c.getDeclaredField(name);
+                f.setAccessible(true);
+                return f;
+            } catch (NoSuchFieldException ex) {
+                throw new IllegalStateException("Incompatible JMR version: " + c.getName() + "." + name, ex);
+            }
+        }
+
+        static Object get(Field field, Object target) {
+            try {
+                return field.get(target);
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import jmr.db.ListDB;
+import jmr.descriptor.DescriptorList;
+import jmr.descriptor.MediaDescriptor;
+import jmr.descriptor.MediaDescriptorFactory;
+
+/**
+ * Computes image descriptors on a pool of worker threads.
+ *
+ * {@link ListDB#add(Object, java.net.URL)} computes every descriptor of a
+ * record one after the other on the calling thread. The extractor instead
+ * submits one task per image and descriptor class, so the descriptors of many
+ * images are computed in parallel, and then builds the records from the
+ * computed descriptors with {@link #toRecord}.
+ *
+ * @author Carlota de la Vega
+ */
+public class DescriptorExtractor {
+
+    /**
+     * Pool running the extraction tasks
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Number of worker threads
+     */
+    private final int threads;
+
+    /**
+     * Creates an extractor with one thread per available processor.
+     */
+    public DescriptorExtractor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an extractor with the given number of threads.
+     *
+     * @param threads the number of worker threads
+     */
+    public DescriptorExtractor(int threads) {
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread t = new Thread(r, "descriptor-extractor-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        this.threads = Math.max(1, threads);
+        this.pool = Executors.newFixedThreadPool(this.threads, factory);
+    }
+
+    /**
+     * Returns the number of worker threads.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the executor running the extraction tasks, so other tasks that
+     * describe images (e.g. decoding files) share the same threads.
+     *
+     * @return the executor of the extractor
+     */
+    public Executor getExecutor() {
+        return pool;
+    }
+
+    /**
+     * Submits the computation of the descriptors of an image, one task per
+     * descriptor class.
+     *
+     * @param image the image to describe
+     * @param descriptorClasses the descriptor classes to compute
+     * @return the pending descriptors, in the order of the classes
+     */
+    public List<Future<MediaDescriptor<BufferedImage>>> submit(BufferedImage image, List<Class> descriptorClasses) {
+        List<Future<MediaDescriptor<BufferedImage>>> futures = new ArrayList<>(descriptorClasses.size());
+        for (Class c : descriptorClasses) {
+            futures.add(pool.submit(() -> compute(c, image)));
+        }
+        return futures;
+    }
+
+    /**
+     * Computes the descriptors of an image on the calling thread.
+     *
+     * @param image the image to describe
+     * @param descriptorClasses the descriptor classes to compute
+     * @return the descriptors, in the order of the classes
+     */
+    public static List<MediaDescriptor<BufferedImage>> describe(BufferedImage image, List<Class> descriptorClasses) {
+        List<MediaDescriptor<BufferedImage>> descriptors = new ArrayList<>(descriptorClasses.size());
+        for (Class c : descriptorClasses) {
+            descriptors.add(compute(c, image));
+        }
+        return descriptors;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MediaDescriptor<BufferedImage> compute(Class descriptorClass, BufferedImage image) {
+        return (MediaDescriptor<BufferedImage>) MediaDescriptorFactory.getInstance(descriptorClass, image);
+    }
+
+    /**
+     * Stops the worker threads, discarding the pending tasks.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Builds a database record from descriptors computed beforehand.
+     *
+     * The records of a {@link ListDB} do not keep their source image, and
+     * only accept descriptors without source, so the source of the given
+     * descriptors is released. This also lets the image be collected once
+     * every descriptor has been computed.
+     *
+     * @param database the database the record belongs to
+     * @param descriptors one descriptor per class of the database, in the
+     * same order
+     * @param locator the locator of the record image; can be null
+     * @return the new record, not yet added to the database
+     */
+    public static ListDB<BufferedImage>.Record toRecord(ListDB<BufferedImage> database, List<MediaDescriptor<BufferedImage>> descriptors, URL locator) {
+        DescriptorList<BufferedImage> list = new DescriptorList<>(null);
+        for (MediaDescriptor<BufferedImage> d : descriptors) {
+            detachSource(d);
+            list.add(d);
+        }
+        return database.new Record(list, locator);
+    }
+
+    /**
+     * Clears the source of a descriptor. The descriptors do not allow a null
+     * source through {@code setSource}, so the field is cleared through
+     * reflection.
+     */
+    private static void detachSource(MediaDescriptor<?> descriptor) {
+        for (Class<?> c = descriptor.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField("source");
+                f.setAccessible(true);
+                f.set(descriptor, null);
+                return;
+            } catch (NoSuchFieldException ex) {
+                // keep looking in the superclass
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        throw new IllegalStateException("Incompatible JMR version: no source field in " + descriptor.getClass().getName());
+    }
+}
@@ -0,0 +1,350 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import jmr.db.ListDB;
+import jmr.descriptor.DescriptorList;
+
+/**
+ * Read-only, memory-mapped columnar image database.
+ *
+ * Unlike the files written by {@link ListDB#save}, a store is not
+ * deserialized when opened: the file is mapped with {@link FileChannel#map}
+ * and the queries read the descriptor values straight from the mapping,
+ * without creating any object per record. Opening a store therefore takes the
+ * same time whatever its size.
+ *
+ * The file holds a small header followed by one fixed-stride column per
+ * descriptor class (see {@link DescriptorColumn}) and a table with the
+ * locators of the records:
+ * <pre>
+ *   int magic, int version, int records, int columns
+ *   per column: UTF-8 class name (short length + bytes), int stride,
+ *               int parameter, long offset
+ *   long locator offsets position, long locator bytes position,
+ *   long locator bytes length
+ *   column data, aligned to 8 bytes
+ *   locator offsets (records + 1 longs), locator bytes (UTF-8)
+ * </pre>
+ *
+ * Stores are written with {@link DescriptorStoreWriter}.
+ *
+ * @author Carlota de la Vega
+ */
+public class DescriptorStore implements QueryEngine, Closeable {
+
+    /**
+     * Extension of the store files
+     */
+    public static final String EXTENSION = ".jmr.store";
+
+    /**
+     * First bytes of every store file ("JMRS")
+     */
+    static final int MAGIC = 0x4A4D5253;
+
+    /**
+     * Version of the file layout
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Channel of the mapped file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Number of records
+     */
+    private final int size;
+
+    /**
+     * Kind, stride and parameter of each column
+     */
+    private final DescriptorColumn[] kinds;
+    private final int[] strides;
+    private final int[] parameters;
+
+    /**
+     * Bytes used by a record in each column
+     */
+    private final int[] recordBytes;
+
+    /**
+     * Mapped segments of each column. A column larger than the maximum size
+     * of a mapping is split in segments holding whole records.
+     */
+    private final ByteBuffer[][] segments;
+
+    /**
+     * Number of records held by each segment of a column
+     */
+    private final int[] recordsPerSegment;
+
+    /**
+     * Mapped locator offsets and locator bytes
+     */
+    private final ByteBuffer locatorIndex;
+    private final ByteBuffer locatorData;
+
+    private DescriptorStore(FileChannel channel) throws IOException {
+        this.channel = channel;
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), 64 * 1024));
+        if (header.remaining() < 4 * Integer.BYTES || header.getInt() != MAGIC) {
+            throw new IOException("Not a descriptor store file.");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported store version: " + version);
+        }
+        size = header.getInt();
+        int columns = header.getInt();
+
+        kinds = new DescriptorColumn[columns];
+        strides = new int[columns];
+        parameters = new int[columns];
+        recordBytes = new int[columns];
+        segments = new ByteBuffer[columns][];
+        recordsPerSegment = new int[columns];
+        long[] offsets = new long[columns];
+        for (int c = 0; c < columns; c++) {
+            byte[] name = new byte[header.getShort()];
+            header.get(name);
+            try {
+                kinds[c] = DescriptorColumn.forClass(Class.forName(new String(name, StandardCharsets.UTF_8)));
+            } catch (ClassNotFoundException | IllegalArgumentException ex) {
+                throw new IOException("Unknown descriptor in store: " + new String(name, StandardCharsets.UTF_8), ex);
+            }
+            strides[c] = header.getInt();
+            parameters[c] = header.getInt();
+            offsets[c] = header.getLong();
+            recordBytes[c] = strides[c] * kinds[c].getElementSize();
+        }
+        long locatorIndexOffset = header.getLong();
+        long locatorDataOffset = header.getLong();
+        long locatorDataLength = header.getLong();
+
+        for (int c = 0; c < columns; c++) {
+            mapColumn(c, offsets[c]);
+        }
+        if (locatorDataLength > Integer.MAX_VALUE) {
+            throw new IOException("The locator table is too large.");
+        }
+        locatorIndex = channel.map(FileChannel.MapMode.READ_ONLY, locatorIndexOffset, (long) Long.BYTES * (size + 1));
+        locatorData = channel.map(FileChannel.MapMode.READ_ONLY, locatorDataOffset, locatorDataLength);
+    }
+
+    private void mapColumn(int c, long offset) throws IOException {
+        int bytes = recordBytes[c];
+        int perSegment = bytes == 0 ? Math.max(size, 1) : Math.max(1, Integer.MAX_VALUE / bytes);
+        int count = size == 0 ? 0 : (size - 1) / perSegment + 1;
+        recordsPerSegment[c] = perSegment;
+        segments[c] = new ByteBuffer[count];
+        for (int s = 0; s < count; s++) {
+            long first = (long) s * perSegment;
+            long records = Math.min(perSegment, size - first);
+            segments[c][s] = channel.map(FileChannel.MapMode.READ_ONLY, offset + first * bytes, records * bytes);
+        }
+    }
+
+    /**
+     * Opens a store file.
+     *
+     * @param file the store file
+     * @return the opened store
+     * @throws IOException if the file cannot be read or is not a store
+     */
+    public static DescriptorStore open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new DescriptorStore(channel);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Checks whether a file name has the store extension.
+     *
+     * @param file the file to check
+     * @return true if the file is named as a store
+     */
+    public static boolean isStoreFile(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    /**
+     * Returns the number of records.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the descriptor classes of the records, in column order.
+     *
+     * @return the descriptor classes
+     */
+    public List<Class> getDescriptorClasses() {
+        List<Class> classes = new ArrayList<>(kinds.length);
+        for (DescriptorColumn kind : kinds) {
+            classes.add(kind.getDescriptorClass());
+        }
+        return classes;
+    }
+
+    /**
+     * Returns the locator of a record.
+     *
+     * @param index the index of the record
+     * @return the locator, or null if the record has none
+     */
+    public URL getLocator(int index) {
+        long start = locatorIndex.getLong(index * Long.BYTES);
+        long end = locatorIndex.getLong((index + 1) * Long.BYTES);
+        if (start == end) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) (end - start)];
+        locatorData.get((int) start, bytes);
+        try {
+            return URI.create(new String(bytes, StandardCharsets.UTF_8)).toURL();
+        } catch (IllegalArgumentException | MalformedURLException ex) {
+            System.err.println("Invalid locator in store: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    DescriptorColumn getColumnKind(int column) {
+        return kinds[column];
+    }
+
+    int[] getStrides() {
+        return strides.clone();
+    }
+
+    int[] getParameters() {
+        return parameters.clone();
+    }
+
+    /**
+     * Copies the raw bytes of a record in a column to a buffer.
+     */
+    void copyRecord(int column, int index, ByteBuffer dst) {
+        int bytes = recordBytes[column];
+        ByteBuffer segment = segments[column][index / recordsPerSegment[column]];
+        dst.put(segment.slice((index % recordsPerSegment[column]) * bytes, bytes));
+    }
+
+    /**
+     * Decodes the values of a record in a column.
+     *
+     * @param column the column
+     * @param index the index of the record
+     * @return the values, as returned by {@link DescriptorColumn#values}
+     */
+    int[] values(int column, int index) {
+        int perSegment = recordsPerSegment[column];
+        ByteBuffer segment = segments[column][index / perSegment];
+        int position = (index % perSegment) * recordBytes[column];
+        int[] values = new int[strides[column]];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = kinds[column].value(segment, position, i);
+        }
+        return values;
+    }
+
+    /**
+     * Computes the distance between a query and a record, combining the
+     * distances of every column as {@link DescriptorList} does.
+     */
+    double distance(int[][] query, int index) {
+        double sum = 0.0;
+        for (int c = 0; c < kinds.length; c++) {
+            int perSegment = recordsPerSegment[c];
+            ByteBuffer segment = segments[c][index / perSegment];
+            double d = kinds[c].distance(query[c], segment, (index % perSegment) * recordBytes[c]);
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Extracts the values of a query record, one array per column.
+     *
+     * @param query a record with the descriptors of the store, in column order
+     * @return the query values
+     * @throws IllegalArgumentException if the record does not share the
+     * structure of the store
+     */
+    public int[][] queryValues(DescriptorList<BufferedImage> query) {
+        if (query.size() != kinds.length) {
+            throw new IllegalArgumentException("The query record does not share the store structure.");
+        }
+        int[][] values = new int[kinds.length][];
+        for (int c = 0; c < kinds.length; c++) {
+            if (query.get(c).getClass() != kinds[c].getDescriptorClass()) {
+                throw new IllegalArgumentException("The query record does not share the store structure.");
+            }
+            values[c] = kinds[c].values(query.get(c));
+            if (values[c].length != strides[c] || kinds[c].parameter(query.get(c)) != parameters[c]) {
+                throw new IllegalArgumentException("The query descriptors are not comparable with the store.");
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (size == 0) {
+            return new ArrayList<>();
+        }
+        return query(queryValues(query), k);
+    }
+
+    /**
+     * Finds the records closest to the given query values.
+     *
+     * @param query the query values, as returned by {@link #queryValues}
+     * @param k the maximum number of results to return
+     * @return the closest records, sorted by ascending distance
+     */
+    public List<QueryResult> query(int[][] query, int k) {
+        TopKHeap heap = new TopKHeap(Math.max(0, Math.min(k, size)));
+        for (int i = 0; i < size; i++) {
+            heap.offer(distance(query, i), i);
+        }
+        heap.sort();
+        List<QueryResult> results = new ArrayList<>(heap.size());
+        for (int i = 0; i < heap.size(); i++) {
+            int index = heap.getIndex(i);
+            results.add(new QueryResult(index, heap.getDistance(i), getLocator(index)));
+        }
+        return results;
+    }
+
+    /**
+     * Closes the file. The mappings are released once they are no longer
+     * referenced.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
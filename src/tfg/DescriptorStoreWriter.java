@@ -0,0 +1,349 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import jmr.db.ListDB;
+import jmr.descriptor.DescriptorList;
+
+/**
+ * Writes a {@link DescriptorStore} file record by record.
+ *
+ * The number of records is fixed when the writer is created, so the position
+ * of every column is known in advance and each record is written straight to
+ * its final place. Values are buffered in small per-column chunks, so the
+ * memory used by the writer does not depend on the number of records.
+ *
+ * The stride and parameter of each column are taken from the first record
+ * appended; the following records must share them.
+ *
+ * @author Carlota de la Vega
+ */
+public class DescriptorStoreWriter implements Closeable {
+
+    /**
+     * Default number of records buffered for each column before being written
+     */
+    public static final int DEFAULT_CHUNK_RECORDS = 4096;
+
+    /**
+     * Number of records buffered for each column before being written
+     */
+    private final int chunkRecords;
+
+    /**
+     * Channel of the file being written
+     */
+    private final FileChannel channel;
+
+    /**
+     * Kind of each column, in the order of the descriptor classes
+     */
+    private final DescriptorColumn[] kinds;
+
+    /**
+     * Number of records the store will hold
+     */
+    private final int recordCount;
+
+    /**
+     * Size of the header, which depends only on the descriptor classes
+     */
+    private final int headerSize;
+
+    /**
+     * Stride and parameter of each column, set by the first record
+     */
+    private int[] strides = null;
+    private int[] parameters = null;
+
+    /**
+     * Position of each column in the file
+     */
+    private long[] columnOffsets = null;
+
+    /**
+     * Position of the locator offsets table and of the locator bytes
+     */
+    private long locatorIndexOffset;
+    private long locatorDataOffset;
+
+    /**
+     * Pending values of each column and of the locator tables
+     */
+    private ByteBuffer[] columnChunks = null;
+    private ByteBuffer locatorIndexChunk = null;
+    private ByteBuffer locatorDataChunk = null;
+
+    /**
+     * Number of records appended so far, and records already flushed
+     */
+    private int appended = 0;
+    private int flushed = 0;
+
+    /**
+     * Number of locator bytes appended so far, and bytes already flushed
+     */
+    private long locatorBytes = 0;
+    private long locatorBytesFlushed = 0;
+
+    /**
+     * Creates a writer for a new store file, replacing any existing file.
+     *
+     * @param file the file to write
+     * @param descriptorClasses the descriptor classes of the records
+     * @param recordCount the exact number of records that will be appended
+     * @throws IOException if the file cannot be created
+     */
+    public DescriptorStoreWriter(File file, List<Class> descriptorClasses, int recordCount) throws IOException {
+        this(file, descriptorClasses, recordCount, DEFAULT_CHUNK_RECORDS);
+    }
+
+    /**
+     * Creates a writer for a new store file, replacing any existing file.
+     *
+     * @param file the file to write
+     * @param descriptorClasses the descriptor classes of the records
+     * @param recordCount the exact number of records that will be appended
+     * @param chunkRecords the number of records buffered before being written
+     * @throws IOException if the file cannot be created
+     */
+    public DescriptorStoreWriter(File file, List<Class> descriptorClasses, int recordCount, int chunkRecords) throws IOException {
+        if (chunkRecords <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive.");
+        }
+        this.chunkRecords = chunkRecords;
+        this.kinds = new DescriptorColumn[descriptorClasses.size()];
+        int size = 4 * Integer.BYTES;
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = DescriptorColumn.forClass(descriptorClasses.get(i));
+            size += Short.BYTES + kinds[i].getDescriptorClass().getName().getBytes(StandardCharsets.UTF_8).length
+                    + 2 * Integer.BYTES + Long.BYTES;
+        }
+        size += 3 * Long.BYTES;
+        this.headerSize = size;
+        this.recordCount = recordCount;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Appends a record given by its descriptors.
+     *
+     * @param record the record to append; it must hold one descriptor per
+     * column, in the column order
+     * @param locator the locator of the record image; can be null
+     * @throws IOException if the record cannot be written
+     */
+    public void append(DescriptorList<BufferedImage> record, URL locator) throws IOException {
+        checkCapacity();
+        if (record.size() != kinds.length) {
+            throw new IllegalArgumentException("The record does not share the store structure.");
+        }
+        int[][] values = new int[kinds.length][];
+        int[] params = new int[kinds.length];
+        for (int c = 0; c < kinds.length; c++) {
+            values[c] = kinds[c].values(record.get(c));
+            params[c] = kinds[c].parameter(record.get(c));
+        }
+        if (strides == null) {
+            int[] s = new int[kinds.length];
+            for (int c = 0; c < kinds.length; c++) {
+                s[c] = values[c].length;
+            }
+            layout(s, params);
+        }
+        // every column is checked before any is written, so a rejected record
+        // leaves the columns aligned
+        for (int c = 0; c < kinds.length; c++) {
+            if (values[c].length != strides[c] || params[c] != parameters[c]) {
+                throw new IllegalArgumentException("The record does not share the store structure.");
+            }
+            kinds[c].check(values[c]);
+        }
+        for (int c = 0; c < kinds.length; c++) {
+            kinds[c].put(values[c], columnChunks[c]);
+        }
+        appendLocator(locator);
+    }
+
+    /**
+     * Appends a record copied from an open store, without decoding it.
+     *
+     * @param store the source store; it must have the same columns as this
+     * writer
+     * @param index the index of the record in the source store
+     * @throws IOException if the record cannot be written
+     */
+    public void append(DescriptorStore store, int index) throws IOException {
+        checkCapacity();
+        if (strides == null) {
+            layout(store.getStrides(), store.getParameters());
+        }
+        for (int c = 0; c < kinds.length; c++) {
+            if (store.getColumnKind(c) != kinds[c] || store.getStrides()[c] != strides[c]
+                    || store.getParameters()[c] != parameters[c]) {
+                throw new IllegalArgumentException("The source store does not share the store structure.");
+            }
+        }
+        for (int c = 0; c < kinds.length; c++) {
+            store.copyRecord(c, index, columnChunks[c]);
+        }
+        appendLocator(store.getLocator(index));
+    }
+
+    /**
+     * Writes the pending values and the header, and closes the file.
+     *
+     * @throws IOException if the file cannot be written or fewer records than
+     * announced were appended
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (strides == null) {
+                layout(new int[kinds.length], new int[kinds.length]);
+            }
+            flush();
+            if (appended != recordCount) {
+                throw new IOException("Expected " + recordCount + " records but " + appended + " were appended.");
+            }
+            writeHeader();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Number of records appended so far.
+     *
+     * @return the number of records
+     */
+    public int getAppended() {
+        return appended;
+    }
+
+    /**
+     * Fixes the column strides and computes the position of every region.
+     */
+    private void layout(int[] s, int[] params) {
+        strides = s.clone();
+        parameters = params.clone();
+        columnOffsets = new long[kinds.length];
+        columnChunks = new ByteBuffer[kinds.length];
+        long offset = align(headerSize);
+        for (int c = 0; c < kinds.length; c++) {
+            columnOffsets[c] = offset;
+            int recordBytes = strides[c] * kinds[c].getElementSize();
+            offset = align(offset + (long) recordBytes * recordCount);
+            columnChunks[c] = ByteBuffer.allocate(Math.max(1, recordBytes * chunkRecords));
+        }
+        locatorIndexOffset = offset;
+        locatorDataOffset = offset + (long) Long.BYTES * (recordCount + 1);
+        locatorIndexChunk = ByteBuffer.allocate(Long.BYTES * (chunkRecords + 1));
+        locatorDataChunk = ByteBuffer.allocate(64 * chunkRecords);
+        locatorIndexChunk.putLong(0);
+    }
+
+    private void checkCapacity() throws IOException {
+        if (appended >= recordCount) {
+            throw new IOException("The store is limited to " + recordCount + " records.");
+        }
+    }
+
+    private void appendLocator(URL locator) throws IOException {
+        byte[] bytes = locator == null ? new byte[0] : locator.toString().getBytes(StandardCharsets.UTF_8);
+        if (locatorDataChunk.remaining() < bytes.length) {
+            flushLocatorData();
+            if (locatorDataChunk.capacity() < bytes.length) {
+                locatorDataChunk = ByteBuffer.allocate(bytes.length);
+            }
+        }
+        locatorDataChunk.put(bytes);
+        locatorBytes += bytes.length;
+        locatorIndexChunk.putLong(locatorBytes);
+        appended++;
+        if (appended - flushed == chunkRecords) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered values to their place in the file.
+     */
+    private void flush() throws IOException {
+        int pending = appended - flushed;
+        for (int c = 0; c < kinds.length; c++) {
+            long recordBytes = (long) strides[c] * kinds[c].getElementSize();
+            write(columnChunks[c], columnOffsets[c] + recordBytes * flushed);
+        }
+        // the first entry of the offsets table is written with the first chunk
+        long indexPosition = locatorIndexOffset + (long) Long.BYTES * (flushed == 0 ? 0 : flushed + 1);
+        write(locatorIndexChunk, indexPosition);
+        flushLocatorData();
+        flushed += pending;
+    }
+
+    private void flushLocatorData() throws IOException {
+        int n = locatorDataChunk.position();
+        write(locatorDataChunk, locatorDataOffset + locatorBytesFlushed);
+        locatorBytesFlushed += n;
+    }
+
+    private void write(ByteBuffer chunk, long position) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            position += channel.write(chunk, position);
+        }
+        chunk.clear();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(DescriptorStore.MAGIC);
+        header.putInt(DescriptorStore.VERSION);
+        header.putInt(recordCount);
+        header.putInt(kinds.length);
+        for (int c = 0; c < kinds.length; c++) {
+            byte[] name = kinds[c].getDescriptorClass().getName().getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) name.length);
+            header.put(name);
+            header.putInt(strides[c]);
+            header.putInt(parameters[c]);
+            header.putLong(columnOffsets[c]);
+        }
+        header.putLong(locatorIndexOffset);
+        header.putLong(locatorDataOffset);
+        header.putLong(locatorBytes);
+        write(header, 0);
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    /**
+     * Writes a whole database to a store file.
+     *
+     * @param database the database to write
+     * @param file the destination file
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(ListDB<BufferedImage> database, File file) throws IOException {
+        synchronized (database) {
+            try (DescriptorStoreWriter writer = new DescriptorStoreWriter(file, database.getDescriptorClasses(), database.size())) {
+                for (int i = 0; i < database.size(); i++) {
+                    ListDB<BufferedImage>.Record r = database.get(i);
+                    writer.append(r, r.getLocator());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package tfg;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+import jmr.db.ListDB;
+
+/**
+ * Adds every image of a directory tree to a {@link ListDB} in background,
+ * without opening the images in windows.
+ *
+ * Each file is decoded and described by a task running on the threads of a
+ * {@link DescriptorExtractor}; the pixels are released as soon as the
+ * descriptors are computed, and the record keeps the file URL as locator. The
+ * number of files being decoded at the same time is bounded: the directory is
+ * walked lazily and a new file is only submitted once a previous one has been
+ * collected, so the memory used does not depend on the size of the tree.
+ * The tree is walked once: the progress is indeterminate until the walk
+ * finishes, and directories or files that cannot be read are counted as
+ * failures without stopping the walk.
+ *
+ * Files whose URL is already a locator of the database are skipped, so an
+ * interrupted indexing can be resumed by indexing the same directory again:
+ * the records appended before the interruption are kept.
+ *
+ * @author Carlota de la Vega
+ */
+public class DirectoryIndexer extends IngestionTask {
+
+    /**
+     * Files submitted per extractor thread before waiting for a result
+     */
+    private static final int FILES_PER_THREAD = 2;
+
+    /**
+     * Root of the directory tree
+     */
+    private final Path root;
+
+    /**
+     * Locators already present in the database
+     */
+    private final Set<String> indexed;
+
+    /**
+     * Extensions of the image formats that can be decoded
+     */
+    private final Set<String> extensions = new HashSet<>();
+
+    /**
+     * Files skipped because they were already indexed
+     */
+    private volatile int skipped = 0;
+
+    /**
+     * Creates a new indexing task. The task starts when {@link #execute} is
+     * called.
+     *
+     * @param parent the component used as parent of the error dialogs
+     * @param database the database where the records are added
+     * @param extractor the extractor whose threads decode and describe the
+     * images
+     * @param root the directory to index
+     * @param indexed the locators already present in the database, as
+     * strings; the matching files are skipped
+     * @param window the window showing the progress
+     */
+    public DirectoryIndexer(Component parent, ListDB<BufferedImage> database, DescriptorExtractor extractor,
+            Path root, Set<String> indexed, TaskProgressWindow window) {
+        super(parent, database, extractor, window);
+        this.root = root;
+        this.indexed = new HashSet<>(indexed);
+        for (String suffix : ImageIO.getReaderFileSuffixes()) {
+            extensions.add(suffix.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Override
+    protected Integer doInBackground() throws Exception {
+        startClock();
+        int maxInFlight = FILES_PER_THREAD * extractor.getThreads();
+        CompletionService<ListDB<BufferedImage>.Record> results = new ExecutorCompletionService<>(extractor.getExecutor());
+        List<Future<ListDB<BufferedImage>.Record>> inFlight = new ArrayList<>(maxInFlight);
+        List<ListDB<BufferedImage>.Record> batch = new ArrayList<>(BATCH_SIZE);
+        int[] found = {0};
+        int[] processed = {0};
+
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (isCancelled()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (!Files.isRegularFile(file) || !isImage(file)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    found[0]++;
+                    URL locator = file.toUri().toURL();
+                    if (indexed.contains(locator.toString())) {
+                        skipped++;
+                        processed[0]++;
+                        return FileVisitResult.CONTINUE;
+                    }
+                    inFlight.add(results.submit(() -> describe(file, locator)));
+                    try {
+                        if (inFlight.size() == maxInFlight) {
+                            collect(results, inFlight, batch);
+                            processed[0]++;
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (batch.size() >= BATCH_SIZE) {
+                        append(batch);
+                        batch.clear();
+                        report(processed[0], -1);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    System.err.println("Error reading " + file + ": " + ex.getMessage());
+                    addFailure();
+                    return isCancelled() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+                }
+            });
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            while (!inFlight.isEmpty() && !isCancelled()) {
+                collect(results, inFlight, batch);
+                processed[0]++;
+            }
+            append(batch);
+            report(processed[0], found[0]);
+        } finally {
+            inFlight.forEach(f -> f.cancel(true));
+        }
+        return getAdded();
+    }
+
+    private boolean isImage(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && extensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Decodes a file and builds its record. Runs on an extractor thread; the
+     * decoded image is not referenced once the record is built.
+     */
+    private ListDB<BufferedImage>.Record describe(Path file, URL locator) throws IOException {
+        BufferedImage image;
+        try {
+            image = ImageIO.read(file.toFile());
+        } catch (IOException ex) {
+            throw new IOException(file + ": " + ex.getMessage(), ex);
+        }
+        if (image == null) {
+            throw new IOException(file + ": unsupported image format");
+        }
+        return DescriptorExtractor.toRecord(database, DescriptorExtractor.describe(image, database.getDescriptorClasses()), locator);
+    }
+
+    /**
+     * Waits for the next decoded file and adds its record to the batch.
+     */
+    private void collect(CompletionService<ListDB<BufferedImage>.Record> results,
+            List<Future<ListDB<BufferedImage>.Record>> inFlight, List<ListDB<BufferedImage>.Record> batch) throws InterruptedException {
+        Future<ListDB<BufferedImage>.Record> done = results.take();
+        inFlight.remove(done);
+        try {
+            batch.add(done.get());
+        } catch (ExecutionException ex) {
+            System.err.println("Error indexing image: " + ex.getCause());
+            addFailure();
+        }
+    }
+
+    @Override
+    protected String summary() {
+        return skipped > 0 ? super.summary() + ", " + skipped + " already indexed" : super.summary();
+    }
+}
@@ -0,0 +1,435 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import jmr.db.ListDB;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Exact query engine that scans a copy of the descriptors of a
+ * {@link ListDB} kept in primitive arrays.
+ *
+ * Each descriptor class becomes one contiguous {@code float[]} column, with
+ * the values of every record one after another (see
+ * {@link DescriptorColumn}). A query compares its values with each record
+ * through the float kernels of the columns and keeps the k best in a
+ * {@link TopKHeap}, so it reads memory sequentially and does not allocate per
+ * record. The columns are also visited in order of increasing cost: once the
+ * distance accumulated by the first columns already exceeds the worst of the
+ * k results held, the record is skipped without reading the rest. Large
+ * indexes are split into shards scanned by a {@link ForkJoinPool}, as in
+ * {@link ParallelQueryEngine}.
+ *
+ * The distances equal those of the descriptor {@code compare} methods, so
+ * the ranking is the same as the one of
+ * {@link ListDB#query(ListDB.Record, int)}, including the order of records at
+ * the same distance.
+ *
+ * The columns are filled on the first query and extended on the following
+ * ones with the records added to the database meanwhile, so the index can
+ * stay the engine of a database being ingested.
+ *
+ * @author Carlota de la Vega
+ */
+public class FlatIndex implements QueryEngine {
+
+    /**
+     * Relative margin under which a partial distance is never used to skip a
+     * record, so rounding cannot discard a record that belongs to the results
+     */
+    private static final double PRUNE_MARGIN = 1e-9;
+
+    /**
+     * Number of records below which a shard is scanned sequentially
+     */
+    private static final int SHARD_SIZE = 16384;
+
+    /**
+     * Database indexed
+     */
+    private final ListDB<BufferedImage> database;
+
+    /**
+     * Pool running the shards
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Kind of each column, in the order of the descriptors of the database
+     */
+    private final DescriptorColumn[] kinds;
+
+    /**
+     * Columns in order of increasing stride, the order they are visited
+     */
+    private final int[] order;
+
+    /**
+     * Values per record and comparison parameter of each column; set with the
+     * first record
+     */
+    private int[] strides;
+    private int[] parameters;
+
+    /**
+     * Values of each column, one stride per record
+     */
+    private float[][] columns;
+
+    /**
+     * Number of records copied to the columns
+     */
+    private int size = 0;
+
+    /**
+     * Heap reused between queries; guarded by the database monitor
+     */
+    private TopKHeap heap = new TopKHeap(0);
+
+    /**
+     * Creates an index over a database that runs on the common fork/join
+     * pool. The descriptors are copied on the first query.
+     *
+     * @param database the database to be queried
+     * @throws IllegalArgumentException if a descriptor of the database has no
+     * {@link DescriptorColumn}
+     */
+    public FlatIndex(ListDB<BufferedImage> database) {
+        this(database, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an index over a database that runs on the given pool. The
+     * descriptors are copied on the first query.
+     *
+     * @param database the database to be queried
+     * @param pool the pool running the shards
+     * @throws IllegalArgumentException if a descriptor of the database has no
+     * {@link DescriptorColumn}
+     */
+    public FlatIndex(ListDB<BufferedImage> database, ForkJoinPool pool) {
+        this.database = database;
+        this.pool = pool;
+        List<Class> classes = database.getDescriptorClasses();
+        kinds = new DescriptorColumn[classes.size()];
+        for (int c = 0; c < kinds.length; c++) {
+            kinds[c] = DescriptorColumn.forClass(classes.get(c));
+        }
+        order = new int[kinds.length];
+        columns = new float[kinds.length][];
+    }
+
+    /**
+     * Checks whether every descriptor of a database has a
+     * {@link DescriptorColumn}, so it can be indexed.
+     *
+     * @param database a database
+     * @return true if the database can be indexed
+     */
+    public static boolean supports(ListDB<BufferedImage> database) {
+        for (Class c : database.getDescriptorClasses()) {
+            try {
+                DescriptorColumn.forClass(c);
+            } catch (IllegalArgumentException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of records copied to the columns so far.
+     *
+     * @return the number of records indexed
+     */
+    public int size() {
+        synchronized (database) {
+            return size;
+        }
+    }
+
+    /**
+     * Returns the bytes used by the columns.
+     *
+     * @return the size of the columns, in bytes
+     */
+    public long getUsedBytes() {
+        synchronized (database) {
+            long bytes = 0;
+            for (float[] column : columns) {
+                bytes += column != null ? (long) column.length * Float.BYTES : 0;
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The database monitor is held during the scan, so records cannot be
+     * added while it is running.
+     *
+     * @throws IllegalStateException if the descriptors of a record are not
+     * comparable with those of the first one
+     */
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (!query.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        synchronized (database) {
+            update();
+            int capacity = Math.min(k, size);
+            if (capacity <= 0) {
+                return new ArrayList<>();
+            }
+            float[][] values = queryValues(query);
+            TopKHeap best;
+            if (size <= SHARD_SIZE) {
+                if (heap.capacity() != capacity) {
+                    heap = new TopKHeap(capacity);
+                }
+                heap.clear();
+                scan(values, 0, size, heap);
+                best = heap;
+            } else {
+                best = pool.invoke(new ShardTask(values, 0, size, capacity));
+            }
+            best.sort();
+
+            List<QueryResult> results = new ArrayList<>(best.size());
+            for (int i = 0; i < best.size(); i++) {
+                int index = best.getIndex(i);
+                results.add(new QueryResult(index, best.getDistance(i), database.get(index).getLocator()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Offers the records in [from, to) to a heap. The distance of a record is
+     * the square root of the sum of the squared distances of its columns, as
+     * in {@link jmr.descriptor.DescriptorList}. The caller must hold the
+     * database lock.
+     */
+    void scan(float[][] query, int from, int to, TopKHeap heap) {
+        int m = kinds.length;
+        for (int i = from; i < to; i++) {
+            double threshold = heap.threshold();
+            double bound = threshold * threshold * (1 + PRUNE_MARGIN);
+            double sum = 0.0;
+            int j = 0;
+            for (; j < m; j++) {
+                int c = order[j];
+                double d = kinds[c].distance(query[c], 0, columns[c], i * strides[c], strides[c]);
+                sum += d * d;
+                if (sum > bound) {
+                    break;
+                }
+            }
+            if (j == m) {
+                heap.offer(Math.sqrt(sum), i);
+            }
+        }
+    }
+
+    /**
+     * Computes the distance between query values and a record. The caller
+     * must hold the database lock.
+     *
+     * @param query the query values, as returned by {@link #queryValues}
+     * @param i the index of the record
+     * @return the distance
+     */
+    double distance(float[][] query, int i) {
+        double sum = 0.0;
+        for (int c = 0; c < kinds.length; c++) {
+            double d = kinds[c].distance(query[c], 0, columns[c], i * strides[c], strides[c]);
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Computes the distance between query values and a record in one column.
+     * The caller must hold the database lock.
+     *
+     * @param query the query values, as returned by {@link #queryValues}
+     * @param column the column, in the order of the descriptors of the
+     * database
+     * @param i the index of the record
+     * @return the distance of the descriptor of that column
+     */
+    double distance(float[][] query, int column, int i) {
+        int stride = strides[column];
+        return kinds[column].distance(query[column], 0, columns[column], i * stride, stride);
+    }
+
+    /**
+     * Returns the number of values per record of a column, its cost. The
+     * caller must hold the database lock, and the index must hold at least
+     * one record.
+     *
+     * @param column the column
+     * @return the stride of the column
+     */
+    int stride(int column) {
+        return strides[column];
+    }
+
+    /**
+     * Computes the distance between two records. The caller must hold the
+     * database lock.
+     *
+     * @param a the index of a record
+     * @param b the index of another record
+     * @return the distance
+     */
+    double distance(int a, int b) {
+        double sum = 0.0;
+        for (int c = 0; c < kinds.length; c++) {
+            int stride = strides[c];
+            double d = kinds[c].distance(columns[c], a * stride, columns[c], b * stride, stride);
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Returns a copy of the values of a record, usable as query values. The
+     * caller must hold the database lock.
+     *
+     * @param i the index of the record
+     * @return the values, one array per column
+     */
+    float[][] vector(int i) {
+        float[][] values = new float[kinds.length][];
+        for (int c = 0; c < kinds.length; c++) {
+            values[c] = Arrays.copyOfRange(columns[c], i * strides[c], (i + 1) * strides[c]);
+        }
+        return values;
+    }
+
+    /**
+     * Copies to the columns the records added to the database since the last
+     * query. If the database has fewer records than the index (it was
+     * cleared), the columns are filled again. The caller must hold the
+     * database lock.
+     */
+    void update() {
+        int n = database.size();
+        if (n < size) {
+            size = 0;
+            strides = null;
+            Arrays.fill(columns, null);
+        }
+        if (n == size) {
+            return;
+        }
+        if (strides == null) {
+            initColumns(database.get(0));
+        }
+        for (int c = 0; c < kinds.length; c++) {
+            if (columns[c].length < n * strides[c]) {
+                columns[c] = Arrays.copyOf(columns[c], Math.max(n, 2 * size) * strides[c]);
+            }
+        }
+        for (int i = size; i < n; i++) {
+            ListDB<BufferedImage>.Record record = database.get(i);
+            for (int c = 0; c < kinds.length; c++) {
+                MediaDescriptor<?> descriptor = record.get(c);
+                int[] v = kinds[c].values(descriptor);
+                if (v.length != strides[c] || kinds[c].parameter(descriptor) != parameters[c]) {
+                    throw new IllegalStateException("Record " + i + " is not comparable with the first record.");
+                }
+                int offset = i * strides[c];
+                for (int e = 0; e < v.length; e++) {
+                    columns[c][offset + e] = v[e];
+                }
+            }
+        }
+        size = n;
+    }
+
+    /**
+     * Takes the strides and parameters of the columns from the first record,
+     * and sorts the columns by stride.
+     */
+    private void initColumns(ListDB<BufferedImage>.Record first) {
+        strides = new int[kinds.length];
+        parameters = new int[kinds.length];
+        Integer[] byStride = new Integer[kinds.length];
+        for (int c = 0; c < kinds.length; c++) {
+            MediaDescriptor<?> descriptor = first.get(c);
+            strides[c] = kinds[c].values(descriptor).length;
+            parameters[c] = kinds[c].parameter(descriptor);
+            columns[c] = new float[0];
+            byStride[c] = c;
+        }
+        Arrays.sort(byStride, (a, b) -> Integer.compare(strides[a], strides[b]));
+        for (int j = 0; j < order.length; j++) {
+            order[j] = byStride[j];
+        }
+    }
+
+    /**
+     * Extracts the values of a query record, one array per column. The caller
+     * must hold the database lock, and the index must hold at least one
+     * record.
+     */
+    float[][] queryValues(ListDB<BufferedImage>.Record query) {
+        float[][] values = new float[kinds.length][];
+        for (int c = 0; c < kinds.length; c++) {
+            MediaDescriptor<?> descriptor = query.get(c);
+            int[] v = kinds[c].values(descriptor);
+            if (v.length != strides[c] || kinds[c].parameter(descriptor) != parameters[c]) {
+                throw new IllegalArgumentException("The query descriptors are not comparable with the database.");
+            }
+            values[c] = new float[v.length];
+            for (int e = 0; e < v.length; e++) {
+                values[c][e] = v[e];
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Scans the records in [from, to), splitting the range while it is larger
+     * than {@link #SHARD_SIZE}.
+     */
+    private final class ShardTask extends RecursiveTask<TopKHeap> {
+
+        private final float[][] query;
+        private final int from;
+        private final int to;
+        private final int k;
+
+        ShardTask(float[][] query, int from, int to, int k) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= SHARD_SIZE) {
+                TopKHeap heap = new TopKHeap(k);
+                scan(query, from, to, heap);
+                return heap;
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask left = new ShardTask(query, from, middle, k);
+            ShardTask right = new ShardTask(query, middle, to, k);
+            right.fork();
+            TopKHeap heap = left.compute();
+            heap.merge(right.join());
+            return heap;
+        }
+    }
+}
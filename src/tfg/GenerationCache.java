@@ -0,0 +1,313 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.imageio.ImageIO;
+
+/**
+ * Cache of the images generated from prompts, so repeating a prompt does not
+ * call the generation backend again.
+ *
+ * Entries are keyed by the backend name and the normalized prompt (trimmed,
+ * lower case, with runs of white space collapsed). Generated images are
+ * saved as PNG files named by the SHA-256 of their pixels, so the same image
+ * is stored once; the files are written in background by an
+ * {@link ImageWriterService}, so storing an image returns its file at once.
+ * An index file in the same directory maps each key to its
+ * image and is read back when the application starts. Decoded images are also
+ * kept in an in-memory LRU bounded by bytes.
+ *
+ * All methods are thread safe.
+ *
+ * @author Carlota de la Vega
+ */
+public class GenerationCache {
+
+    /**
+     * Directory of the images of the default cache
+     */
+    public static final String DEFAULT_DIRECTORY = "generated_images";
+
+    /**
+     * Default bytes of decoded images kept in memory
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 128L * 1024 * 1024;
+
+    /**
+     * Name of the index file, one "hash TAB key" line per entry
+     */
+    private static final String INDEX_FILE = "prompts.index";
+
+    /**
+     * Directory of the image files
+     */
+    private final File directory;
+
+    /**
+     * Content hash of the image of each key
+     */
+    private final Map<String, String> index = new HashMap<>();
+
+    /**
+     * Decoded images, by content hash
+     */
+    private final ImageMemoryCache<String> memory;
+
+    /**
+     * Service writing the image files
+     */
+    private final ImageWriterService writer;
+
+    /**
+     * Lookups answered from memory, from disk and by the backend
+     */
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a cache over a directory, loading its index if present.
+     *
+     * @param directory the directory of the image files
+     * @param memoryBytes the maximum bytes of decoded images kept in memory
+     */
+    public GenerationCache(File directory, long memoryBytes) {
+        this(directory, memoryBytes, ImageWriterService.getDefault());
+    }
+
+    /**
+     * Creates a cache over a directory, loading its index if present.
+     *
+     * @param directory the directory of the image files
+     * @param memoryBytes the maximum bytes of decoded images kept in memory
+     * @param writer the service writing the image files
+     */
+    public GenerationCache(File directory, long memoryBytes, ImageWriterService writer) {
+        this.directory = directory;
+        this.memory = new ImageMemoryCache<>(memoryBytes);
+        this.writer = writer;
+        loadIndex();
+    }
+
+    /**
+     * Returns the cache shared by the application windows, stored in
+     * {@value #DEFAULT_DIRECTORY} under the working directory.
+     *
+     * @return the default cache
+     */
+    public static GenerationCache getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+
+        static final GenerationCache INSTANCE = new GenerationCache(new File(DEFAULT_DIRECTORY), DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Image generated from a prompt, the file where it is stored and the
+     * backend that generated it.
+     */
+    public static final class CachedImage {
+
+        private final BufferedImage image;
+        private final File file;
+        private final String backend;
+
+        CachedImage(BufferedImage image, File file, String backend) {
+            this.image = image;
+            this.file = file;
+            this.backend = backend;
+        }
+
+        /**
+         * @return the generated image
+         */
+        public BufferedImage getImage() {
+            return image;
+        }
+
+        /**
+         * @return the PNG file holding the image
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the URL of the PNG file, to be used as locator
+         * @throws MalformedURLException if the file path cannot be converted
+         */
+        public URL getURL() throws MalformedURLException {
+            return file.toURI().toURL();
+        }
+
+        /**
+         * @return the name of the backend that generated the image
+         */
+        public String getBackend() {
+            return backend;
+        }
+    }
+
+    /**
+     * Normalizes a prompt so that prompts differing only in case or spacing
+     * share their cache entry.
+     *
+     * @param prompt a prompt
+     * @return the normalized prompt
+     */
+    public static String normalize(String prompt) {
+        return prompt.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static String key(String backend, String prompt) {
+        return backend + " " + normalize(prompt);
+    }
+
+    /**
+     * Returns the image generated for a prompt, calling the backend only if
+     * the prompt is not cached yet.
+     *
+     * @param generator the backend
+     * @param prompt the prompt
+     * @return the generated image and its file
+     * @throws IOException if the backend fails or the image cannot be stored
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the backend
+     */
+    public CachedImage generate(ImageGenerator generator, String prompt) throws IOException, InterruptedException {
+        CachedImage cached = lookup(generator.getName(), prompt);
+        if (cached != null) {
+            return cached;
+        }
+        BufferedImage image = generator.generate(prompt);
+        synchronized (this) {
+            misses++;
+        }
+        return store(generator.getName(), prompt, image);
+    }
+
+    /**
+     * Looks up the image generated for a prompt.
+     *
+     * @param backend the name of the backend
+     * @param prompt the prompt
+     * @return the cached image, or null if the prompt is not cached
+     */
+    public CachedImage lookup(String backend, String prompt) {
+        String hash;
+        synchronized (this) {
+            hash = index.get(key(backend, prompt));
+        }
+        if (hash == null) {
+            return null;
+        }
+        File file = fileFor(hash);
+        BufferedImage image = memory.get(hash);
+        if (image == null) {
+            image = writer.pending(file);
+        }
+        if (image != null && (file.isFile() || writer.pending(file) != null)) {
+            synchronized (this) {
+                memoryHits++;
+            }
+            return new CachedImage(image, file, backend);
+        }
+        try {
+            image = file.isFile() ? ImageIO.read(file) : null;
+        } catch (IOException ex) {
+            System.err.println("Error reading cached image " + file + ": " + ex.getMessage());
+            image = null;
+        }
+        if (image == null) {
+            synchronized (this) {
+                index.remove(key(backend, prompt));
+            }
+            return null;
+        }
+        memory.put(hash, image);
+        synchronized (this) {
+            diskHits++;
+        }
+        return new CachedImage(image, file, backend);
+    }
+
+    /**
+     * Stores an image generated for a prompt. The image file is written in
+     * background; {@link ImageWriterService#written} tells when it is on disk.
+     *
+     * @param backend the name of the backend
+     * @param prompt the prompt
+     * @param image the generated image
+     * @return the stored image and its file
+     * @throws IOException if the index cannot be written
+     */
+    public CachedImage store(String backend, String prompt, BufferedImage image) throws IOException {
+        File file = writer.store(image, directory);
+        String name = file.getName();
+        String hash = name.substring(0, name.length() - ".png".length());
+        memory.put(hash, image);
+
+        String key = key(backend, prompt);
+        synchronized (this) {
+            if (!hash.equals(index.put(key, hash))) {
+                Files.createDirectories(directory.toPath());
+                try (Writer out = Files.newBufferedWriter(new File(directory, INDEX_FILE).toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    out.write(hash + "\t" + key + "\n");
+                }
+            }
+        }
+        return new CachedImage(image, file, backend);
+    }
+
+    /**
+     * Returns a summary of the lookups answered so far.
+     *
+     * @return the hit counts of each level
+     */
+    public synchronized String getStatistics() {
+        long total = memoryHits + diskHits + misses;
+        double rate = total == 0 ? 0.0 : 100.0 * (memoryHits + diskHits) / total;
+        return String.format("memory hits %d, disk hits %d, misses %d (%.0f%% hit rate), %d prompts indexed",
+                memoryHits, diskHits, misses, rate, index.size());
+    }
+
+    private File fileFor(String hash) {
+        return new File(directory, hash + ".png");
+    }
+
+    /**
+     * Reads the index file. Later lines override earlier ones, so the index
+     * can be appended to without rewriting it.
+     */
+    private void loadIndex() {
+        File file = new File(directory, INDEX_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0) {
+                    index.put(line.substring(tab + 1), line.substring(0, tab));
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Error reading generation index: " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.imageio.ImageIO;
+
+/**
+ * HTTP client shared by the requests sent to an image generation backend.
+ *
+ * Each backend gets a single long-lived {@link HttpClient}, so its
+ * connections (kept alive, or multiplexed when the server speaks HTTP/2) and
+ * its threads are reused by every generation instead of being set up again
+ * for each prompt. Requests answered with 429 (too many requests) or 503
+ * (service unavailable, e.g. while a model is loading) are retried with
+ * exponential backoff, honouring the Retry-After header when the server sends
+ * one. Images are decoded while the response body is being received, without
+ * buffering it first.
+ *
+ * All methods are thread safe.
+ *
+ * @author Carlota de la Vega
+ */
+public class GenerationClient {
+
+    /**
+     * Time allowed to open a connection
+     */
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Number of times a request is sent before giving up on a 429 or 503
+     */
+    public static final int MAX_ATTEMPTS = 4;
+
+    /**
+     * Wait before the first retry; it doubles on each retry
+     */
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Longest wait between two attempts
+     */
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    /**
+     * Longest part of an error response included in the exception message
+     */
+    private static final int MAX_ERROR_LENGTH = 200;
+
+    /**
+     * Client of each backend, by backend name
+     */
+    private static final Map<String, GenerationClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * Underlying client, holding the connection pool
+     */
+    private final HttpClient http;
+
+    /**
+     * Requests sent and retries made so far
+     */
+    private long requests = 0;
+    private long retries = 0;
+
+    private GenerationClient(HttpClient.Version version) {
+        this.http = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(CONNECT_TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+
+    /**
+     * Returns the client shared by the requests sent to a backend, creating
+     * it on first use.
+     *
+     * @param backend the name of the backend
+     * @param version the preferred HTTP version; HTTP/2 is only worth it
+     * over TLS, where it is negotiated, as plain HTTP servers often mishandle
+     * the upgrade request
+     * @return the client of the backend
+     */
+    public static GenerationClient forBackend(String backend, HttpClient.Version version) {
+        return CLIENTS.computeIfAbsent(backend, b -> new GenerationClient(version));
+    }
+
+    /**
+     * Sends a request and returns the body of its response as text.
+     *
+     * @param request the request to send
+     * @return the body of the response
+     * @throws IOException if the request fails or the response is not
+     * successful
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public String sendForString(HttpRequest request) throws IOException, InterruptedException {
+        try (InputStream in = send(request).body()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Sends a request and decodes the body of its response as an image.
+     *
+     * @param request the request to send
+     * @return the decoded image
+     * @throws IOException if the request fails, the response is not
+     * successful or its body is not a supported image
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public BufferedImage sendForImage(HttpRequest request) throws IOException, InterruptedException {
+        BufferedImage image;
+        try (InputStream in = send(request).body()) {
+            image = ImageIO.read(in);
+        }
+        if (image == null) {
+            throw new IOException("The response of " + request.uri() + " is not a supported image.");
+        }
+        return image;
+    }
+
+    /**
+     * Sends a request, retrying it while the server answers 429 or 503.
+     *
+     * @return the successful response; its body must be closed
+     */
+    private HttpResponse<InputStream> send(HttpRequest request) throws IOException, InterruptedException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1;; attempt++) {
+            synchronized (this) {
+                requests++;
+            }
+            HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            int status = response.statusCode();
+            if (status / 100 == 2) {
+                return response;
+            }
+            String body;
+            try (InputStream in = response.body()) {
+                body = new String(in.readNBytes(MAX_ERROR_LENGTH), StandardCharsets.UTF_8);
+            }
+            if ((status != 429 && status != 503) || attempt == MAX_ATTEMPTS) {
+                throw new IOException("HTTP " + status + " from " + request.uri() + ": " + body);
+            }
+            long wait = Math.min(MAX_BACKOFF_MILLIS, response.headers().firstValue("Retry-After")
+                    .map(GenerationClient::parseRetryAfter)
+                    .orElse(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1)));
+            synchronized (this) {
+                retries++;
+            }
+            System.err.println("HTTP " + status + " from " + request.uri() + ", retrying in " + wait + " ms");
+            Thread.sleep(wait);
+            backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    /**
+     * Parses a Retry-After header given in seconds. Other forms (HTTP dates)
+     * fall back to the initial backoff.
+     */
+    private static long parseRetryAfter(String value) {
+        try {
+            return Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException ex) {
+            return INITIAL_BACKOFF_MILLIS;
+        }
+    }
+
+    /**
+     * Returns a summary of the requests sent so far.
+     *
+     * @return the request and retry counts
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d requests, %d retries", requests, retries);
+    }
+}
@@ -0,0 +1,224 @@
+package tfg;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of image generation requests, dispatched to the backends with a
+ * bounded number of requests running at the same time.
+ *
+ * The concurrency limit keeps a generation server busy without overloading
+ * it: requests beyond the limit wait in the queue. Requests for a prompt that
+ * is already queued or running on the same backend (comparing the prompts as
+ * {@link GenerationCache#normalize} does) are coalesced: they wait for the
+ * same generation instead of sending a new one. Images are generated through
+ * a {@link GenerationCache}, so prompts generated before are not sent to the
+ * backend at all.
+ *
+ * Cancelling the future returned by {@link #submit} only detaches its caller.
+ * A request is dropped from the queue once every caller waiting for it has
+ * cancelled; a request already sent to the backend is let finish, and its
+ * image is kept in the cache.
+ *
+ * @author Carlota de la Vega
+ */
+public class GenerationQueue {
+
+    /**
+     * Default number of requests running at the same time
+     */
+    public static final int DEFAULT_CONCURRENCY = 2;
+
+    /**
+     * Cache through which the images are generated
+     */
+    private final GenerationCache cache;
+
+    /**
+     * Threads sending the requests
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * Requests queued or running, by backend and normalized prompt
+     */
+    private final Map<String, Request> pending = new HashMap<>();
+
+    /**
+     * Requests sent to the backend and requests answered by a pending one
+     */
+    private long dispatched = 0;
+    private long coalesced = 0;
+
+    /**
+     * Creates a queue generating through the default cache.
+     *
+     * @param concurrency the maximum number of requests running at the same
+     * time
+     */
+    public GenerationQueue(int concurrency) {
+        this(GenerationCache.getDefault(), concurrency);
+    }
+
+    /**
+     * Creates a queue.
+     *
+     * @param cache the cache through which the images are generated
+     * @param concurrency the maximum number of requests running at the same
+     * time
+     */
+    public GenerationQueue(GenerationCache cache, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1.");
+        }
+        this.cache = cache;
+        this.pool = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "image-generation");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the maximum number of requests running at the same time.
+     *
+     * @return the concurrency limit
+     */
+    public int getConcurrency() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Changes the maximum number of requests running at the same time. The
+     * requests already running are not affected.
+     *
+     * @param concurrency the new concurrency limit
+     */
+    public synchronized void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("The concurrency must be at least 1.");
+        }
+        if (concurrency > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(concurrency);
+            pool.setCorePoolSize(concurrency);
+        } else {
+            pool.setCorePoolSize(concurrency);
+            pool.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    /**
+     * Queues the generation of an image, or joins the pending request for the
+     * same prompt.
+     *
+     * @param generator the backend
+     * @param prompt the prompt
+     * @return the future generated image
+     */
+    public synchronized CompletableFuture<GenerationCache.CachedImage> submit(ImageGenerator generator, String prompt) {
+        String key = generator.getName() + " " + GenerationCache.normalize(prompt);
+        Request request = pending.get(key);
+        if (request == null) {
+            request = new Request(key);
+            pending.put(key, request);
+            dispatched++;
+            Request r = request;
+            pool.execute(() -> r.run(generator, prompt));
+        } else {
+            coalesced++;
+        }
+        return request.join();
+    }
+
+    /**
+     * Returns a summary of the requests handled so far.
+     *
+     * @return the dispatched and coalesced counts
+     */
+    public synchronized String getStatistics() {
+        return String.format("%d requests dispatched, %d coalesced, %d pending, concurrency %d",
+                dispatched, coalesced, pending.size(), getConcurrency());
+    }
+
+    /**
+     * Stops the threads, dropping the queued requests.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Generation of one prompt and the callers waiting for it.
+     */
+    private final class Request {
+
+        private final String key;
+        private final CompletableFuture<GenerationCache.CachedImage> result = new CompletableFuture<>();
+        private int waiters = 0;
+        private boolean started = false;
+
+        Request(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Adds a caller, returning its own view of the result.
+         */
+        CompletableFuture<GenerationCache.CachedImage> join() {
+            waiters++;
+            CompletableFuture<GenerationCache.CachedImage> view = new CompletableFuture<>();
+            result.whenComplete((image, ex) -> {
+                if (ex != null) {
+                    view.completeExceptionally(ex);
+                } else {
+                    view.complete(image);
+                }
+            });
+            view.whenComplete((image, ex) -> {
+                if (view.isCancelled()) {
+                    leave();
+                }
+            });
+            return view;
+        }
+
+        /**
+         * Removes a caller that cancelled; the last one drops the request if
+         * it has not been sent yet.
+         */
+        private void leave() {
+            synchronized (GenerationQueue.this) {
+                if (--waiters == 0 && !started) {
+                    pending.remove(key, this);
+                    result.cancel(false);
+                }
+            }
+        }
+
+        void run(ImageGenerator generator, String prompt) {
+            synchronized (GenerationQueue.this) {
+                if (result.isDone()) {
+                    return;
+                }
+                started = true;
+            }
+            try {
+                result.complete(cache.generate(generator, prompt));
+            } catch (InterruptedException ex) {
+                result.completeExceptionally(new CancellationException("Generation interrupted"));
+                Thread.currentThread().interrupt();
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            } finally {
+                synchronized (GenerationQueue.this) {
+                    pending.remove(key, this);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package tfg;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Persistent index of the generation history, kept across sessions.
+ *
+ * The index is an append-only log with one JSON line per generated image:
+ * the prompt, the moment it was added, the backend, the SHA-256 of the image
+ * file and the path of the file. Each image is logged once, whatever the
+ * number of times its prompt is generated again.
+ *
+ * The log is read the first time the index is used, and the prompts are then
+ * kept sorted, so prompts starting with a given text are found without
+ * scanning the whole history; prompts containing the text elsewhere are found
+ * by a scan of the lower-case prompts.
+ *
+ * All methods are thread safe.
+ *
+ * @author Carlota de la Vega
+ */
+public class HistoryIndex {
+
+    /**
+     * Entry of the history: an image generated from a prompt.
+     */
+    public static final class Entry {
+
+        private final String prompt;
+        private final long time;
+        private final String backend;
+        private final String hash;
+        private final File file;
+
+        /**
+         * Creates an entry.
+         *
+         * @param prompt the prompt of the image
+         * @param time the moment the image was added, in milliseconds since the
+         * epoch
+         * @param backend the name of the backend that generated the image, or
+         * null if unknown
+         * @param hash the SHA-256 of the image file
+         * @param file the image file
+         */
+        public Entry(String prompt, long time, String backend, String hash, File file) {
+            this.prompt = prompt;
+            this.time = time;
+            this.backend = backend;
+            this.hash = hash;
+            this.file = file;
+        }
+
+        /**
+         * @return the prompt of the image
+         */
+        public String getPrompt() {
+            return prompt;
+        }
+
+        /**
+         * @return the moment the image was added, in milliseconds since the
+         * epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the name of the backend, or null if unknown
+         */
+        public String getBackend() {
+            return backend;
+        }
+
+        /**
+         * @return the SHA-256 of the image file
+         */
+        public String getHash() {
+            return hash;
+        }
+
+        /**
+         * @return the image file
+         */
+        public File getFile() {
+            return file;
+        }
+
+        @Override
+        public String toString() {
+            String date = DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT).format(new Date(time));
+            return prompt + " (" + (backend != null ? backend + ", " : "") + date + ")";
+        }
+    }
+
+    /**
+     * Log file
+     */
+    private final File file;
+
+    /**
+     * Entries in the order they were added
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Lower-case prompt of each entry, in the same order
+     */
+    private final List<String> keys = new ArrayList<>();
+
+    /**
+     * Entries by lower-case prompt, for prefix searches
+     */
+    private final NavigableMap<String, List<Entry>> byPrompt = new TreeMap<>();
+
+    /**
+     * Images already logged, by hash and prompt
+     */
+    private final Set<String> logged = new HashSet<>();
+
+    /**
+     * Whether the log has been read
+     */
+    private boolean loaded = false;
+
+    /**
+     * Creates an index over a log file. The file is read on first use.
+     *
+     * @param file the log file; it is created when the first entry is added
+     */
+    public HistoryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the log file, if it has not been read yet. Lines that cannot be
+     * parsed (e.g. the last line of a log cut by a crash) are skipped.
+     */
+    public synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    JSONObject json = new JSONObject(line);
+                    index(new Entry(json.getString("prompt"), json.getLong("time"), json.optString("backend", null),
+                            json.getString("hash"), new File(json.getString("file"))));
+                } catch (JSONException ex) {
+                    System.err.println("Skipping invalid history line: " + ex.getMessage());
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("Error reading history index: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Appends an entry to the log, unless the same image was already logged
+     * with the same prompt.
+     *
+     * @param entry the entry to add
+     * @return true if the entry was added
+     * @throws IOException if the log cannot be written
+     */
+    public synchronized boolean add(Entry entry) throws IOException {
+        load();
+        if (logged.contains(entry.hash + " " + entry.prompt)) {
+            return false;
+        }
+        JSONObject json = new JSONObject()
+                .put("prompt", entry.prompt)
+                .put("time", entry.time)
+                .put("hash", entry.hash)
+                .put("file", entry.file.getPath());
+        if (entry.backend != null) {
+            json.put("backend", entry.backend);
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            Files.createDirectories(parent.toPath());
+        }
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(json.toString());
+            out.write('\n');
+        }
+        index(entry);
+        return true;
+    }
+
+    private void index(Entry entry) {
+        String key = entry.prompt.toLowerCase(Locale.ROOT);
+        entries.add(entry);
+        keys.add(key);
+        byPrompt.computeIfAbsent(key, k -> new ArrayList<>(1)).add(entry);
+        logged.add(entry.hash + " " + entry.prompt);
+    }
+
+    /**
+     * Returns the number of entries of the history.
+     *
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        load();
+        return entries.size();
+    }
+
+    /**
+     * Returns the most recent entries.
+     *
+     * @param limit the maximum number of entries
+     * @return the entries, the most recent first
+     */
+    public synchronized List<Entry> recent(int limit) {
+        load();
+        List<Entry> result = new ArrayList<>(entries.subList(Math.max(0, entries.size() - limit), entries.size()));
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Finds the entries whose prompt contains a text, ignoring case. Prompts
+     * starting with the text come first.
+     *
+     * @param text the text to look for
+     * @param limit the maximum number of entries
+     * @return the matching entries; within each group, the most recent first
+     */
+    public synchronized List<Entry> search(String text, int limit) {
+        load();
+        String query = text.trim().toLowerCase(Locale.ROOT);
+        if (query.isEmpty()) {
+            return recent(limit);
+        }
+        List<Entry> prefix = new ArrayList<>();
+        for (List<Entry> list : byPrompt.subMap(query, true, query + Character.MAX_VALUE, false).values()) {
+            prefix.addAll(list);
+        }
+        prefix.sort((a, b) -> Long.compare(b.time, a.time));
+        List<Entry> result = new ArrayList<>(prefix.subList(0, Math.min(limit, prefix.size())));
+        for (int i = entries.size() - 1; i >= 0 && result.size() < limit; i--) {
+            String key = keys.get(i);
+            if (!key.startsWith(query) && key.contains(query)) {
+                result.add(entries.get(i));
+            }
+        }
+        return result;
+    }
+}
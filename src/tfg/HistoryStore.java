@@ -0,0 +1,236 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.imageio.ImageIO;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+
+/**
+ * Storage of the images of the generation history.
+ *
+ * The history only keeps in memory a small icon of each image, used to draw
+ * the history list, and the file holding the full image. Icons are computed
+ * once, when the item is created, on the thread of the store. Images that are
+ * not on disk yet are written to the history directory in background by an
+ * {@link ImageWriterService}, in files named by the hash of their pixels, so
+ * the same image is written once.
+ * The full images used recently are also kept in memory, in an LRU bounded by
+ * a byte budget, and the others are read back from their file when the item
+ * is opened.
+ *
+ * Every image added is also logged once in a {@link HistoryIndex} kept in the
+ * history directory, so the history of previous sessions can be searched and
+ * its images reopened from their files.
+ *
+ * @author Carlota de la Vega
+ */
+public class HistoryStore {
+
+    /**
+     * Directory of the images spilled by the default store
+     */
+    public static final String DEFAULT_DIRECTORY = "history";
+
+    /**
+     * Default bytes of full images kept in memory
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Name of the index file in the history directory
+     */
+    public static final String INDEX_FILE = "history.log";
+
+    /**
+     * Directory where the images without a file are written
+     */
+    private final File directory;
+
+    /**
+     * Full images used recently, by file
+     */
+    private final ImageMemoryCache<File> memory;
+
+    /**
+     * Persistent index of the images added
+     */
+    private final HistoryIndex index;
+
+    /**
+     * Service writing the spilled images
+     */
+    private final ImageWriterService images;
+
+    /**
+     * Thread creating the items and writing the index
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "history-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Creates a store.
+     *
+     * @param directory the directory where the images without a file are
+     * written
+     * @param memoryBytes the maximum bytes of full images kept in memory
+     */
+    public HistoryStore(File directory, long memoryBytes) {
+        this(directory, memoryBytes, ImageWriterService.getDefault());
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param directory the directory where the images without a file are
+     * written
+     * @param memoryBytes the maximum bytes of full images kept in memory
+     * @param images the service writing the images without a file
+     */
+    public HistoryStore(File directory, long memoryBytes, ImageWriterService images) {
+        this.directory = directory;
+        this.images = images;
+        this.memory = new ImageMemoryCache<>(memoryBytes);
+        this.index = new HistoryIndex(new File(directory, INDEX_FILE));
+    }
+
+    /**
+     * Returns the persistent index of the history.
+     *
+     * @return the index
+     */
+    public HistoryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Creates, in background, the history item of an image saved to a file,
+     * and logs it in the index once the file is written. The items are
+     * created in the order they are requested.
+     *
+     * @param image the image
+     * @param prompt the prompt of the image
+     * @param file the file holding the image
+     * @param backend the name of the backend that generated the image, or
+     * null if unknown
+     * @return the future history item
+     */
+    public CompletableFuture<ImagePromptItem> add(BufferedImage image, String prompt, File file, String backend) {
+        memory.put(file, image);
+        long time = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            ImagePromptItem item = new ImagePromptItem(this, prompt, icon(image), file, null);
+            images.written(file).thenRunAsync(() -> log(prompt, time, backend, file), writer);
+            return item;
+        }, writer);
+    }
+
+    /**
+     * Creates, in background, the history item of an image that is not saved
+     * yet. The image is then written to the history directory and logged in
+     * the index. The items are created in the order they are requested.
+     *
+     * @param image the image
+     * @param prompt the prompt of the image
+     * @return the future history item
+     */
+    public CompletableFuture<ImagePromptItem> add(BufferedImage image, String prompt) {
+        long time = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> {
+            File file = images.store(image, directory);
+            memory.put(file, image);
+            ImagePromptItem item = new ImagePromptItem(this, prompt, icon(image), file, image);
+            images.written(file).whenCompleteAsync((written, ex) -> {
+                if (ex == null) {
+                    item.spilled();
+                    log(prompt, time, null, file);
+                }
+                // otherwise the item keeps its image in memory
+            }, writer);
+            return item;
+        }, writer);
+    }
+
+    /**
+     * Creates the history item of an entry of the index, reading its image
+     * from its file.
+     *
+     * @param entry an entry of the index
+     * @return the history item
+     * @throws IOException if the image file cannot be read
+     */
+    public ImagePromptItem restore(HistoryIndex.Entry entry) throws IOException {
+        File file = entry.getFile();
+        BufferedImage image = load(file);
+        if (image == null) {
+            throw new IOException("Unsupported image file " + file);
+        }
+        return new ImagePromptItem(this, entry.getPrompt(), icon(image), file, null);
+    }
+
+    /**
+     * Scales an image down to the icon size of the history list.
+     *
+     * @param image the image
+     * @return the icon
+     */
+    static Icon icon(BufferedImage image) {
+        return new ImageIcon(ThumbnailCache.scale(image, ImagePromptListRenderer.ICON_SIZE));
+    }
+
+    /**
+     * Returns the full image of an item, reading it from its file if it is
+     * not in memory.
+     *
+     * @param file the file of the image
+     * @return the image, or null if it cannot be read
+     * @throws IOException if the file cannot be read
+     */
+    BufferedImage load(File file) throws IOException {
+        BufferedImage image = memory.get(file);
+        if (image == null) {
+            image = images.pending(file);
+        }
+        if (image == null) {
+            image = ImageIO.read(file);
+            if (image != null) {
+                memory.put(file, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns the bytes of full images kept in memory.
+     *
+     * @return the bytes used
+     */
+    public long getUsedBytes() {
+        return memory.getUsedBytes();
+    }
+
+    /**
+     * Logs an image in the index, with the hash of its file.
+     */
+    private void log(String prompt, long time, String backend, File file) {
+        try {
+            String hash = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(file.toPath())));
+            index.add(new HistoryIndex.Entry(prompt, time, backend, hash, file));
+        } catch (IOException ex) {
+            System.err.println("Error logging history image " + file + ": " + ex.getMessage());
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,760 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import jmr.db.ListDB;
+
+/**
+ * Approximate query engine over a hierarchical navigable small world (HNSW)
+ * graph of the records of a {@link ListDB}.
+ *
+ * Each record is a node linked to its nearest neighbours, on layer 0 and on a
+ * random number of sparser upper layers. A query descends greedily from the
+ * entry point through the upper layers and explores layer 0 keeping the
+ * {@code efSearch} closest nodes found, so it compares the query with a small
+ * fraction of the records. The results are usually, but not always, the exact
+ * nearest ones; {@link #recall} measures how often.
+ *
+ * A record at distance 0 from the node closest to it is not linked: it is
+ * attached to that node as a copy and returned with it. Otherwise the copies
+ * of an image would use up the links of each other and the candidates of the
+ * searches, and the neighbourhood of a copied image would be unreachable.
+ *
+ * The descriptor values and the distances are those of a {@link FlatIndex},
+ * which also scans, exactly, the records not yet inserted in the graph.
+ * Records are inserted in batches by {@link #insert(int)}, so a large database
+ * can be indexed in the background while it is being queried and records are
+ * added to it.
+ *
+ * The parameters are the usual ones: {@code m}, the number of links of a node
+ * per layer (twice as many on layer 0); {@code efConstruction}, the candidates
+ * kept when inserting; and {@code efSearch}, the candidates kept when
+ * querying. Larger values give better recall for slower queries and inserts.
+ *
+ * The graph can be saved next to the database file and loaded again with it.
+ * The file records the size and modification time of the database file, so a
+ * graph saved for a different version of the database is ignored.
+ *
+ * All the methods hold the database monitor.
+ *
+ * @author Carlota de la Vega
+ */
+public class HnswIndex implements QueryEngine {
+
+    /**
+     * Extension appended to the database file name to get the graph file
+     */
+    public static final String EXTENSION = ".hnsw";
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 200;
+    public static final int DEFAULT_EF_SEARCH = 64;
+
+    /**
+     * Identifies a graph file ("JMRH")
+     */
+    private static final int MAGIC = 0x4A4D5248;
+
+    /**
+     * Version of the graph file format
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * Seed of the random levels and of the recall sample
+     */
+    private static final long SEED = 0x48534E57L;
+
+    private static final int[] NO_LINKS = new int[0];
+
+    /**
+     * Database indexed
+     */
+    private final ListDB<BufferedImage> database;
+
+    /**
+     * Values and distances of the records
+     */
+    private final FlatIndex vectors;
+
+    private final int m;
+    private final int efConstruction;
+    private int efSearch;
+
+    /**
+     * Multiplier of the random level of a node, 1 / ln(m)
+     */
+    private final double levelFactor;
+
+    private final Random random = new Random(SEED);
+
+    /**
+     * Links of each node, one array per layer up to the level of the node;
+     * null for a record attached to a node as a copy
+     */
+    private int[][][] links = new int[0][][];
+
+    /**
+     * Records attached to each node as copies of it
+     */
+    private int[][] copies = new int[0][];
+
+    /**
+     * Number of records attached to a node as copies
+     */
+    private int duplicates = 0;
+
+    /**
+     * Number of records inserted in the graph; they are the first ones of
+     * the database
+     */
+    private int count = 0;
+
+    /**
+     * Node where the queries start, and its level; -1 while the graph is
+     * empty
+     */
+    private int entry = -1;
+    private int maxLevel = -1;
+
+    /**
+     * Marks of the nodes visited by a search, equal to {@link #epoch} for the
+     * current one
+     */
+    private int[] visited = new int[0];
+    private int epoch = 0;
+
+    /**
+     * Creates an empty graph with the default parameters.
+     *
+     * @param database the database to be queried
+     * @param vectors a flat index over the same database
+     */
+    public HnswIndex(ListDB<BufferedImage> database, FlatIndex vectors) {
+        this(database, vectors, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+    }
+
+    /**
+     * Creates an empty graph.
+     *
+     * @param database the database to be queried
+     * @param vectors a flat index over the same database
+     * @param m the number of links of a node per upper layer
+     * @param efConstruction the candidates kept when inserting a record
+     * @param efSearch the candidates kept when querying
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    public HnswIndex(ListDB<BufferedImage> database, FlatIndex vectors, int m, int efConstruction, int efSearch) {
+        if (m < 2 || efConstruction < 1 || efSearch < 1) {
+            throw new IllegalArgumentException("Invalid HNSW parameters: m=" + m + ", efConstruction=" + efConstruction
+                    + ", efSearch=" + efSearch);
+        }
+        this.database = database;
+        this.vectors = vectors;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levelFactor = 1.0 / Math.log(m);
+    }
+
+    /**
+     * Returns the graph file of a database file.
+     *
+     * @param base the database file
+     * @return the graph file
+     */
+    public static File fileFor(File base) {
+        return new File(base.getPath() + EXTENSION);
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    public int getEfConstruction() {
+        return efConstruction;
+    }
+
+    public int getEfSearch() {
+        synchronized (database) {
+            return efSearch;
+        }
+    }
+
+    /**
+     * Sets the candidates kept when querying. It can be changed at any time.
+     *
+     * @param efSearch the candidates kept, at least 1
+     */
+    public void setEfSearch(int efSearch) {
+        if (efSearch < 1) {
+            throw new IllegalArgumentException("Invalid efSearch: " + efSearch);
+        }
+        synchronized (database) {
+            this.efSearch = efSearch;
+        }
+    }
+
+    /**
+     * Returns the number of records inserted in the graph, including those
+     * attached to a node as copies.
+     *
+     * @return the number of records inserted
+     */
+    public int size() {
+        synchronized (database) {
+            return count;
+        }
+    }
+
+    /**
+     * Returns the number of records of the database not yet inserted in the
+     * graph.
+     *
+     * @return the number of pending records
+     */
+    public int getPending() {
+        synchronized (database) {
+            return Math.max(0, database.size() - count);
+        }
+    }
+
+    /**
+     * Inserts in the graph up to the given number of the records not yet
+     * inserted. If the database has fewer records than the graph (it was
+     * cleared), the graph is emptied first.
+     *
+     * @param max the maximum number of records to insert
+     * @return the number of records inserted
+     */
+    public int insert(int max) {
+        synchronized (database) {
+            vectors.update();
+            int n = database.size();
+            if (n < count) {
+                clear();
+            }
+            int end = (int) Math.min(n, (long) count + max);
+            ensureCapacity(end);
+            for (int node = count; node < end; node++) {
+                insertNode(node);
+            }
+            int inserted = end - count;
+            count = end;
+            return inserted;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The records not yet inserted in the graph are compared with the query
+     * one by one, so they are always found.
+     */
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (!query.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        synchronized (database) {
+            vectors.update();
+            int n = database.size();
+            if (n < count) {
+                clear();
+            }
+            int capacity = Math.min(k, n);
+            if (capacity <= 0) {
+                return new ArrayList<>();
+            }
+            float[][] values = vectors.queryValues(query);
+            TopKHeap best = new TopKHeap(capacity);
+            if (count > 0) {
+                NodeQueue found = new NodeQueue(true);
+                found.push(vectors.distance(values, entry), entry);
+                for (int layer = maxLevel; layer > 0; layer--) {
+                    found = searchLayer(values, found, 1, layer);
+                }
+                found = searchLayer(values, found, Math.max(efSearch, capacity), 0);
+                for (int i = 0; i < found.size(); i++) {
+                    best.offer(found.distance(i), found.node(i));
+                    for (int copy : copies[found.node(i)]) {
+                        best.offer(found.distance(i), copy);
+                    }
+                }
+            }
+            vectors.scan(values, count, n, best);
+            best.sort();
+
+            List<QueryResult> results = new ArrayList<>(best.size());
+            for (int i = 0; i < best.size(); i++) {
+                int index = best.getIndex(i);
+                results.add(new QueryResult(index, best.getDistance(i), database.get(index).getLocator()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Estimates the recall@k of the graph: the mean fraction of the k results
+     * of an exact engine also returned by this one. A result at the same
+     * distance as the k-th exact one counts as found, since any of them is a
+     * valid k-th result. The queries are a random sample of the records of
+     * the database.
+     *
+     * @param exact an exact engine over the same database
+     * @param samples the number of queries
+     * @param k the number of results per query
+     * @return the recall, between 0 and 1; 1 if the database is empty
+     */
+    public double recall(QueryEngine exact, int samples, int k) {
+        List<ListDB<BufferedImage>.Record> queries = new ArrayList<>(samples);
+        synchronized (database) {
+            int n = database.size();
+            if (n == 0) {
+                return 1.0;
+            }
+            Random sampler = new Random(SEED);
+            for (int q = 0; q < samples; q++) {
+                queries.add(database.get(sampler.nextInt(n)));
+            }
+        }
+        double recall = 0;
+        for (ListDB<BufferedImage>.Record query : queries) {
+            List<QueryResult> expected = exact.query(query, k);
+            if (expected.isEmpty()) {
+                recall += 1.0;
+                continue;
+            }
+            double last = expected.get(expected.size() - 1).getDistance();
+            int hits = 0;
+            for (QueryResult r : query(query, k)) {
+                if (r.getDistance() <= last) {
+                    hits++;
+                }
+            }
+            recall += Math.min(hits, expected.size()) / (double) expected.size();
+        }
+        return recall / Math.max(1, queries.size());
+    }
+
+    /**
+     * Returns a description of the graph and its parameters.
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        synchronized (database) {
+            return count + " records (" + duplicates + " copies, " + getPending() + " pending), " + (maxLevel + 1)
+                    + " layers, m=" + m
+                    + ", efConstruction=" + efConstruction + ", efSearch=" + efSearch;
+        }
+    }
+
+    /**
+     * Writes the graph next to a database file, through a temporary file
+     * moved into place. It must be called right after the database is saved
+     * to that file, since the graph records its size and modification time.
+     *
+     * @param base the database file
+     * @throws IOException if the graph cannot be written
+     */
+    public void save(File base) throws IOException {
+        File file = fileFor(base);
+        File tmp = File.createTempFile("graph", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            synchronized (database) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeLong(base.length());
+                    out.writeLong(base.lastModified());
+                    out.writeInt(m);
+                    out.writeInt(efConstruction);
+                    out.writeInt(count);
+                    out.writeInt(entry);
+                    out.writeInt(maxLevel);
+                    int[] originals = new int[count];
+                    for (int node = 0; node < count; node++) {
+                        for (int copy : copies[node]) {
+                            originals[copy] = node;
+                        }
+                    }
+                    for (int node = 0; node < count; node++) {
+                        if (links[node] == null) {
+                            // a copy: no layers, and the node it is attached to
+                            out.writeByte(0);
+                            out.writeInt(originals[node]);
+                            continue;
+                        }
+                        out.writeByte(links[node].length);
+                        for (int[] layer : links[node]) {
+                            out.writeShort(layer.length);
+                            for (int neighbour : layer) {
+                                out.writeInt(neighbour);
+                            }
+                        }
+                    }
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Loads the graph saved next to a database file. The records of the
+     * database after those of the graph (e.g. replayed from a journal) are
+     * left pending.
+     *
+     * @param base the database file
+     * @param database the database opened from that file
+     * @param vectors a flat index over the database
+     * @return the graph, or null if there is no graph file or it was saved
+     * for a different version of the database
+     * @throws IOException if the graph file cannot be read or is corrupt
+     */
+    public static HnswIndex load(File base, ListDB<BufferedImage> database, FlatIndex vectors) throws IOException {
+        File file = fileFor(base);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a graph file: " + file);
+            }
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            if (in.readLong() != base.length() || in.readLong() != base.lastModified()) {
+                return null;
+            }
+            HnswIndex index = new HnswIndex(database, vectors, in.readInt(), in.readInt(), DEFAULT_EF_SEARCH);
+            int count = in.readInt();
+            int entry = in.readInt();
+            int maxLevel = in.readInt();
+            synchronized (database) {
+                if (count > database.size() || entry >= count || (count > 0) != (entry >= 0)) {
+                    return null;
+                }
+                index.ensureCapacity(count);
+                for (int node = 0; node < count; node++) {
+                    int[][] layers = new int[in.readUnsignedByte()][];
+                    if (layers.length == 0) {
+                        int original = in.readInt();
+                        if (original < 0 || original >= node || index.links[original] == null) {
+                            throw new IOException("Corrupt graph file: " + file);
+                        }
+                        index.attach(node, original);
+                        continue;
+                    }
+                    for (int l = 0; l < layers.length; l++) {
+                        layers[l] = new int[in.readUnsignedShort()];
+                        for (int i = 0; i < layers[l].length; i++) {
+                            int neighbour = in.readInt();
+                            if (neighbour < 0 || neighbour >= count) {
+                                throw new IOException("Corrupt graph file: " + file);
+                            }
+                            layers[l][i] = neighbour;
+                        }
+                    }
+                    index.links[node] = layers;
+                }
+                if (count > 0 && index.links[entry] == null) {
+                    throw new IOException("Corrupt graph file: " + file);
+                }
+                index.count = count;
+                index.entry = entry;
+                index.maxLevel = maxLevel;
+            }
+            return index;
+        }
+    }
+
+    private void clear() {
+        links = new int[0][][];
+        copies = new int[0][];
+        duplicates = 0;
+        visited = new int[0];
+        count = 0;
+        entry = -1;
+        maxLevel = -1;
+    }
+
+    private void ensureCapacity(int n) {
+        if (links.length < n) {
+            int previous = links.length;
+            links = Arrays.copyOf(links, Math.max(n, 2 * links.length));
+            copies = Arrays.copyOf(copies, links.length);
+            Arrays.fill(copies, previous, copies.length, NO_LINKS);
+            visited = Arrays.copyOf(visited, links.length);
+        }
+    }
+
+    /**
+     * Inserts a record: finds its closest nodes on each layer up to its level
+     * and links them both ways, or attaches the record to the closest node on
+     * layer 0 if it is at distance 0.
+     */
+    private void insertNode(int node) {
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelFactor);
+        if (entry < 0) {
+            links[node] = new int[level + 1][];
+            Arrays.fill(links[node], NO_LINKS);
+            entry = node;
+            maxLevel = level;
+            return;
+        }
+        float[][] values = vectors.vector(node);
+        NodeQueue found = new NodeQueue(true);
+        found.push(vectors.distance(values, entry), entry);
+        for (int layer = maxLevel; layer > level; layer--) {
+            found = searchLayer(values, found, 1, layer);
+        }
+        // the links are chosen on every layer before any is added, since the
+        // record may turn out to be a copy on layer 0
+        int[][] chosen = new int[level + 1][];
+        Arrays.fill(chosen, NO_LINKS);
+        for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+            found = searchLayer(values, found, efConstruction, layer);
+            chosen[layer] = selectNeighbours(found.copy(), m);
+        }
+        if (chosen[0].length > 0 && vectors.distance(values, chosen[0][0]) == 0) {
+            attach(node, chosen[0][0]);
+            return;
+        }
+        links[node] = chosen;
+        for (int layer = Math.min(level, maxLevel); layer >= 0; layer--) {
+            for (int neighbour : chosen[layer]) {
+                connect(neighbour, node, layer);
+            }
+        }
+        if (level > maxLevel) {
+            entry = node;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * Attaches a record to a node as a copy of it, without links.
+     */
+    private void attach(int record, int node) {
+        links[record] = null;
+        int[] current = copies[node];
+        int[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = record;
+        copies[node] = extended;
+        duplicates++;
+    }
+
+    /**
+     * Adds a link from a node to another, and prunes the links of the node
+     * if it has more than allowed on that layer.
+     */
+    private void connect(int node, int neighbour, int layer) {
+        int[] current = links[node][layer];
+        int max = layer == 0 ? 2 * m : m;
+        if (current.length < max) {
+            int[] extended = Arrays.copyOf(current, current.length + 1);
+            extended[current.length] = neighbour;
+            links[node][layer] = extended;
+            return;
+        }
+        NodeQueue candidates = new NodeQueue(true);
+        candidates.push(vectors.distance(node, neighbour), neighbour);
+        for (int other : current) {
+            candidates.push(vectors.distance(node, other), other);
+        }
+        links[node][layer] = selectNeighbours(candidates, max);
+    }
+
+    /**
+     * Chooses up to max neighbours among candidates, nearest first, skipping
+     * a candidate closer to an already chosen neighbour than to the node, or
+     * identical to it, so the links spread in different directions and do not
+     * all go to copies of the same image; skipped candidates fill the
+     * remaining links. The queue is emptied.
+     */
+    private int[] selectNeighbours(NodeQueue candidates, int max) {
+        int n = candidates.size();
+        int[] nodes = new int[n];
+        double[] distances = new double[n];
+        for (int i = n - 1; i >= 0; i--) {
+            distances[i] = candidates.peekDistance();
+            nodes[i] = candidates.pop();
+        }
+        int[] selected = new int[Math.min(max, n)];
+        boolean[] taken = new boolean[n];
+        int chosen = 0;
+        for (int i = 0; i < n && chosen < selected.length; i++) {
+            boolean diverse = true;
+            for (int j = 0; j < chosen && diverse; j++) {
+                double d = vectors.distance(nodes[i], selected[j]);
+                diverse = d >= distances[i] && d > 0;
+            }
+            if (diverse) {
+                selected[chosen++] = nodes[i];
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < n && chosen < selected.length; i++) {
+            if (!taken[i]) {
+                selected[chosen++] = nodes[i];
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Explores a layer from the given nodes and returns the ef nodes closest
+     * to the query found, farthest first.
+     */
+    private NodeQueue searchLayer(float[][] query, NodeQueue entries, int ef, int layer) {
+        if (++epoch == 0) {
+            Arrays.fill(visited, 0);
+            epoch = 1;
+        }
+        NodeQueue candidates = new NodeQueue(false);
+        NodeQueue found = new NodeQueue(true);
+        for (int i = 0; i < entries.size(); i++) {
+            int node = entries.node(i);
+            visited[node] = epoch;
+            candidates.push(entries.distance(i), node);
+            found.push(entries.distance(i), node);
+            if (found.size() > ef) {
+                found.pop();
+            }
+        }
+        while (candidates.size() > 0) {
+            double distance = candidates.peekDistance();
+            int current = candidates.pop();
+            if (found.size() >= ef && distance > found.peekDistance()) {
+                break;
+            }
+            for (int neighbour : links[current][layer]) {
+                if (visited[neighbour] == epoch) {
+                    continue;
+                }
+                visited[neighbour] = epoch;
+                double d = vectors.distance(query, neighbour);
+                if (found.size() < ef || d < found.peekDistance()) {
+                    candidates.push(d, neighbour);
+                    found.push(d, neighbour);
+                    if (found.size() > ef) {
+                        found.pop();
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Binary heap of nodes by distance, nearest or farthest first; ties are
+     * ordered by node, as in {@link TopKHeap}.
+     */
+    private static final class NodeQueue {
+
+        private final boolean farthestFirst;
+        private double[] distances = new double[16];
+        private int[] nodes = new int[16];
+        private int size = 0;
+
+        NodeQueue(boolean farthestFirst) {
+            this.farthestFirst = farthestFirst;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double distance(int i) {
+            return distances[i];
+        }
+
+        int node(int i) {
+            return nodes[i];
+        }
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        NodeQueue copy() {
+            NodeQueue copy = new NodeQueue(farthestFirst);
+            copy.distances = Arrays.copyOf(distances, distances.length);
+            copy.nodes = Arrays.copyOf(nodes, nodes.length);
+            copy.size = size;
+            return copy;
+        }
+
+        void push(double distance, int node) {
+            if (size == nodes.length) {
+                distances = Arrays.copyOf(distances, 2 * size);
+                nodes = Arrays.copyOf(nodes, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!before(distance, node, distances[parent], nodes[parent])) {
+                    break;
+                }
+                distances[i] = distances[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            nodes[i] = node;
+        }
+
+        /**
+         * Removes the head of the queue.
+         *
+         * @return the node removed
+         */
+        int pop() {
+            int head = nodes[0];
+            size--;
+            double distance = distances[size];
+            int node = nodes[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(distances[child + 1], nodes[child + 1], distances[child], nodes[child])) {
+                    child++;
+                }
+                if (!before(distances[child], nodes[child], distance, node)) {
+                    break;
+                }
+                distances[i] = distances[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            distances[i] = distance;
+            nodes[i] = node;
+            return head;
+        }
+
+        private boolean before(double d1, int n1, double d2, int n2) {
+            int c = d1 != d2 ? Double.compare(d1, d2) : Integer.compare(n1, n2);
+            return farthestFirst ? c > 0 : c < 0;
+        }
+    }
+}
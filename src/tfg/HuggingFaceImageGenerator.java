@@ -0,0 +1,62 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.time.Duration;
+import org.json.JSONObject;
+
+/**
+ * Generates images with the Hugging Face inference API.
+ *
+ * The requests go through the {@link GenerationClient} shared by every
+ * online generation, which negotiates HTTP/2 with the API and retries the
+ * requests rejected while the model is loading or the rate limit is hit.
+ *
+ * @author Carlota de la Vega
+ */
+public class HuggingFaceImageGenerator implements ImageGenerator {
+
+    /**
+     * Inference endpoint of the model
+     */
+    public static final URI MODEL_URI = URI.create("https://api-inference.huggingface.co/models/stabilityai/stable-diffusion-xl-base-1.0");
+
+    /**
+     * Time allowed to the API to generate an image
+     */
+    private static final Duration GENERATION_TIMEOUT = Duration.ofMinutes(2);
+
+    /**
+     * API token sent with each request
+     */
+    private final String token;
+
+    /**
+     * Creates a generator using the given API token.
+     *
+     * @param token the Hugging Face API token
+     */
+    public HuggingFaceImageGenerator(String token) {
+        this.token = token;
+    }
+
+    @Override
+    public BufferedImage generate(String prompt) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(MODEL_URI)
+                .timeout(GENERATION_TIMEOUT)
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json")
+                .header("Accept", "image/png")
+                .POST(HttpRequest.BodyPublishers.ofString(new JSONObject().put("inputs", prompt).toString()))
+                .build();
+        return GenerationClient.forBackend(getName(), HttpClient.Version.HTTP_2).sendForImage(request);
+    }
+
+    @Override
+    public String getName() {
+        return "huggingface";
+    }
+}
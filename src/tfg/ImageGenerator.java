@@ -0,0 +1,34 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Backend that generates an image from a text prompt.
+ *
+ * Generation usually involves a slow remote call, so implementations are
+ * meant to be called outside the Swing event dispatch thread. They must be
+ * thread safe, as several windows may generate images at the same time.
+ *
+ * @author Carlota de la Vega
+ */
+public interface ImageGenerator {
+
+    /**
+     * Generates an image from a prompt. Blocks until the image is available.
+     *
+     * @param prompt the textual description of the image
+     * @return the generated image
+     * @throws IOException if the backend fails or returns no image
+     * @throws InterruptedException if the calling thread is interrupted while
+     * waiting for the backend
+     */
+    BufferedImage generate(String prompt) throws IOException, InterruptedException;
+
+    /**
+     * Returns a short name identifying the backend.
+     *
+     * @return the name of the backend
+     */
+    String getName();
+}
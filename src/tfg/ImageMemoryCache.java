@@ -0,0 +1,108 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory LRU map of decoded images, bounded by the bytes of their pixels
+ * rather than by the number of entries.
+ *
+ * When an image is added and the bound is exceeded, the least recently used
+ * images are evicted until the cache fits again. An image larger than the
+ * whole bound is still kept, as the only entry.
+ *
+ * All methods are thread safe.
+ *
+ * @param <K> the type of the keys
+ * @author Carlota de la Vega
+ */
+public class ImageMemoryCache<K> {
+
+    /**
+     * Maximum bytes of the cached images
+     */
+    private final long maxBytes;
+
+    /**
+     * Cached images, in access order
+     */
+    private final LinkedHashMap<K, BufferedImage> images = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * Bytes of the cached images
+     */
+    private long usedBytes = 0;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxBytes the maximum bytes of the cached images
+     */
+    public ImageMemoryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cached image, marking it as recently used.
+     *
+     * @param key the key of the image
+     * @return the image, or null if it is not cached
+     */
+    public synchronized BufferedImage get(K key) {
+        return images.get(key);
+    }
+
+    /**
+     * Adds an image, evicting the least recently used ones if needed.
+     *
+     * @param key the key of the image
+     * @param image the image
+     */
+    public synchronized void put(K key, BufferedImage image) {
+        BufferedImage previous = images.put(key, image);
+        if (previous != null) {
+            usedBytes -= bytes(previous);
+        }
+        usedBytes += bytes(image);
+        Iterator<Map.Entry<K, BufferedImage>> it = images.entrySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            BufferedImage eldest = it.next().getValue();
+            if (eldest == image) {
+                break;
+            }
+            usedBytes -= bytes(eldest);
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the number of cached images.
+     *
+     * @return the number of images
+     */
+    public synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * Returns the bytes of the cached images.
+     *
+     * @return the bytes in use
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Estimates the memory used by the pixels of an image.
+     *
+     * @param image an image
+     * @return the bytes of its pixels
+     */
+    public static long bytes(BufferedImage image) {
+        int bits = image.getColorModel().getPixelSize();
+        return (long) image.getWidth() * image.getHeight() * Math.max(1, (bits + 7) / 8);
+    }
+}
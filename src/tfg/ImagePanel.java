@@ -7,15 +7,71 @@ package tfg;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutionException;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 /**
+ * Panel showing an image, scaled down to fit the panel.
+ *
+ * The panel does not draw the image itself on each repaint. It draws a copy
+ * scaled to the size of the panel, in the format of the screen
+ * ({@link GraphicsConfiguration#createCompatibleImage}), split into tiles of
+ * {@link #TILE_SIZE} pixels, so only the tiles inside the repainted area are
+ * drawn. The copy is made in background when the image is set, and again when
+ * the panel stops being resized; while the panel is being resized the
+ * previous copy is stretched.
+ *
+ * The preferred size of the panel is the size of the image, bounded by
+ * {@link #MAX_PREFERRED_SIZE}, so large images do not enlarge the window.
  *
  * @author carlota
  */
 public class ImagePanel extends javax.swing.JPanel {
-    
+
+    /**
+     * Side of the tiles of the scaled copy
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Maximum preferred width and height of the panel
+     */
+    public static final int MAX_PREFERRED_SIZE = 512;
+
+    /**
+     * Milliseconds without resizing before the scaled copy is made again
+     */
+    private static final int RESIZE_DELAY = 150;
+
     private BufferedImage img;
+
+    /**
+     * Tiles of the scaled copy, by row and column, or null if not made yet
+     */
+    private BufferedImage[][] tiles;
+
+    /**
+     * Size of the scaled copy held by the tiles
+     */
+    private Dimension tilesSize;
+
+    /**
+     * Size of the scaled copy being made, or null if none
+     */
+    private Dimension pendingSize;
+
+    /**
+     * Restarted on each resize; makes the scaled copy when it fires
+     */
+    private final Timer resizeTimer = new Timer(RESIZE_DELAY, e -> rescale());
     
     public BufferedImage getImage() {
         return img;
@@ -23,9 +79,13 @@ public class ImagePanel extends javax.swing.JPanel {
     
     public void setImage(BufferedImage img) {
         this.img = img;
+        tiles = null;
+        tilesSize = null;
+        pendingSize = null;
 
         if (img != null) {
-            setPreferredSize(new Dimension(img.getWidth(), img.getHeight()));
+            setPreferredSize(fit(img.getWidth(), img.getHeight(), MAX_PREFERRED_SIZE, MAX_PREFERRED_SIZE));
+            rescale();
         }
     }
     /**
@@ -33,6 +93,13 @@ public class ImagePanel extends javax.swing.JPanel {
      */
     public ImagePanel() {
         initComponents();
+        resizeTimer.setRepeats(false);
+        addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                resizeTimer.restart();
+            }
+        });
     }
     
        @Override
@@ -42,9 +109,122 @@ public class ImagePanel extends javax.swing.JPanel {
         Graphics2D g2d = (Graphics2D) g;
 
         if (img != null) {
-            g2d.drawImage(img, 0, 0, this);
+            Dimension size = fit(img.getWidth(), img.getHeight(), getWidth(), getHeight());
+            BufferedImage[][] current = tiles;
+            if (current == null) {
+                // first paint, before the scaled copy is ready
+                g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g2d.drawImage(img, 0, 0, size.width, size.height, this);
+                return;
+            }
+            Graphics2D tg = (Graphics2D) g2d.create();
+            try {
+                if (!size.equals(tilesSize)) {
+                    // being resized: stretch the previous copy
+                    tg.scale((double) size.width / tilesSize.width, (double) size.height / tilesSize.height);
+                }
+                Rectangle clip = tg.getClipBounds();
+                for (int row = 0; row < current.length; row++) {
+                    for (int col = 0; col < current[row].length; col++) {
+                        BufferedImage tile = current[row][col];
+                        int x = col * TILE_SIZE;
+                        int y = row * TILE_SIZE;
+                        if (clip == null || clip.intersects(x, y, tile.getWidth(), tile.getHeight())) {
+                            tg.drawImage(tile, x, y, this);
+                        }
+                    }
+                }
+            } finally {
+                tg.dispose();
+            }
+        }
+
+    }
+
+    /**
+     * Makes, in background, the scaled copy of the image for the current size
+     * of the panel, unless it is already made or being made.
+     */
+    private void rescale() {
+        if (img == null || getWidth() <= 0 || getHeight() <= 0) {
+            return;
         }
+        Dimension size = fit(img.getWidth(), img.getHeight(), getWidth(), getHeight());
+        if (size.equals(tilesSize) || size.equals(pendingSize)) {
+            return;
+        }
+        BufferedImage source = img;
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        pendingSize = size;
+        new SwingWorker<BufferedImage[][], Void>() {
+            @Override
+            protected BufferedImage[][] doInBackground() {
+                return tile(source, size, config);
+            }
+
+            @Override
+            protected void done() {
+                if (source != img || !size.equals(pendingSize)) {
+                    return; // the image or the size changed meanwhile
+                }
+                pendingSize = null;
+                try {
+                    tiles = get();
+                    tilesSize = size;
+                    repaint();
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error scaling image: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Scales an image and splits it into tiles in the format of the screen.
+     * Large reductions are made in steps (see {@link ThumbnailCache#halve}).
+     *
+     * @param image the image
+     * @param size the size of the scaled image
+     * @param config the configuration of the screen, or null if the panel is
+     * not displayed yet
+     * @return the tiles, by row and column
+     */
+    static BufferedImage[][] tile(BufferedImage image, Dimension size, GraphicsConfiguration config) {
+        BufferedImage source = ThumbnailCache.halve(image, size.width, size.height);
+        double sx = (double) source.getWidth() / size.width;
+        double sy = (double) source.getHeight() / size.height;
+        int transparency = image.getColorModel().getTransparency();
+        BufferedImage[][] result = new BufferedImage[(size.height + TILE_SIZE - 1) / TILE_SIZE][(size.width + TILE_SIZE - 1) / TILE_SIZE];
+        for (int row = 0; row < result.length; row++) {
+            for (int col = 0; col < result[row].length; col++) {
+                int x = col * TILE_SIZE;
+                int y = row * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, size.width - x);
+                int h = Math.min(TILE_SIZE, size.height - y);
+                BufferedImage tile = config != null ? config.createCompatibleImage(w, h, transparency)
+                        : new BufferedImage(w, h, transparency == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = tile.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.translate(-x, -y);
+                    g.scale(1 / sx, 1 / sy);
+                    g.drawImage(source, 0, 0, null);
+                } finally {
+                    g.dispose();
+                }
+                result[row][col] = tile;
+            }
+        }
+        return result;
+    }
 
+    /**
+     * Returns the size of an image scaled down to fit a box, keeping its
+     * aspect ratio. Images that already fit keep their size.
+     */
+    private static Dimension fit(int width, int height, int maxWidth, int maxHeight) {
+        double factor = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+        return new Dimension(Math.max(1, (int) Math.round(width * factor)), Math.max(1, (int) Math.round(height * factor)));
     }
 
     /**
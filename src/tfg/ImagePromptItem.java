@@ -5,46 +5,89 @@
 package tfg;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.swing.Icon;
 
 /**
  * Represents an item containing a generated image and its associated text prompt.
  * This class is useful for displaying image-text pairs in UI components such as lists.
- * 
+ *
  * Each instance stores:
  * <ul>
- *   <li>A {@link BufferedImage} representing the generated or loaded image.</li>
+ *   <li>A small icon of the generated or loaded image, shown in the history list.</li>
+ *   <li>The file holding the full image, which is read back when needed
+ *   through its {@link HistoryStore}.</li>
  *   <li>A {@link String} representing the text prompt used to generate the image.</li>
  * </ul>
- * 
- * 
+ *
+ *
  * @author Carlota de la Vega
  */
 public class ImagePromptItem {
 
-    /** The image associated with the prompt */
-    private final BufferedImage image;
+    /** The store holding the full image */
+    private final HistoryStore store;
 
     /** The textual description or prompt that corresponds to the image */
     private final String prompt;
 
+    /** Icon of the image, shown in the history list */
+    private final Icon icon;
+
+    /** The file holding the full image */
+    private final File file;
+
+    /** The full image, kept until it has been written to its file */
+    private volatile BufferedImage pending;
+
     /**
-     * Constructs a new ImagePromptItem.
+     * Constructs a new ImagePromptItem. Items are created by a
+     * {@link HistoryStore}.
      *
-     * @param image  the image to associate with the prompt; can be null if not yet available
+     * @param store the store holding the full image
      * @param prompt the prompt text describing or generating the image
+     * @param icon the icon of the image, or null if it has none
+     * @param file the file holding the full image
+     * @param pending the full image if it is still being written, or null
      */
-    public ImagePromptItem(BufferedImage image, String prompt) {
-        this.image = image;
+    ImagePromptItem(HistoryStore store, String prompt, Icon icon, File file, BufferedImage pending) {
+        this.store = store;
         this.prompt = prompt;
+        this.icon = icon;
+        this.file = file;
+        this.pending = pending;
     }
 
     /**
-     * Returns the image associated with this item.
+     * Returns the full image associated with this item, reading it from its
+     * file if it is no longer in memory.
      *
-     * @return the BufferedImage representing the image
+     * @return the BufferedImage representing the image, or null if it cannot
+     * be read
+     * @throws IOException if the file of the image cannot be read
      */
-    public BufferedImage getImage() {
-        return image;
+    public BufferedImage getImage() throws IOException {
+        BufferedImage image = pending;
+        return image != null ? image : store.load(file);
+    }
+
+    /**
+     * Returns the icon of the image, computed when the item was created.
+     *
+     * @return the icon of the image, or null if it has none
+     */
+    public Icon getIcon() {
+        return icon;
+    }
+
+    /**
+     * Returns the file holding the full image.
+     *
+     * @return the image file
+     */
+    public File getFile() {
+        return file;
     }
 
     /**
@@ -55,4 +98,11 @@ public class ImagePromptItem {
     public String getPrompt() {
         return prompt;
     }
+
+    /**
+     * Releases the full image once it has been written to its file.
+     */
+    void spilled() {
+        pending = null;
+    }
 }
@@ -2,8 +2,6 @@ package tfg;
 
 import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
 import javax.swing.*;
 
 /**
@@ -14,10 +12,26 @@ import javax.swing.*;
  * designed to be used with {@link JList} to visually present image-prompt
  * pairs.
  *
+ * The previews are the icons precomputed by each item, so painting a cell
+ * does not scale any image. Every cell has the same size,
+ * {@link #CELL_WIDTH} x {@link #CELL_HEIGHT}, which lists can set as their
+ * fixed cell size instead of measuring each cell.
+ *
  * @author Carlota de la Vega
  */
 public class ImagePromptListRenderer extends JPanel implements ListCellRenderer<ImagePromptItem> {
 
+    /**
+     * Width and height of the image previews
+     */
+    public static final int ICON_SIZE = 24;
+
+    /**
+     * Size of every cell
+     */
+    public static final int CELL_WIDTH = 200;
+    public static final int CELL_HEIGHT = ICON_SIZE;
+
     /**
      * Label used to display the image icon
      */
@@ -38,12 +52,14 @@ public class ImagePromptListRenderer extends JPanel implements ListCellRenderer<
         add(Box.createHorizontalStrut(10));
         add(textLabel);
 
-        setPreferredSize(new Dimension(200, 24));
+        setPreferredSize(new Dimension(CELL_WIDTH, CELL_HEIGHT));
         setMaximumSize(getPreferredSize());
 
-        textLabel.setMaximumSize(new Dimension(170, 24));
-        textLabel.setPreferredSize(new Dimension(170, 24));
-        textLabel.setMinimumSize(new Dimension(170, 24));
+        imageLabel.setPreferredSize(new Dimension(ICON_SIZE, ICON_SIZE));
+        imageLabel.setHorizontalAlignment(JLabel.CENTER);
+        textLabel.setMaximumSize(new Dimension(170, CELL_HEIGHT));
+        textLabel.setPreferredSize(new Dimension(170, CELL_HEIGHT));
+        textLabel.setMinimumSize(new Dimension(170, CELL_HEIGHT));
 
         textLabel.setToolTipText("");
         textLabel.setOpaque(false);
@@ -68,15 +84,9 @@ public class ImagePromptListRenderer extends JPanel implements ListCellRenderer<
             boolean isSelected,
             boolean cellHasFocus) {
         if (value != null) {
-            BufferedImage image = value.getImage();
             String prompt = value.getPrompt();
 
-            if (image != null) {
-                Image scaled = image.getScaledInstance(24, 24, Image.SCALE_SMOOTH);
-                imageLabel.setIcon(new ImageIcon(scaled));
-            } else {
-                imageLabel.setIcon(null);
-            }
+            imageLabel.setIcon(value.getIcon());
 
             textLabel.setText(prompt);
             textLabel.setToolTipText(prompt);
@@ -0,0 +1,372 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes images to PNG files in background, so the windows do not wait for
+ * the encoding.
+ *
+ * A write returns at once; the file is encoded and written by the threads of
+ * the service, through a temporary file moved into place, so a file is never
+ * seen half written. Until then, {@link #pending} returns the image being
+ * written and {@link #written} the future completed when the file is on disk.
+ *
+ * Writes wait in a queue of bounded capacity; when it is full, the thread
+ * asking for a write waits for a slot, so the images waiting to be written do
+ * not take unbounded memory. Writes are only requested from background
+ * threads or for single images from the event dispatch thread, so the wait
+ * does not freeze the windows in practice.
+ *
+ * Writes of the same content are deduplicated by the SHA-256 of the pixels:
+ * {@link #store} names the file by that hash and does not write it again if
+ * it exists or is being written, and a write of the same content to a file
+ * already being written returns the pending write.
+ *
+ * The default service is flushed when the application exits, so the images
+ * still in the queue are written before the JVM stops.
+ *
+ * @author Carlota de la Vega
+ */
+public class ImageWriterService {
+
+    /**
+     * Default maximum number of writes waiting in the queue
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    /**
+     * Default number of threads encoding images
+     */
+    public static final int DEFAULT_THREADS = 2;
+
+    /**
+     * Default deflate level of the PNG files, from 0 (no compression, fastest)
+     * to 9 (smallest files, slowest)
+     */
+    public static final int DEFAULT_COMPRESSION_LEVEL = 4;
+
+    /**
+     * Maximum seconds the default service waits for the queue when the
+     * application exits
+     */
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    /**
+     * A write waiting or in progress.
+     */
+    private static final class Write {
+
+        final BufferedImage image;
+        final String hash;
+        final CompletableFuture<File> future = new CompletableFuture<>();
+
+        Write(BufferedImage image, String hash) {
+            this.image = image;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Threads encoding the images, with the bounded queue
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Writes waiting or in progress, by file
+     */
+    private final Map<File, Write> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Deflate level of the files written from now on
+     */
+    private volatile int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+    /**
+     * Files written, writes avoided and writes failed
+     */
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Creates a service.
+     *
+     * @param threads the number of threads encoding images
+     * @param capacity the maximum number of writes waiting in the queue
+     */
+    public ImageWriterService(int threads, int capacity) {
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity), r -> {
+            Thread t = new Thread(r, "image-writer");
+            t.setDaemon(true);
+            return t;
+        }, (r, e) -> {
+            if (e.isShutdown()) {
+                throw new RejectedExecutionException("Image writer is shut down.");
+            }
+            try {
+                e.getQueue().put(r);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(ex);
+            }
+        });
+    }
+
+    /**
+     * Returns the service shared by the application, flushed when the
+     * application exits.
+     *
+     * @return the default service
+     */
+    public static ImageWriterService getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+
+        static final ImageWriterService INSTANCE = new ImageWriterService(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> INSTANCE.shutdown(SHUTDOWN_TIMEOUT_SECONDS),
+                    "image-writer-flush"));
+        }
+    }
+
+    /**
+     * Sets the deflate level of the files written from now on.
+     *
+     * @param level the level, from 0 (no compression, fastest) to 9 (smallest
+     * files, slowest)
+     */
+    public void setCompressionLevel(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + level);
+        }
+        compressionLevel = level;
+    }
+
+    /**
+     * Returns the deflate level of the files written.
+     *
+     * @return the level, from 0 to 9
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Stores an image in a directory, in a file named by the hash of its
+     * pixels. The file is written in background, unless it already exists or
+     * is being written.
+     *
+     * @param image the image
+     * @param directory the directory of the file
+     * @return the file, which may not be written yet
+     */
+    public File store(BufferedImage image, File directory) {
+        String hash = contentHash(image);
+        File file = new File(directory, hash + ".png");
+        if (file.isFile() && !pending.containsKey(file)) {
+            deduplicated.incrementAndGet();
+            return file;
+        }
+        write(image, file, hash);
+        return file;
+    }
+
+    /**
+     * Writes an image to a file in background. If the same content is already
+     * being written to the file, the pending write is returned.
+     *
+     * @param image the image
+     * @param file the file
+     * @return the future completed with the file once written, or
+     * exceptionally if it cannot be written
+     */
+    public CompletableFuture<File> write(BufferedImage image, File file) {
+        return write(image, file, contentHash(image));
+    }
+
+    private CompletableFuture<File> write(BufferedImage image, File file, String hash) {
+        Write write = new Write(image, hash);
+        Write previous = pending.putIfAbsent(file, write);
+        if (previous != null) {
+            if (previous.hash.equals(hash)) {
+                deduplicated.incrementAndGet();
+                return previous.future;
+            }
+            // other content for the same file: write it after the previous one
+            return previous.future.handle((f, ex) -> null).thenCompose(v -> write(image, file, hash));
+        }
+        try {
+            executor.execute(() -> run(file, write));
+        } catch (RejectedExecutionException ex) {
+            pending.remove(file, write);
+            write.future.completeExceptionally(ex);
+        }
+        return write.future;
+    }
+
+    private void run(File file, Write write) {
+        try {
+            encode(write.image, file);
+            written.incrementAndGet();
+            pending.remove(file, write);
+            write.future.complete(file);
+        } catch (IOException | RuntimeException ex) {
+            failed.incrementAndGet();
+            System.err.println("Error writing image " + file + ": " + ex.getMessage());
+            pending.remove(file, write);
+            write.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Returns the image being written to a file.
+     *
+     * @param file the file
+     * @return the image, or null if no write to the file is pending
+     */
+    public BufferedImage pending(File file) {
+        Write write = pending.get(file);
+        return write != null ? write.image : null;
+    }
+
+    /**
+     * Returns the future completed once a file is written.
+     *
+     * @param file the file
+     * @return the future of the pending write, or a completed future if no
+     * write to the file is pending
+     */
+    public CompletableFuture<File> written(File file) {
+        Write write = pending.get(file);
+        return write != null ? write.future : CompletableFuture.completedFuture(file);
+    }
+
+    /**
+     * Waits until every write requested so far is finished.
+     *
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        for (Write write : pending.values()) {
+            try {
+                write.future.join();
+            } catch (RuntimeException ex) {
+                // already reported by the writer thread
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting writes and waits for the pending ones to finish.
+     *
+     * @param timeoutSeconds the maximum seconds to wait
+     */
+    public void shutdown(long timeoutSeconds) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutSeconds, TimeUnit.SECONDS)) {
+                System.err.println("Image writer: " + pending.size() + " images not written before exit.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns a summary of the writes so far.
+     *
+     * @return the number of files written, deduplicated, failed and pending
+     */
+    public String getStatistics() {
+        return String.format("%d written, %d deduplicated, %d failed, %d pending (compression level %d)",
+                written.get(), deduplicated.get(), failed.get(), pending.size(), compressionLevel);
+    }
+
+    /**
+     * Encodes an image as PNG with the current compression level, through a
+     * temporary file in the same directory.
+     */
+    private void encode(BufferedImage image, File file) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        Files.createDirectories(directory.toPath());
+        Iterator<ImageWriter> writers = ImageIO.getImageWriters(ImageTypeSpecifier.createFromRenderedImage(image), "png");
+        if (!writers.hasNext()) {
+            throw new IOException("No PNG writer available.");
+        }
+        ImageWriter writer = writers.next();
+        File tmp = File.createTempFile("image", ".tmp", directory);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality((9 - compressionLevel) / 9f);
+            }
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp)) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.dispose();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Hashes the size and the pixels of an image.
+     *
+     * @param image the image
+     * @return the SHA-256 of the image, as hexadecimal
+     */
+    static String contentHash(BufferedImage image) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] row = new int[width];
+        ByteBuffer bytes = ByteBuffer.allocate(width * Integer.BYTES);
+        digest.update(ByteBuffer.allocate(2 * Integer.BYTES).putInt(width).putInt(height).array());
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            bytes.clear();
+            bytes.asIntBuffer().put(row);
+            digest.update(bytes.array());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -0,0 +1,205 @@
+package tfg;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import jmr.db.ListDB;
+
+/**
+ * Base class of the background tasks that add many records to a
+ * {@link ListDB}.
+ *
+ * The records are appended in batches, each one under a single lock on the
+ * database, so the queries running at the same time see whole batches and
+ * are blocked only while a batch is being appended. The progress and the
+ * throughput of the task are shown in a {@link TaskProgressWindow}.
+ *
+ * @author Carlota de la Vega
+ */
+public abstract class IngestionTask extends SwingWorker<Integer, String> {
+
+    /**
+     * Number of records appended to the database at once
+     */
+    public static final int BATCH_SIZE = 32;
+
+    /**
+     * Component used as parent of the error dialogs
+     */
+    private final Component parent;
+
+    /**
+     * Database where the records are added, or null if the task only
+     * produces images
+     */
+    protected final ListDB<BufferedImage> database;
+
+    /**
+     * Extractor computing the descriptors
+     */
+    protected final DescriptorExtractor extractor;
+
+    /**
+     * Window showing the progress
+     */
+    private final TaskProgressWindow window;
+
+    /**
+     * Supplies the journal receiving the appended records, or null if the
+     * database has no journal. It is read under the database lock, so a
+     * journal replaced while the task runs is never written after the switch.
+     */
+    private volatile Supplier<RecordJournal> journal = () -> null;
+
+    /**
+     * Records appended and images that could not be described so far
+     */
+    private volatile int added = 0;
+    private volatile int failed = 0;
+
+    /**
+     * Moment the extraction started, used to compute the throughput
+     */
+    private long start = System.nanoTime();
+
+    /**
+     * Creates a new task. The task starts when {@link #execute} is called.
+     *
+     * @param parent the component used as parent of the error dialogs
+     * @param database the database where the records are added, or null if
+     * the task adds no records
+     * @param extractor the extractor computing the descriptors
+     * @param window the window showing the progress
+     */
+    protected IngestionTask(Component parent, ListDB<BufferedImage> database, DescriptorExtractor extractor, TaskProgressWindow window) {
+        this.parent = parent;
+        this.database = database;
+        this.extractor = extractor;
+        this.window = window;
+        window.startProgress(() -> cancel(true));
+        addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                window.setProgress((Integer) evt.getNewValue());
+            }
+        });
+    }
+
+    /**
+     * Returns the number of records appended so far.
+     *
+     * @return the number of records appended
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * Sets the journal where the appended records are also written. Must be
+     * called before the task is executed.
+     *
+     * @param journal supplies the current journal of the database, or null
+     * if it has none
+     */
+    public void setJournal(Supplier<RecordJournal> journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Restarts the throughput measure, once the task has finished its
+     * preparation.
+     */
+    protected void startClock() {
+        start = System.nanoTime();
+    }
+
+    /**
+     * Counts an image that could not be added.
+     */
+    protected void addFailure() {
+        failed++;
+    }
+
+    /**
+     * Appends a batch of records holding the database lock once, and writes
+     * it to the journal, if any. Nothing is appended once the task is
+     * cancelled, so a database closed meanwhile is left untouched.
+     *
+     * @param batch the records to append
+     * @throws IOException if the records cannot be written to the journal
+     */
+    protected void append(List<ListDB<BufferedImage>.Record> batch) throws IOException {
+        synchronized (database) {
+            if (isCancelled()) {
+                return;
+            }
+            for (ListDB<BufferedImage>.Record r : batch) {
+                database.add(r);
+            }
+            RecordJournal j = journal.get();
+            if (j != null && !batch.isEmpty()) {
+                j.append(batch);
+            }
+        }
+        added += batch.size();
+    }
+
+    /**
+     * Updates the progress bar and the throughput shown in the window.
+     *
+     * @param processed the number of images processed so far
+     * @param total the total number of images, or -1 if it is not known yet;
+     * the progress bar is then indeterminate
+     */
+    protected void report(int processed, int total) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double rate = seconds > 0 ? processed / seconds : 0.0;
+        if (total < 0) {
+            SwingUtilities.invokeLater(() -> window.setIndeterminate());
+            publish(String.format("%d images, %.1f images/s", processed, rate));
+            return;
+        }
+        setProgress(total == 0 ? 100 : (int) (100L * processed / total));
+        publish(String.format("%d/%d images, %.1f images/s", processed, total, rate));
+    }
+
+    /**
+     * Returns the final status of a task that finished normally.
+     *
+     * @return the status shown in the progress window
+     */
+    protected String summary() {
+        String status = "Added " + added + " records";
+        return failed > 0 ? status + " (" + failed + " failed)" : status;
+    }
+
+    @Override
+    protected void process(List<String> chunks) {
+        if (!isCancelled()) {
+            window.setStatus(chunks.get(chunks.size() - 1));
+        }
+    }
+
+    @Override
+    protected void done() {
+        try {
+            get();
+            window.finishProgress(summary());
+            if (database != null) {
+                System.out.println("Added " + added + " images with descriptors: " + database.getDescriptorClasses());
+            }
+        } catch (CancellationException ex) {
+            window.finishProgress("Cancelled (" + added + " records added)");
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Error adding records: " + ex.getMessage());
+            window.finishProgress("Failed (" + added + " records added)");
+            JOptionPane.showMessageDialog(parent, "Failed to add the records to the database.", "Database Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+}
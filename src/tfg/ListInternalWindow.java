@@ -1,10 +1,15 @@
 package tfg;
 
+import java.awt.BorderLayout;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.net.URL;
 import java.util.List;
-import javax.imageio.ImageIO;
+import javax.swing.JButton;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
 import jmr.result.ResultMetadata;
 
 /**
@@ -20,12 +25,100 @@ import jmr.result.ResultMetadata;
  */
 public class ListInternalWindow extends javax.swing.JInternalFrame {
 
+    /**
+     * Panel shown at the bottom of the window while a query is running
+     */
+    private final JPanel progressPanel = new JPanel(new BorderLayout());
+
+    /**
+     * Progress of the running query
+     */
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+
+    /**
+     * Button used to cancel the running query
+     */
+    private final JButton cancelButton = new JButton("Cancel");
+
+    /**
+     * Action executed when the running query is cancelled, or null if no query
+     * is running
+     */
+    private Runnable cancelAction = null;
+
     /**
      * Default constructor. Initializes the UI components and prepares the image
      * list panel.
      */
     public ListInternalWindow() {
         initComponents();
+        initProgressPanel();
+    }
+
+    /**
+     * Builds the progress panel, hidden until a query is started.
+     */
+    private void initProgressPanel() {
+        progressBar.setStringPainted(true);
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+        progressPanel.setVisible(false);
+        getContentPane().add(progressPanel, BorderLayout.PAGE_END);
+
+        cancelButton.addActionListener(evt -> cancelQuery());
+        addInternalFrameListener(new InternalFrameAdapter() {
+            @Override
+            public void internalFrameClosed(InternalFrameEvent e) {
+                cancelQuery();
+            }
+        });
+    }
+
+    /**
+     * Shows the progress panel for a query that is about to start.
+     *
+     * @param cancelAction action executed if the user cancels the query or
+     * closes the window before it finishes
+     */
+    public void startProgress(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+        progressBar.setValue(0);
+        progressBar.setString("Searching...");
+        progressPanel.setVisible(true);
+        revalidate();
+    }
+
+    /**
+     * Updates the progress of the running query.
+     *
+     * @param value the progress, between 0 and 100
+     */
+    public void setProgress(int value) {
+        progressBar.setValue(value);
+        progressBar.setString(value + "%");
+    }
+
+    /**
+     * Hides the progress panel once the query has finished.
+     *
+     * @param status short description of how the query ended
+     */
+    public void finishProgress(String status) {
+        cancelAction = null;
+        progressPanel.setVisible(false);
+        setTitle("Result (" + status + ")");
+        revalidate();
+    }
+
+    /**
+     * Cancels the running query, if any.
+     */
+    private void cancelQuery() {
+        if (cancelAction != null) {
+            Runnable action = cancelAction;
+            cancelAction = null;
+            action.run();
+        }
     }
 
     /**
@@ -61,7 +154,8 @@ public class ListInternalWindow extends javax.swing.JInternalFrame {
     }
 
     /**
-     * Loads an image from a URL and adds it to the list panel with a label.
+     * Loads the thumbnail of an image from a URL, through the default
+     * {@link ThumbnailCache}, and adds it to the list panel with a label.
      *
      * @param imageURL The {@code URL} pointing to the image resource.
      * @param label A {@code String} label describing the image.
@@ -69,7 +163,7 @@ public class ListInternalWindow extends javax.swing.JInternalFrame {
     public void add(URL imageURL, String label) {
         BufferedImage image;
         try {
-            image = ImageIO.read(imageURL);
+            image = ThumbnailCache.getDefault().get(imageURL);
             if (image != null) {
                 imageListPanel.add(image, label);
             }
@@ -0,0 +1,96 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Generates images with the local generation server.
+ *
+ * The server is asked to generate the image, answers with the path where it
+ * stored it, and the image is then downloaded. Both requests go through the
+ * {@link GenerationClient} shared by every local generation, so the
+ * connection to the server is kept alive between prompts.
+ *
+ * @author Carlota de la Vega
+ */
+public class LocalImageGenerator implements ImageGenerator {
+
+    /**
+     * Address of the local generation server
+     */
+    public static final URI DEFAULT_SERVER = URI.create("http://localhost:8000/");
+
+    /**
+     * Time allowed to the server to generate an image
+     */
+    private static final Duration GENERATION_TIMEOUT = Duration.ofMinutes(5);
+
+    /**
+     * Time allowed to download a generated image
+     */
+    private static final Duration DOWNLOAD_TIMEOUT = Duration.ofMinutes(1);
+
+    /**
+     * Address of the generation server
+     */
+    private final URI server;
+
+    /**
+     * Creates a generator using the server at {@link #DEFAULT_SERVER}.
+     */
+    public LocalImageGenerator() {
+        this(DEFAULT_SERVER);
+    }
+
+    /**
+     * Creates a generator using the server at the given address.
+     *
+     * @param server the base address of the generation server
+     */
+    public LocalImageGenerator(URI server) {
+        this.server = server;
+    }
+
+    @Override
+    public BufferedImage generate(String prompt) throws IOException, InterruptedException {
+        GenerationClient client = GenerationClient.forBackend(getName(), HttpClient.Version.HTTP_1_1);
+        JSONObject body = new JSONObject()
+                .put("model_name", "stable")
+                .put("prompt", prompt)
+                .put("num_inference_steps", 10)
+                .put("guidance_scale", 7.5);
+        HttpRequest generation = HttpRequest.newBuilder(server.resolve("images/generate/"))
+                .timeout(GENERATION_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+
+        String path;
+        try {
+            path = new JSONObject(client.sendForString(generation)).getString("image_path");
+        } catch (JSONException ex) {
+            throw new IOException("Unexpected answer from the local generator: " + ex.getMessage(), ex);
+        }
+        String name = path.substring(path.lastIndexOf('/') + 1);
+
+        HttpRequest download = HttpRequest.newBuilder(server.resolve("images/download/"
+                + URLEncoder.encode(name, StandardCharsets.UTF_8).replace("+", "%20")))
+                .timeout(DOWNLOAD_TIMEOUT)
+                .GET()
+                .build();
+        return client.sendForImage(download);
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+}
@@ -1,8 +1,7 @@
 package tfg;
 
 import java.awt.BorderLayout;
-import java.awt.Cursor;
-import java.awt.HeadlessException;
+import java.awt.GridLayout;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
@@ -10,12 +9,23 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.DoubleSupplier;
 import javax.imageio.ImageIO;
 import javax.swing.BoxLayout;
+import javax.swing.JButton;
 import javax.swing.DefaultComboBoxModel;
+import javax.swing.DefaultListModel;
 import javax.swing.JCheckBox;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
@@ -23,15 +33,23 @@ import javax.swing.JFileChooser;
 import javax.swing.JInternalFrame;
 import javax.swing.JLabel;
 import javax.swing.JList;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSpinner;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.JToggleButton;
+import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import jmr.db.ListDB;
 import jmr.descriptor.color.MPEG7ColorStructure;
 import jmr.descriptor.color.MPEG7ScalableColor;
 import jmr.descriptor.color.SingleColorDescriptor;
-import jmr.descriptor.generated.PromptGeneratedImageDescriptor;
-import jmr.descriptor.generated.PromptGeneratedImageDescriptorLocal;
 
 /**
  * Main application window for the image retrieval system using generative AI
@@ -47,20 +65,394 @@ public final class MainWindow extends javax.swing.JFrame {
      */
     public ListDB<BufferedImage> database = null;
 
+    /**
+     * Memory-mapped store the active database was opened from, or null if it
+     * was created in memory or opened from a serialized file. When a store is
+     * open, {@code database} only holds the records added since.
+     */
+    private DescriptorStore store = null;
+
+    /**
+     * Engine used to query the active database
+     */
+    private QueryEngine queryEngine = null;
+
+    /**
+     * Exact engine of the records held in memory: the whole active database,
+     * or the records added since the open store was opened. For an in-memory
+     * database it is a {@link CascadeQueryEngine}, whose descriptor weights
+     * are chosen in the file menu, when the descriptors are supported
+     */
+    private QueryEngine exactEngine = null;
+
+    /**
+     * Approximate index of the active in-memory database, or null if its
+     * descriptors are not supported by {@link FlatIndex} or it was opened
+     * from a store
+     */
+    private HnswIndex approximateIndex = null;
+
+    /**
+     * Product-quantized codes of the open store, or null if no store is open
+     * or they have not been trained yet
+     */
+    private PqIndex compressedIndex = null;
+
+    /**
+     * Insertion of the pending records in the approximate index, or training
+     * of the compressed index, currently running, or null if none
+     */
+    private SwingWorker<?, Void> indexBuilder = null;
+
+    /**
+     * Records inserted in the approximate index each time the database is
+     * locked, so queries and ingestion are not held up while it is built
+     */
+    private static final int INDEX_BATCH = 1000;
+
+    /**
+     * Queries and results per query used to estimate the recall of the
+     * approximate index
+     */
+    private static final int RECALL_SAMPLES = 50;
+    private static final int RECALL_RESULTS = 10;
+
+    /**
+     * File the active database was opened from or last saved to, or null if
+     * it has never been saved
+     */
+    private File databaseFile = null;
+
+    /**
+     * Journal of the records added since the database file was written, or
+     * null if the database has never been saved
+     */
+    private volatile RecordJournal journal = null;
+
+    /**
+     * Records recovered from the journal when the database was opened
+     */
+    private int recoveredRecords = 0;
+
+    /**
+     * Compaction of the journal currently running, or null if none
+     */
+    private SwingWorker<Integer, Void> compaction = null;
+
+    /**
+     * The journal is compacted into the database file once it is larger than
+     * this fraction of the file
+     */
+    private static final int COMPACTION_RATIO = 4;
+
     private static final int WINDOW_OFFSET = 20;
+    private static final int DEFAULT_RESULT_COUNT = 10;
+    private static final int MAX_RESULT_COUNT = 100;
     private boolean programmaticSelection = false;
 
     private String customApiToken = null;
 
+    /**
+     * Storage of the images of the generation history
+     */
+    private final HistoryStore history = new HistoryStore(new File(HistoryStore.DEFAULT_DIRECTORY), HistoryStore.DEFAULT_MEMORY_BYTES);
+
+    /**
+     * Executor running the similarity queries in background
+     */
+    private final QueryExecutor queryExecutor = new QueryExecutor(this);
+
+    /**
+     * Extractor computing the descriptors of the images added to the database
+     */
+    private final DescriptorExtractor extractor = new DescriptorExtractor();
+
+    /**
+     * Ingestion of records currently running, or null if none
+     */
+    private IngestionTask ingestor = null;
+
+    /**
+     * Menu item that indexes a whole directory into the database
+     */
+    private final JMenuItem indexDirectoryMenu = new JMenuItem("Index directory...");
+
+    /**
+     * Queue dispatching the prompts of batch generations
+     */
+    private final GenerationQueue generationQueue = new GenerationQueue(GenerationQueue.DEFAULT_CONCURRENCY);
+
+    /**
+     * Menu item that generates the images of a list of prompts
+     */
+    private final JMenuItem generateBatchMenu = new JMenuItem("Generate prompts...");
+
+    /**
+     * Menu item that searches the history of previous sessions
+     */
+    private final JMenuItem searchHistoryMenu = new JMenuItem("Search history...");
+
+    /**
+     * Menu item that sets the weight of each descriptor in exact queries
+     */
+    private final JMenuItem fusionWeightsMenu = new JMenuItem("Fusion weights...");
+
+    /**
+     * Number of entries of previous sessions restored in the history box
+     */
+    private static final int RESTORED_HISTORY = 20;
+
+    /**
+     * Maximum number of entries shown when searching the history
+     */
+    private static final int MAX_HISTORY_RESULTS = 200;
+
+    /**
+     * Number of results returned by a query, selected in the toolbar
+     */
+    private final JSpinner resultCountSpinner = new JSpinner(
+            new SpinnerNumberModel(DEFAULT_RESULT_COUNT, 1, MAX_RESULT_COUNT, 1));
+
+    /**
+     * Selects the approximate index instead of the exact engine, in the
+     * toolbar
+     */
+    private final JToggleButton approximateToggle = new JToggleButton("Approximate");
+
     /**
      * Initializes the main window UI components and button states.
      */
     public MainWindow() {
         initComponents();
+        initResultCountSpinner();
+        initApproximateToggle();
+        initIndexDirectoryMenu();
+        initGenerateBatchMenu();
+        initSearchHistoryMenu();
+        initFusionWeightsMenu();
+        initHistoryBox();
         setSize(600, 400);
         toggleDatabaseControls(false);
         activateToolTips();
         setSelectedAPI();
+        restoreHistory();
+    }
+
+    /**
+     * Places the result count selector in the toolbar, right after the search
+     * prompt.
+     */
+    private void initResultCountSpinner() {
+        resultCountSpinner.setToolTipText("Number of results to retrieve");
+        resultCountSpinner.setMaximumSize(resultCountSpinner.getPreferredSize());
+        toolBar.add(resultCountSpinner, toolBar.getComponentIndex(promptToSearch) + 1);
+    }
+
+    /**
+     * Places the exact/approximate search toggle in the toolbar, right after
+     * the result count selector.
+     */
+    private void initApproximateToggle() {
+        approximateToggle.setToolTipText("Search with an approximate index (HNSW graph, or compressed codes for a store)"
+                + " instead of comparing every record");
+        approximateToggle.addActionListener(evt -> {
+            selectEngine();
+            updateApproximateIndex();
+        });
+        toolBar.add(approximateToggle, toolBar.getComponentIndex(resultCountSpinner) + 1);
+    }
+
+    /**
+     * Adds the directory indexing item to the file menu, after the items that
+     * open and save images.
+     */
+    private void initIndexDirectoryMenu() {
+        indexDirectoryMenu.setToolTipText("Add every image of a directory to the database");
+        indexDirectoryMenu.addActionListener(evt -> indexDirectory());
+        fileMenu.add(indexDirectoryMenu, fileMenu.getPopupMenu().getComponentIndex(duplicateMenu) + 1);
+    }
+
+    /**
+     * Adds the batch generation item to the file menu, after the directory
+     * indexing item.
+     */
+    private void initGenerateBatchMenu() {
+        generateBatchMenu.setToolTipText("Generate the images of a list of prompts");
+        generateBatchMenu.addActionListener(evt -> generatePromptBatch());
+        fileMenu.add(generateBatchMenu, fileMenu.getPopupMenu().getComponentIndex(indexDirectoryMenu) + 1);
+    }
+
+    /**
+     * Gives the history box and its popup list a fixed cell size, so they do
+     * not measure every item of a long history.
+     */
+    private void initHistoryBox() {
+        historicBox.setPrototypeDisplayValue(new ImagePromptItem(history, "", null, null, null));
+        Object popup = historicBox.getUI().getAccessibleChild(historicBox, 0);
+        if (popup instanceof javax.swing.plaf.basic.ComboPopup comboPopup) {
+            comboPopup.getList().setFixedCellWidth(ImagePromptListRenderer.CELL_WIDTH);
+            comboPopup.getList().setFixedCellHeight(ImagePromptListRenderer.CELL_HEIGHT);
+        }
+    }
+
+    /**
+     * Adds the history search item to the file menu, after the batch
+     * generation item.
+     */
+    private void initSearchHistoryMenu() {
+        searchHistoryMenu.setToolTipText("Find images generated in previous sessions");
+        searchHistoryMenu.addActionListener(evt -> searchHistory());
+        fileMenu.add(searchHistoryMenu, fileMenu.getPopupMenu().getComponentIndex(generateBatchMenu) + 1);
+    }
+
+    /**
+     * Adds the fusion weights item to the file menu, after the history search
+     * item.
+     */
+    private void initFusionWeightsMenu() {
+        fusionWeightsMenu.setToolTipText("Set the weight of each descriptor in exact queries");
+        fusionWeightsMenu.addActionListener(evt -> editFusionWeights());
+        fileMenu.add(fusionWeightsMenu, fileMenu.getPopupMenu().getComponentIndex(searchHistoryMenu) + 1);
+    }
+
+    /**
+     * Lets the user set the weight of each descriptor of the active database.
+     * A weight of 0 leaves the descriptor out of the queries. The weights
+     * apply to the exact engine of an in-memory database; the approximate
+     * index and the stores always weight every descriptor equally.
+     */
+    private void editFusionWeights() {
+        if (!(exactEngine instanceof CascadeQueryEngine cascade) || store != null) {
+            JOptionPane.showMessageDialog(this, "Fusion weights are only available for in-memory databases"
+                    + " with supported descriptors.", "Fusion weights", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        List<Class> descriptors = database.getDescriptorClasses();
+        double[] weights = cascade.getWeights();
+        JSpinner[] spinners = new JSpinner[weights.length];
+        JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+        for (int c = 0; c < weights.length; c++) {
+            spinners[c] = new JSpinner(new SpinnerNumberModel(weights[c], 0.0, 100.0, 0.1));
+            panel.add(new JLabel(descriptors.get(c).getSimpleName()));
+            panel.add(spinners[c]);
+        }
+        int result = JOptionPane.showConfirmDialog(this, panel, "Fusion weights",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+        for (int c = 0; c < weights.length; c++) {
+            weights[c] = ((Number) spinners[c].getValue()).doubleValue();
+        }
+        cascade.setWeights(weights);
+    }
+
+    /**
+     * Reads the persistent history in background and fills the history box
+     * with the most recent entries whose image is still available.
+     */
+    private void restoreHistory() {
+        new SwingWorker<List<ImagePromptItem>, Void>() {
+            @Override
+            protected List<ImagePromptItem> doInBackground() {
+                List<ImagePromptItem> items = new ArrayList<>();
+                for (HistoryIndex.Entry entry : history.getIndex().recent(RESTORED_HISTORY)) {
+                    if (entry.getFile().isFile()) {
+                        try {
+                            items.add(0, history.restore(entry));
+                        } catch (IOException ex) {
+                            System.err.println("Error restoring history image: " + ex.getMessage());
+                        }
+                    }
+                }
+                return items;
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    DefaultComboBoxModel<ImagePromptItem> model = (DefaultComboBoxModel<ImagePromptItem>) historicBox.getModel();
+                    List<ImagePromptItem> items = get();
+                    programmaticSelection = true;
+                    for (int i = 0; i < items.size(); i++) {
+                        model.insertElementAt(items.get(i), i);
+                    }
+                    historicBox.setSelectedItem(null);
+                    programmaticSelection = false;
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error restoring history: " + ex.getMessage());
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Shows a dialog to search the prompts of the persistent history, and
+     * opens the image of the selected entry.
+     */
+    private void searchHistory() {
+        JTextField searchField = new JTextField(30);
+        DefaultListModel<HistoryIndex.Entry> results = new DefaultListModel<>();
+        JList<HistoryIndex.Entry> resultList = new JList<>(results);
+        resultList.setVisibleRowCount(12);
+        Runnable update = () -> {
+            results.clear();
+            results.addAll(history.getIndex().search(searchField.getText(), MAX_HISTORY_RESULTS));
+        };
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                update.run();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                update.run();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                update.run();
+            }
+        });
+        update.run();
+
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.add(searchField, BorderLayout.PAGE_START);
+        panel.add(new JScrollPane(resultList), BorderLayout.CENTER);
+        int result = JOptionPane.showConfirmDialog(this, panel, "Search history (" + history.getIndex().size() + " images)",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        HistoryIndex.Entry entry = resultList.getSelectedValue();
+        if (result != JOptionPane.OK_OPTION || entry == null) {
+            return;
+        }
+        new SwingWorker<ImagePromptItem, Void>() {
+            @Override
+            protected ImagePromptItem doInBackground() throws Exception {
+                return history.restore(entry);
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    ImagePromptItem item = get();
+                    addToHistory(item);
+                    openHistoryItem(item);
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error opening history image: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to save or locate the image.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Returns the number of results selected in the toolbar.
+     *
+     * @return the number of results a query must return
+     */
+    public int getResultCount() {
+        return (Integer) resultCountSpinner.getValue();
     }
 
     public JCheckBoxMenuItem getLocalAPImenu() {
@@ -171,10 +563,14 @@ public final class MainWindow extends javax.swing.JFrame {
     private void toggleDatabaseControls(boolean enabled) {
         this.newDBButton.setEnabled(!enabled);
         this.openDBButton.setEnabled(!enabled);
-        this.closeDBButton.setEnabled(enabled);
-        this.saveDBButton.setEnabled(enabled);
+        this.closeDBButton.setEnabled(enabled && !isCompacting());
+        this.saveDBButton.setEnabled(enabled && !isCompacting());
         this.addRecordDBButton.setEnabled(enabled);
+        this.indexDirectoryMenu.setEnabled(enabled);
         this.searchDBButton.setEnabled(enabled);
+        this.fusionWeightsMenu.setEnabled(enabled && store == null && exactEngine instanceof CascadeQueryEngine);
+        this.resultCountSpinner.setEnabled(enabled);
+        this.approximateToggle.setEnabled(enabled && (store != null || approximateIndex != null));
         this.informationButton.setEnabled(enabled);
     }
 
@@ -198,14 +594,44 @@ public final class MainWindow extends javax.swing.JFrame {
      * combo box. This method creates an {@link ImagePromptItem} combining the
      * image and prompt, appends it to the {@link JComboBox} model used for the
      * history dropdown ({@code historicBox}), and sets it as the currently
-     * selected item.
+     * selected item. The image is saved to the history directory, and only a
+     * thumbnail is kept by the item.
      *
      * @param image the generated {@link BufferedImage} to be added to the
      * history
      * @param prompt the text prompt that was used to generate the image
      */
     public void addToHistory(BufferedImage image, String prompt) {
-        ImagePromptItem item = new ImagePromptItem(image, prompt);
+        addWhenReady(history.add(image, prompt));
+    }
+
+    /**
+     * Adds an image of the generation cache to the history combo box. The
+     * item only keeps a thumbnail and reads the image back from its file when
+     * it is opened; the image is also logged in the persistent history.
+     *
+     * @param generated the generated image and its file
+     * @param prompt the text prompt that was used to generate the image
+     */
+    public void addToHistory(GenerationCache.CachedImage generated, String prompt) {
+        addWhenReady(history.add(generated.getImage(), prompt, generated.getFile(), generated.getBackend()));
+    }
+
+    /**
+     * Adds a history item to the history box once the store has created it
+     * (and its icon) in background.
+     */
+    private void addWhenReady(CompletableFuture<ImagePromptItem> item) {
+        item.whenComplete((created, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex != null) {
+                System.err.println("Error adding image to history: " + ex.getMessage());
+            } else {
+                addToHistory(created);
+            }
+        }));
+    }
+
+    private void addToHistory(ImagePromptItem item) {
         DefaultComboBoxModel<ImagePromptItem> model = (DefaultComboBoxModel<ImagePromptItem>) historicBox.getModel();
         programmaticSelection = true;
         model.addElement(item);
@@ -214,59 +640,524 @@ public final class MainWindow extends javax.swing.JFrame {
     }
 
     /**
-     * Generates an image based on the provided text prompt using the
-     * PromptGeneratedImageDescriptor class.
+     * Returns the generator of the API selected in the menu. Shows a warning
+     * if the online API is selected but no token has been set.
+     *
+     * @return the selected generator, or null if it cannot be used
+     */
+    public ImageGenerator getSelectedGenerator() {
+        if (onlineAPImenu.isSelected()) {
+            if (customApiToken == null || customApiToken.isBlank()) {
+                JOptionPane.showMessageDialog(this, "API token not set.", "Missing Token", JOptionPane.WARNING_MESSAGE);
+                return null;
+            }
+            return new HuggingFaceImageGenerator(customApiToken);
+        }
+        return new LocalImageGenerator();
+    }
+
+    /**
+     * Generates an image from a prompt in background and, once available,
+     * adds it to the history and uses it to query the database. Prompts
+     * already generated are taken from the {@link GenerationCache}. The search
+     * prompt is disabled meanwhile.
      *
      * @param prompt the textual description to be used for image generation
-     * @return a BufferedImage created from the prompt, or null if generation
-     * fails
      */
-    private BufferedImage generateImageFromPrompt(String prompt) {
-        try {
-            if (onlineAPImenu.isSelected()) {
-                if (customApiToken == null || customApiToken.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "API token not set.", "Missing Token", JOptionPane.WARNING_MESSAGE);
-                    return null;
+    private void searchByPrompt(String prompt) {
+        ImageGenerator generator = getSelectedGenerator();
+        if (generator == null) {
+            return;
+        }
+        promptToSearch.setEnabled(false);
+        new SwingWorker<GenerationCache.CachedImage, Void>() {
+            @Override
+            protected GenerationCache.CachedImage doInBackground() throws Exception {
+                return GenerationCache.getDefault().generate(generator, prompt);
+            }
+
+            @Override
+            protected void done() {
+                promptToSearch.setEnabled(true);
+                try {
+                    GenerationCache.CachedImage generated = get();
+                    BufferedImage queryImage = generated.getImage();
+                    addToHistory(generated, prompt);
+                    promptToSearch.setText("");
+                    if (database != null) {
+                        performImageQuery(queryImage);
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error generating image: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to generate image from prompt.", "Generation Error", JOptionPane.ERROR_MESSAGE);
                 }
-                PromptGeneratedImageDescriptor descriptor
-                        = new PromptGeneratedImageDescriptor(prompt, customApiToken);
-                return descriptor.getGeneratedImage();
-            } else {
-                PromptGeneratedImageDescriptorLocal descriptor = new PromptGeneratedImageDescriptorLocal(prompt);
-                return descriptor.getGeneratedImage();
             }
-        } catch (HeadlessException e) {
-            JOptionPane.showMessageDialog(this, "Failed to generate image from prompt.", "Generation Error", JOptionPane.ERROR_MESSAGE);
-            return null;
-        }
+        }.execute();
     }
 
     /**
      * Performs a similarity search in the database using the provided image as
-     * a query. Displays the top results in a new ListInternalWindow.
+     * a query. The results window is shown straight away and filled in by the
+     * {@link QueryExecutor} as the results are loaded.
      *
      * @param queryImage the image to be used as the basis for the similarity
      * query
      */
     private void performImageQuery(BufferedImage queryImage) {
+        ListInternalWindow listWindow = new ListInternalWindow();
+        this.desktop.add(listWindow);
+        listWindow.setVisible(true);
+        queryExecutor.submit(database, queryEngine, queryImage, getResultCount(), listWindow);
+    }
+
+    /**
+     * Opens a memory-mapped store as the active database. Records added
+     * afterwards are kept in memory until the database is saved again. The
+     * compressed codes of the store are loaded from the file saved next to
+     * it, if any; otherwise they are trained when first selected.
+     *
+     * @param file the store file
+     * @throws IOException if the store cannot be opened
+     */
+    private void openStore(File file) throws IOException {
+        closeStore();
+        store = DescriptorStore.open(file);
+        Class<?>[] descriptorClasses = store.getDescriptorClasses().toArray(Class[]::new);
+        database = new ListDB<>(descriptorClasses);
+        cancelIndexBuilder();
+        exactEngine = createEngine(database);
+        approximateIndex = null;
+        compressedIndex = null;
         try {
-            List<ListDB<BufferedImage>.Record> queryResult = database.query(queryImage, 10);
-            ListInternalWindow listWindow = new ListInternalWindow();
+            compressedIndex = PqIndex.load(file, store);
+        } catch (IOException ex) {
+            System.err.println("Error loading compressed index: " + ex.getMessage());
+        }
+        selectEngine();
+    }
+
+    /**
+     * Creates the engines of the active in-memory database: the exact one,
+     * and the approximate index if the descriptors are supported. The exact
+     * engine fuses the descriptors in stages of increasing cost over the flat
+     * index, which the approximate index shares. The graph
+     * of the approximate index is loaded from the file saved next to the
+     * database file, if any; otherwise it is built when it is first selected.
+     *
+     * @param file the file the database was opened from, or null if it is new
+     */
+    private void initEngines(File file) {
+        cancelIndexBuilder();
+        exactEngine = QueryEngine.forDatabase(database);
+        approximateIndex = null;
+        compressedIndex = null;
+        if (exactEngine instanceof CascadeQueryEngine cascade) {
+            FlatIndex flat = cascade.getVectors();
+            try {
+                approximateIndex = file != null ? HnswIndex.load(file, database, flat) : null;
+            } catch (IOException ex) {
+                System.err.println("Error loading approximate index: " + ex.getMessage());
+            }
+            if (approximateIndex == null) {
+                approximateIndex = new HnswIndex(database, flat);
+            }
+        }
+        selectEngine();
+    }
+
+    /**
+     * Makes the engine selected in the toolbar the engine of the active
+     * database. The approximate engine of a store scans its compressed codes,
+     * once trained; the records added to it are always compared exactly.
+     */
+    private void selectEngine() {
+        if (database == null) {
+            return;
+        }
+        boolean approximate = approximateToggle.isSelected();
+        if (store != null) {
+            queryEngine = new StoreQueryEngine(store, approximate && compressedIndex != null ? compressedIndex : store, exactEngine);
+        } else {
+            queryEngine = approximate && approximateIndex != null ? approximateIndex : exactEngine;
+        }
+    }
+
+    /**
+     * Brings the approximate index up to date in background, if it is
+     * selected: inserts the records not yet in the HNSW graph, or trains the
+     * compressed codes of the open store.
+     *
+     * The records are inserted in batches, so queries and ingestion can take
+     * the database lock in between; meanwhile, queries compare the pending
+     * records one by one.
+     */
+    private void updateApproximateIndex() {
+        if (!approximateToggle.isSelected() || (indexBuilder != null && !indexBuilder.isDone())) {
+            return;
+        }
+        if (store != null) {
+            if (compressedIndex == null) {
+                trainCompressedIndex();
+            }
+            return;
+        }
+        HnswIndex index = approximateIndex;
+        if (index == null || index.getPending() == 0) {
+            return;
+        }
+        SwingWorker<Integer, Void> task = new SwingWorker<>() {
+            @Override
+            protected Integer doInBackground() {
+                int inserted = 0;
+                int batch;
+                while (!isCancelled() && (batch = index.insert(INDEX_BATCH)) > 0) {
+                    inserted += batch;
+                }
+                return inserted;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error building approximate index: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to build the approximate index.", "Index Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        };
+        indexBuilder = task;
+        task.execute();
+    }
+
+    /**
+     * Trains in background the compressed codes of the open store, and saves
+     * them next to the store file. Until they are ready, queries scan the
+     * store.
+     */
+    private void trainCompressedIndex() {
+        DescriptorStore trained = store;
+        File file = databaseFile;
+        SwingWorker<PqIndex, Void> task = new SwingWorker<>() {
+            @Override
+            protected PqIndex doInBackground() {
+                PqIndex index = PqIndex.train(trained);
+                if (file != null) {
+                    try {
+                        index.save(file);
+                    } catch (IOException ex) {
+                        System.err.println("Error saving compressed index: " + ex.getMessage());
+                    }
+                }
+                return index;
+            }
 
-            for (ListDB.Record r : queryResult) {
-                if (r.getLocator() != null) {
-                    listWindow.add(r.getLocator(), r.getLocator().getFile());
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    PqIndex index = get();
+                    if (store == trained) {
+                        compressedIndex = index;
+                        selectEngine();
+                    }
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error training compressed index: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to build the approximate index.", "Index Error", JOptionPane.ERROR_MESSAGE);
                 }
             }
+        };
+        indexBuilder = task;
+        task.execute();
+    }
 
-            this.desktop.add(listWindow);
-            listWindow.setVisible(true);
+    /**
+     * Stops the insertion of records in the approximate index, or the
+     * training of the compressed codes, if running.
+     */
+    private void cancelIndexBuilder() {
+        if (indexBuilder != null) {
+            indexBuilder.cancel(true);
+            indexBuilder = null;
+        }
+    }
 
-        } catch (Exception ex) {
-            JOptionPane.showMessageDialog(this, "Failed to perform query", "Query Error", JOptionPane.ERROR_MESSAGE);
+    /**
+     * Saves the approximate index next to a database file that has just been
+     * written. A graph that cannot be saved is only reported, since it can be
+     * built again.
+     *
+     * @param index the approximate index, or null if there is none
+     * @param file the written database file
+     */
+    private static void saveApproximateIndex(HnswIndex index, File file) {
+        if (index == null || index.size() == 0) {
+            return;
+        }
+        try {
+            index.save(file);
+        } catch (IOException ex) {
+            System.err.println("Error saving approximate index: " + ex.getMessage());
         }
     }
 
+    /**
+     * Creates the engine used to query the records added to an open store: a
+     * {@link FlatIndex} if it supports every descriptor of the database, or a
+     * {@link ParallelQueryEngine} otherwise. The stored records are compared
+     * with equal weights, so the added ones are too.
+     *
+     * @param db the database
+     * @return the query engine
+     */
+    private static QueryEngine createEngine(ListDB<BufferedImage> db) {
+        return FlatIndex.supports(db) ? new FlatIndex(db) : new ParallelQueryEngine(db);
+    }
+
+    /**
+     * Closes the active store, if any.
+     */
+    private void closeStore() {
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing store: " + ex.getMessage());
+            }
+            store = null;
+        }
+    }
+
+    /**
+     * Saves the active database as a memory-mapped store. If the database was
+     * opened from a store, the stored records are copied first and the new
+     * file is reopened, so the added records become part of the store.
+     *
+     * @param file the destination file
+     * @throws IOException if the store cannot be written
+     */
+    private void saveStore(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        synchronized (database) {
+            writeStore(tmp, store, database);
+        }
+        replaceStore(tmp, file);
+    }
+
+    /**
+     * Writes the records of a store, if any, followed by the records of a
+     * database to a new store file. The caller must hold the database lock.
+     *
+     * @param file the file to write
+     * @param store the store the database was opened from, or null
+     * @param database the records added to the store, or the whole database
+     * @throws IOException if the store cannot be written
+     */
+    private static void writeStore(File file, DescriptorStore store, ListDB<BufferedImage> database) throws IOException {
+        int total = (store != null ? store.size() : 0) + database.size();
+        try (DescriptorStoreWriter writer = new DescriptorStoreWriter(file, database.getDescriptorClasses(), total)) {
+            for (int i = 0; store != null && i < store.size(); i++) {
+                writer.append(store, i);
+            }
+            for (int i = 0; i < database.size(); i++) {
+                ListDB<BufferedImage>.Record r = database.get(i);
+                writer.append(r, r.getLocator());
+            }
+        }
+    }
+
+    /**
+     * Moves a store written with {@link #writeStore} to its place, reopening
+     * it if a store was open, and starts a new journal for it.
+     *
+     * @param tmp the written store
+     * @param file the destination file
+     * @throws IOException if the store cannot be moved or reopened
+     */
+    private void replaceStore(File tmp, File file) throws IOException {
+        if (store != null) {
+            queryExecutor.cancel();
+            closeStore();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            openStore(file);
+        } else {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        synchronized (database) {
+            startJournal(file);
+        }
+        updateApproximateIndex();
+    }
+
+    /**
+     * Saves the whole active database to a serialized file and starts a new
+     * journal for it.
+     *
+     * @param file the destination file
+     * @throws IOException if the database cannot be written
+     */
+    private void saveDatabase(File file) throws IOException {
+        synchronized (database) {
+            database.save(file);
+            startJournal(file);
+            saveApproximateIndex(approximateIndex, file);
+        }
+    }
+
+    /**
+     * Opens the journal of the database file the active database was just
+     * loaded from, and adds the records it holds to the database.
+     *
+     * @param file the database file
+     */
+    private void openJournal(File file) {
+        databaseFile = file;
+        try {
+            journal = RecordJournal.open(file);
+            if (journal.wasStale()) {
+                System.err.println("Discarded stale journal: " + RecordJournal.fileFor(file));
+            }
+            recoveredRecords = journal.replay(database);
+        } catch (IOException ex) {
+            System.err.println("Error opening journal: " + ex.getMessage());
+            closeJournal();
+            JOptionPane.showMessageDialog(this, "The journal of the database could not be read.\n"
+                    + "Records added from now on are only kept by saving the database with a new name.",
+                    "Journal Error", JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
+    /**
+     * Replaces the journal by an empty one for a database file that has just
+     * been written. The caller must hold the database lock, so no record is
+     * journaled in between.
+     *
+     * @param file the written database file
+     * @throws IOException if the journal cannot be created
+     */
+    private void startJournal(File file) throws IOException {
+        closeJournal();
+        databaseFile = file;
+        journal = RecordJournal.open(file);
+        journal.reset();
+    }
+
+    /**
+     * Closes the journal, if any.
+     */
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing journal: " + ex.getMessage());
+            }
+            journal = null;
+        }
+        databaseFile = null;
+        recoveredRecords = 0;
+    }
+
+    /**
+     * Checks whether the journal has grown enough to be compacted into the
+     * database file.
+     */
+    private boolean shouldCompact() {
+        return journal != null && journal.getEntries() > 0
+                && journal.getSize() > databaseFile.length() / COMPACTION_RATIO;
+    }
+
+    /**
+     * Rewrites the database file with all its records in background, and
+     * empties the journal. While the file is written, the database is
+     * locked, so records are not added in the meantime.
+     *
+     * A store is written in background but swapped on the event dispatch
+     * thread; the swap is skipped if records were added in between or are
+     * being added, and the compaction is tried again on the next save.
+     *
+     * The background task only uses the database, store and journal captured
+     * here; the actions that replace them (saving and closing the database)
+     * are disabled until it finishes.
+     */
+    private void compactJournal() {
+        if (isCompacting()) {
+            return;
+        }
+        ListDB<BufferedImage> db = database;
+        DescriptorStore s = store;
+        RecordJournal j = journal;
+        File file = databaseFile;
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean storeMode = s != null;
+        HnswIndex index = approximateIndex;
+
+        SwingWorker<Integer, Void> task = new SwingWorker<>() {
+            @Override
+            protected Integer doInBackground() throws Exception {
+                synchronized (db) {
+                    if (storeMode) {
+                        writeStore(tmp, s, db);
+                    } else {
+                        db.save(tmp);
+                        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        j.reset();
+                        saveApproximateIndex(index, file);
+                    }
+                    return db.size();
+                }
+            }
+
+            @Override
+            protected void done() {
+                try {
+                    int written = get();
+                    if (storeMode) {
+                        boolean unchanged;
+                        synchronized (db) {
+                            unchanged = db.size() == written;
+                        }
+                        if (journal == j && database == db && store == s && unchanged && !isIngesting()) {
+                            replaceStore(tmp, file);
+                        } else {
+                            Files.deleteIfExists(tmp.toPath());
+                        }
+                    }
+                } catch (InterruptedException | ExecutionException | IOException ex) {
+                    System.err.println("Error compacting journal: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to compact the database journal.", "Save Error", JOptionPane.ERROR_MESSAGE);
+                } finally {
+                    toggleDatabaseControls(database != null);
+                }
+            }
+        };
+        compaction = task;
+        task.execute();
+        toggleDatabaseControls(true);
+    }
+
+    /**
+     * Checks whether a compaction of the journal is running.
+     */
+    private boolean isCompacting() {
+        return compaction != null && !compaction.isDone();
+    }
+
+    /**
+     * Returns the number of records of the active database, including the
+     * ones held by the store it was opened from.
+     *
+     * @return the number of records
+     */
+    private int getRecordCount() {
+        return (store != null ? store.size() : 0) + database.size();
+    }
+
     /**
      * Sets the behavior of the API selection menu items.
      *
@@ -610,12 +1501,15 @@ public final class MainWindow extends javax.swing.JFrame {
             if (!f.getName().toLowerCase().endsWith(".png")) {
                 f = new File(f.getAbsolutePath() + ".png");
             }
-            try {
-                ImageIO.write(img, "png", f);
-                desktop.getSelectedFrame().setTitle(f.getName());
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Failed to save image", "Save Error", JOptionPane.ERROR_MESSAGE);
-            }
+            JInternalFrame frame = desktop.getSelectedFrame();
+            String name = f.getName();
+            ImageWriterService.getDefault().write(img, f).whenComplete((file, ex) -> SwingUtilities.invokeLater(() -> {
+                if (ex != null) {
+                    JOptionPane.showMessageDialog(this, "Failed to save image", "Save Error", JOptionPane.ERROR_MESSAGE);
+                } else if (frame != null) {
+                    frame.setTitle(name);
+                }
+            }));
         }
     }//GEN-LAST:event_saveMenuActionPerformed
 
@@ -672,7 +1566,9 @@ public final class MainWindow extends javax.swing.JFrame {
             }
 
             Class<?>[] descriptorClasses = selected.toArray(Class[]::new);
-            database = new ListDB<>(descriptorClasses);
+                database = new ListDB<>(descriptorClasses);
+            initEngines(null);
+            closeJournal();
             setDataBaseButtonStatus(false);
         }
     }//GEN-LAST:event_newDBButtonActionPerformed
@@ -684,14 +1580,21 @@ public final class MainWindow extends javax.swing.JFrame {
         JFileChooser fileChooser = new JFileChooser();
         fileChooser.setDialogTitle("Open a database");
         fileChooser.setCurrentDirectory(new File("."));
-        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("JMR Database Files", "db"));
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("JMR Database Files", "db", "store"));
 
         int result = fileChooser.showOpenDialog(this);
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                database = ListDB.open(file);
+                try {
+                if (DescriptorStore.isStoreFile(file)) {
+                    openStore(file);
+                } else {
+                    database = ListDB.open(file);
+                    initEngines(file);
+                }
+                openJournal(file);
+                updateApproximateIndex();
                 setDataBaseButtonStatus(false);
             } catch (IOException | ClassNotFoundException ex) {
                 System.err.println("Error opening database: " + ex.getMessage());
@@ -707,13 +1610,29 @@ public final class MainWindow extends javax.swing.JFrame {
         String name = JOptionPane.showInputDialog(this, "Enter a name for the database:", "Save Database", JOptionPane.PLAIN_MESSAGE);
 
         if (name != null && !name.trim().isEmpty()) {
-            if (!name.endsWith(".jmr.db")) {
-                name += ".jmr.db";
+            if (!name.endsWith(".jmr.db") && !name.endsWith(DescriptorStore.EXTENSION)) {
+                name += store != null ? DescriptorStore.EXTENSION : ".jmr.db";
             }
 
             File file = new File(name);
             try {
-                database.save(file);
+                if (journal != null && file.getAbsoluteFile().equals(databaseFile.getAbsoluteFile())) {
+                    // the added records are already in the journal
+                    journal.sync();
+                    if (shouldCompact()) {
+                        compactJournal();
+                    }
+                } else if (DescriptorStore.isStoreFile(file)) {
+                    if (store != null && isIngesting()) {
+                        JOptionPane.showMessageDialog(this, "Wait until the records are added to save the store with a new name.", "Save Database", JOptionPane.WARNING_MESSAGE);
+                    } else {
+                        saveStore(file);
+                    }
+                } else if (store != null) {
+                    JOptionPane.showMessageDialog(this, "A database opened from a store can only be saved as " + DescriptorStore.EXTENSION, "Save Database", JOptionPane.WARNING_MESSAGE);
+                } else {
+                    saveDatabase(file);
+                }
             } catch (IOException ex) {
                 System.err.println("Error saving database: " + ex.getLocalizedMessage());
                 JOptionPane.showMessageDialog(this, "Failed to save the database.", "Save Error", JOptionPane.ERROR_MESSAGE);
@@ -725,34 +1644,210 @@ public final class MainWindow extends javax.swing.JFrame {
      * Closes current database.
      */
     private void closeDBButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_closeDBButtonActionPerformed
-        database.clear();
+        queryExecutor.cancel();
+        if (ingestor != null) {
+            ingestor.cancel(true);
+            ingestor = null;
+        }
+        cancelIndexBuilder();
+        ListDB<BufferedImage> db = database;
+        RecordJournal j = journal;
+        DescriptorStore s = store;
+        journal = null;
+        databaseFile = null;
+        recoveredRecords = 0;
+        store = null;
         database = null;
+        queryEngine = null;
+        exactEngine = null;
+        approximateIndex = null;
+        compressedIndex = null;
         setDataBaseButtonStatus(true);
+
+        // a cancelled scan keeps the database lock until it ends, so the
+        // database is released in background
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                synchronized (db) {
+                    if (j != null) {
+                        try {
+                            j.close();
+                        } catch (IOException ex) {
+                            System.err.println("Error closing journal: " + ex.getMessage());
+                        }
+                    }
+                    db.clear();
+                }
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (IOException ex) {
+                        System.err.println("Error closing store: " + ex.getMessage());
+                    }
+                }
+                return null;
+            }
+        }.execute();
     }//GEN-LAST:event_closeDBButtonActionPerformed
 
     /**
      * Adds records to the database from all internal windows.
      */
     private void addRecordDBButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_addRecordDBButtonActionPerformed
-        if (database == null) {
+        if (database == null || isIngesting()) {
             return;
         }
-        Cursor previous = getCursor();
-        try {
-            setCursor(new Cursor(Cursor.WAIT_CURSOR));
-            for (JInternalFrame vi : desktop.getAllFrames()) {
-                if (vi instanceof InternalWindow iw) {
-                    if (iw.getImage() != null) {
-                        database.add(iw.getImage(), iw.getURL());
-                        System.out.println("Added image: " + iw.getURL() + " with descriptors: " + database.getDescriptorClasses());
-                    }
-                }
+        List<BufferedImage> images = new ArrayList<>();
+        List<URL> locators = new ArrayList<>();
+        for (JInternalFrame vi : desktop.getAllFrames()) {
+            if (vi instanceof InternalWindow iw && iw.getImage() != null) {
+                images.add(iw.getImage());
+                locators.add(iw.getURL());
             }
-        } finally {
-            setCursor(previous);
         }
+        if (images.isEmpty()) {
+            return;
+        }
+
+        TaskProgressWindow progressWindow = new TaskProgressWindow("Adding " + images.size() + " records");
+        startIngestion(new BulkIngestor(this, database, extractor, images, locators, progressWindow), progressWindow);
     }//GEN-LAST:event_addRecordDBButtonActionPerformed
 
+    /**
+     * Asks for a directory and adds every image found in its tree to the
+     * database, skipping the images already indexed.
+     */
+    private void indexDirectory() {
+        if (database == null || isIngesting()) {
+            return;
+        }
+        JFileChooser dlg = new JFileChooser();
+        dlg.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (dlg.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File dir = dlg.getSelectedFile();
+        TaskProgressWindow progressWindow = new TaskProgressWindow("Indexing " + dir.getName());
+        startIngestion(new DirectoryIndexer(this, database, extractor, dir.toPath(), indexedLocators(), progressWindow), progressWindow);
+    }
+
+    /**
+     * Asks for a list of prompts, one per line, and generates their images in
+     * background through the generation queue. The images are added to the
+     * history and, if selected, to the database.
+     */
+    private void generatePromptBatch() {
+        JTextArea promptsArea = new JTextArea(10, 40);
+        JButton loadButton = new JButton("Load from file...");
+        loadButton.addActionListener(e -> {
+            JFileChooser dlg = new JFileChooser();
+            if (dlg.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                try {
+                    promptsArea.setText(Files.readString(dlg.getSelectedFile().toPath(), StandardCharsets.UTF_8));
+                } catch (IOException ex) {
+                    System.err.println("Error reading prompts: " + ex.getMessage());
+                    JOptionPane.showMessageDialog(this, "Failed to read the prompts file.", "File Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        });
+        JSpinner concurrencySpinner = new JSpinner(new SpinnerNumberModel(generationQueue.getConcurrency(), 1, 16, 1));
+        JCheckBox addToDatabase = new JCheckBox("Add the images to the database");
+        addToDatabase.setEnabled(database != null && !isIngesting());
+
+        JPanel options = new JPanel();
+        options.add(loadButton);
+        options.add(new JLabel("Concurrent requests:"));
+        options.add(concurrencySpinner);
+        options.add(addToDatabase);
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.add(new JLabel("Prompts, one per line:"), BorderLayout.PAGE_START);
+        panel.add(new JScrollPane(promptsArea), BorderLayout.CENTER);
+        panel.add(options, BorderLayout.PAGE_END);
+
+        int result = JOptionPane.showConfirmDialog(this, panel, "Generate prompts", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+        List<String> prompts = List.of(promptsArea.getText().split("\\R"));
+        if (prompts.stream().allMatch(String::isBlank)) {
+            return;
+        }
+        ImageGenerator generator = getSelectedGenerator();
+        if (generator == null) {
+            return;
+        }
+        generationQueue.setConcurrency((Integer) concurrencySpinner.getValue());
+
+        TaskProgressWindow progressWindow = new TaskProgressWindow("Generating prompts");
+        if (addToDatabase.isSelected() && database != null && !isIngesting()) {
+            startIngestion(new BatchGenerationTask(this, database, extractor, generationQueue, generator, prompts,
+                    indexedLocators(), this::addToHistory, progressWindow), progressWindow);
+        } else {
+            BatchGenerationTask task = new BatchGenerationTask(this, null, extractor, generationQueue, generator, prompts,
+                    Set.of(), this::addToHistory, progressWindow);
+            desktop.add(progressWindow);
+            progressWindow.setVisible(true);
+            task.execute();
+        }
+    }
+
+    /**
+     * Returns the locators of the records of the active database, including
+     * the ones of the open store.
+     *
+     * @return the locators, as strings
+     */
+    private Set<String> indexedLocators() {
+        Set<String> locators = new HashSet<>();
+        if (store != null) {
+            for (int i = 0; i < store.size(); i++) {
+                URL locator = store.getLocator(i);
+                if (locator != null) {
+                    locators.add(locator.toString());
+                }
+            }
+        }
+        synchronized (database) {
+            for (int i = 0; i < database.size(); i++) {
+                URL locator = database.get(i).getLocator();
+                if (locator != null) {
+                    locators.add(locator.toString());
+                }
+            }
+        }
+        return locators;
+    }
+
+    private boolean isIngesting() {
+        return ingestor != null && !ingestor.isDone();
+    }
+
+    /**
+     * Shows the progress window of an ingestion task and runs it. The controls
+     * that add records are disabled until the task finishes.
+     *
+     * @param task the task to run
+     * @param progressWindow the window showing its progress
+     */
+    private void startIngestion(IngestionTask task, TaskProgressWindow progressWindow) {
+        desktop.add(progressWindow);
+        progressWindow.setVisible(true);
+        task.setJournal(() -> journal);
+        task.addPropertyChangeListener(e -> {
+            if (task.isDone() && ingestor == task) {
+                ingestor = null;
+                addRecordDBButton.setEnabled(database != null);
+                indexDirectoryMenu.setEnabled(database != null);
+                updateApproximateIndex();
+            }
+        });
+        ingestor = task;
+        addRecordDBButton.setEnabled(false);
+        indexDirectoryMenu.setEnabled(false);
+        task.execute();
+    }
+
     /**
      * Queries the database using either: - the currently selected image, or - a
      * text prompt (entered in promptToSearch) to generate an image. Displays
@@ -763,25 +1858,16 @@ public final class MainWindow extends javax.swing.JFrame {
             return;
         }
 
-        BufferedImage queryImage;
         String prompt = promptToSearch.getText().trim();
 
         if (!prompt.isEmpty()) {
-            queryImage = generateImageFromPrompt(prompt);
-            if (queryImage == null) {
-                return;
-            }
-
-            addToHistory(queryImage, prompt);
-            promptToSearch.setText("");
+            searchByPrompt(prompt);
         } else {
-            queryImage = getSelectedImage();
-            if (queryImage == null) {
-                return;
+            BufferedImage queryImage = getSelectedImage();
+            if (queryImage != null) {
+                performImageQuery(queryImage);
             }
         }
-
-        performImageQuery(queryImage);
     }//GEN-LAST:event_searchDBButtonActionPerformed
 
     /**
@@ -795,15 +1881,78 @@ public final class MainWindow extends javax.swing.JFrame {
 
         StringBuilder info = new StringBuilder();
         info.append("Database Information:\n\n");
-        info.append("Number of records: ").append(database.size()).append("\n");
+        info.append("Number of records: ").append(getRecordCount()).append("\n");
+        info.append("Format: ").append(store != null ? "memory-mapped store" : "in memory").append("\n");
+        if (queryEngine instanceof FlatIndex flat) {
+            info.append("Query engine: flat index (").append(flat.getUsedBytes() / 1024).append(" KB)\n");
+        } else if (queryEngine instanceof CascadeQueryEngine cascade) {
+            info.append("Query engine: cascade over flat index (").append(cascade.getVectors().getUsedBytes() / 1024)
+                    .append(" KB), weights ").append(Arrays.toString(cascade.getWeights())).append("\n");
+            info.append("Cascade: ").append(cascade.getStatistics()).append("\n");
+        } else if (queryEngine instanceof HnswIndex) {
+            info.append("Query engine: approximate index\n");
+        } else if (store != null) {
+            info.append("Query engine: ").append(approximateToggle.isSelected() && compressedIndex != null
+                    ? "compressed store" : "store").append("\n");
+        } else if (queryEngine != null) {
+            info.append("Query engine: ").append(queryEngine.getClass().getSimpleName()).append("\n");
+        }
+        if (journal != null) {
+            info.append("Journal: ").append(journal.getEntries()).append(" records pending compaction");
+            if (recoveredRecords > 0) {
+                info.append(", ").append(recoveredRecords).append(" recovered when the database was opened");
+            }
+            info.append("\n");
+        }
 
         List<Class> descriptors = database.getDescriptorClasses();
         info.append("Descriptors used:\n");
         for (Class c : descriptors) {
             info.append(" - ").append(c.getSimpleName()).append("\n");
         }
+        info.append("Query descriptor cache: ").append(QueryDescriptorCache.getDefault().getStatistics()).append("\n");
+        info.append("Thumbnail cache: ").append(ThumbnailCache.getDefault().getStatistics()).append("\n");
+        info.append("Generation cache: ").append(GenerationCache.getDefault().getStatistics()).append("\n");
+        info.append("Image writer: ").append(ImageWriterService.getDefault().getStatistics()).append("\n");
+
+        HnswIndex index = approximateIndex;
+        PqIndex codes = compressedIndex;
+        // the graph is built over unweighted distances, so it is compared with
+        // the flat index rather than with the weighted cascade
+        QueryEngine exact = exactEngine instanceof CascadeQueryEngine cascade ? cascade.getVectors() : exactEngine;
+        DoubleSupplier recall;
+        if (store != null && codes != null) {
+            info.append("Compressed index: ").append(codes.getStatistics()).append("\n");
+            recall = () -> codes.recall(RECALL_SAMPLES, RECALL_RESULTS);
+        } else if (store == null && index != null && index.size() > 0) {
+            info.append("Approximate index: ").append(index.getStatistics()).append("\n");
+            recall = () -> index.recall(exact, RECALL_SAMPLES, RECALL_RESULTS);
+        } else {
+            JOptionPane.showMessageDialog(this, info.toString(), "Database Info", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        // the recall compares sample queries with an exact scan, which can
+        // take a while on a large database
+        java.awt.Cursor cursor = this.getCursor();
+        setCursor(new java.awt.Cursor(java.awt.Cursor.WAIT_CURSOR));
+        new SwingWorker<Double, Void>() {
+            @Override
+            protected Double doInBackground() {
+                return recall.getAsDouble();
+            }
 
-        JOptionPane.showMessageDialog(this, info.toString(), "Database Info", JOptionPane.INFORMATION_MESSAGE);
+            @Override
+            protected void done() {
+                setCursor(cursor);
+                try {
+                    info.append(String.format("Approximate recall@%d vs exact: %.3f%n", RECALL_RESULTS, get()));
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Error measuring recall: " + ex.getMessage());
+                    info.append("Approximate recall: unavailable\n");
+                }
+                JOptionPane.showMessageDialog(MainWindow.this, info.toString(), "Database Info", JOptionPane.INFORMATION_MESSAGE);
+            }
+        }.execute();
     }//GEN-LAST:event_informationButtonActionPerformed
 
     private void botonSingleColorActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_botonSingleColorActionPerformed
@@ -829,27 +1978,44 @@ public final class MainWindow extends javax.swing.JFrame {
         }
 
         ImagePromptItem selected = (ImagePromptItem) historicBox.getSelectedItem();
-        if (selected != null && selected.getImage() != null) {
-            try {
-                String prompt = selected.getPrompt();
-                BufferedImage img = selected.getImage();
-
-                String safePrompt = prompt.replaceAll("\\s+", "_").replaceAll("[^a-zA-Z0-9_]", "");
-                File outFile = new File("generated_images/" + safePrompt + "_" + java.util.UUID.randomUUID() + ".png");
-                outFile.getParentFile().mkdirs();
-                javax.imageio.ImageIO.write(img, "png", outFile);
-
-                URL fileURL = outFile.toURI().toURL();
+        if (selected != null) {
+            openHistoryItem(selected);
+        }
+    }//GEN-LAST:event_historicBoxActionPerformed
 
-                InternalWindow vi = new InternalWindow(this, img, fileURL);
-                vi.setTitle("From history: " + prompt);
-                this.showInternalWindow(vi);
+    /**
+     * Shows the image of a history item in a new window, using its file as
+     * locator.
+     *
+     * @param selected the history item
+     */
+    private void openHistoryItem(ImagePromptItem selected) {
+        // the image may have to be read back from its file
+        new SwingWorker<BufferedImage, Void>() {
+            @Override
+            protected BufferedImage doInBackground() throws Exception {
+                return selected.getImage();
+            }
 
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to save or locate the image.", "Error", JOptionPane.ERROR_MESSAGE);
+            @Override
+            protected void done() {
+                try {
+                    BufferedImage img = get();
+                    if (img == null) {
+                        throw new IOException("Unsupported image file " + selected.getFile());
+                    }
+                    URL fileURL = selected.getFile().toURI().toURL();
+
+                    InternalWindow vi = new InternalWindow(MainWindow.this, img, fileURL);
+                    vi.setTitle("From history: " + selected.getPrompt());
+                    showInternalWindow(vi);
+                } catch (InterruptedException | ExecutionException | IOException e) {
+                    System.err.println("Error opening history image: " + e.getMessage());
+                    JOptionPane.showMessageDialog(MainWindow.this, "Failed to save or locate the image.", "Error", JOptionPane.ERROR_MESSAGE);
+                }
             }
-        }
-    }//GEN-LAST:event_historicBoxActionPerformed
+        }.execute();
+    }
 
     private void duplicateMenuActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_duplicateMenuActionPerformed
         InternalWindow selected = (InternalWindow) desktop.getSelectedFrame();
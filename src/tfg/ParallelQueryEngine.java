@@ -0,0 +1,137 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import jmr.db.ListDB;
+
+/**
+ * Exact query engine that scans a {@link ListDB} in parallel.
+ *
+ * The records are split into shards processed by a {@link ForkJoinPool}. Each
+ * shard computes the distances of its records to the query and keeps its k best
+ * entries in a {@link TopKHeap}; the heaps are merged as the shards join. The
+ * ranking is the same as the one of {@link ListDB#query(ListDB.Record, int)},
+ * including the order of records at the same distance.
+ *
+ * Databases that fit in a single shard are delegated to a {@link TopKQuery},
+ * avoiding the fork/join overhead.
+ *
+ * @author Carlota de la Vega
+ */
+public class ParallelQueryEngine implements QueryEngine {
+
+    /**
+     * Number of records below which a shard is scanned sequentially
+     */
+    private static final int SHARD_SIZE = 1024;
+
+    /**
+     * Database to be queried
+     */
+    private final ListDB<BufferedImage> database;
+
+    /**
+     * Pool running the shards
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Engine used for databases that fit in a single shard
+     */
+    private final TopKQuery sequential;
+
+    /**
+     * Creates an engine that runs on the common fork/join pool.
+     *
+     * @param database the database to be queried
+     */
+    public ParallelQueryEngine(ListDB<BufferedImage> database) {
+        this(database, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates an engine that runs on the given pool.
+     *
+     * @param database the database to be queried
+     * @param pool the pool running the shards
+     */
+    public ParallelQueryEngine(ListDB<BufferedImage> database, ForkJoinPool pool) {
+        this.database = database;
+        this.pool = pool;
+        this.sequential = new TopKQuery(database);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The database monitor is held during the scan, so records cannot be
+     * added while it is running.
+     */
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (!query.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        synchronized (database) {
+            int n = database.size();
+            if (n <= SHARD_SIZE) {
+                return sequential.query(query, k);
+            }
+            int capacity = Math.min(k, n);
+            if (capacity <= 0) {
+                return new ArrayList<>();
+            }
+            TopKHeap heap = pool.invoke(new ShardTask(query, 0, n, capacity));
+            heap.sort();
+
+            List<QueryResult> results = new ArrayList<>(heap.size());
+            for (int i = 0; i < heap.size(); i++) {
+                int index = heap.getIndex(i);
+                results.add(new QueryResult(index, heap.getDistance(i), database.get(index).getLocator()));
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Scans the records in [from, to), splitting the range while it is larger
+     * than {@link #SHARD_SIZE}.
+     */
+    private final class ShardTask extends RecursiveTask<TopKHeap> {
+
+        private final ListDB<BufferedImage>.Record query;
+        private final int from;
+        private final int to;
+        private final int k;
+
+        ShardTask(ListDB<BufferedImage>.Record query, int from, int to, int k) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= SHARD_SIZE) {
+                TopKHeap heap = new TopKHeap(k);
+                for (int i = from; i < to; i++) {
+                    Double distance = query.compare(database.get(i));
+                    heap.offer(distance, i);
+                }
+                return heap;
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask left = new ShardTask(query, from, middle, k);
+            ShardTask right = new ShardTask(query, middle, to, k);
+            right.fork();
+            TopKHeap heap = left.compute();
+            heap.merge(right.join());
+            return heap;
+        }
+    }
+}
@@ -0,0 +1,725 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import jmr.db.ListDB;
+
+/**
+ * Approximate query engine over product-quantized codes of the records of a
+ * {@link DescriptorStore}.
+ *
+ * The values of each column are split in subspaces of a few values, and each
+ * subspace is replaced by the index of the nearest of {@value #CENTROIDS}
+ * centroids, so a record takes one byte per subspace on the heap, e.g. 65
+ * bytes for the three descriptors of the application instead of more than
+ * 2 KB as descriptor objects. The full values stay in the memory-mapped
+ * store, out of the heap.
+ *
+ * The centroids (the codebooks) are trained with k-medians on a sample of the
+ * records: the distances of the MPEG-7 histograms are L1 distances, which the
+ * median minimizes, and which are the sum of the distances of the subspaces.
+ * Columns whose distance is not L1 (see {@link DescriptorColumn#l1Scale}) are
+ * quantized as a single subspace with k-means.
+ *
+ * A query computes once the distance from its values to every centroid (the
+ * asymmetric distance tables), so the approximate distance of a record is a
+ * few table lookups. The {@code rerank} times k records nearest by that
+ * distance are then compared exactly against the store, and the k nearest are
+ * returned with their exact distances.
+ *
+ * The codes can be saved next to the store file and loaded again with it; a
+ * store is never modified, so a code file is only stale if the store was
+ * replaced, which its recorded size and modification time reveal.
+ *
+ * @author Carlota de la Vega
+ */
+public class PqIndex implements QueryEngine {
+
+    /**
+     * Extension appended to the store file name to get the code file
+     */
+    public static final String EXTENSION = ".pq";
+
+    /**
+     * Values per subspace of the L1 columns
+     */
+    public static final int DEFAULT_SUBSPACE_SIZE = 8;
+
+    /**
+     * Records used to train the codebooks
+     */
+    public static final int DEFAULT_TRAINING_SAMPLES = 8192;
+
+    /**
+     * Candidates re-ranked exactly per result requested
+     */
+    public static final int DEFAULT_RERANK = 20;
+
+    /**
+     * Centroids per subspace, so a code fits in a byte
+     */
+    static final int CENTROIDS = 256;
+
+    /**
+     * Iterations of the training
+     */
+    private static final int ITERATIONS = 10;
+
+    /**
+     * Number of records below which a shard is encoded or scanned
+     * sequentially
+     */
+    private static final int SHARD_SIZE = 65536;
+
+    /**
+     * Identifies a code file ("JMRP")
+     */
+    private static final int MAGIC = 0x4A4D5250;
+
+    /**
+     * Version of the code file format
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Seed of the training sample and of the initial centroids
+     */
+    private static final long SEED = 0x50514944L;
+
+    /**
+     * Store holding the full values
+     */
+    private final DescriptorStore store;
+
+    private final int size;
+
+    /**
+     * Kind of each column, and the factor of its L1 distance; 0 if the
+     * distance is not L1, and the column is quantized as a single subspace
+     */
+    private final DescriptorColumn[] kinds;
+    private final double[] scales;
+
+    /**
+     * Position of the first value of each subspace of each column, followed
+     * by the stride of the column
+     */
+    private final int[][] bounds;
+
+    /**
+     * Centroids of each subspace of each column, one after another
+     */
+    private final float[][][] centroids;
+
+    /**
+     * Codes of each column, one byte per subspace of each record
+     */
+    private final byte[][] codes;
+
+    private int rerank = DEFAULT_RERANK;
+
+    private PqIndex(DescriptorStore store, int[][] bounds, float[][][] centroids, byte[][] codes) {
+        this.store = store;
+        this.size = store.size();
+        this.bounds = bounds;
+        this.centroids = centroids;
+        this.codes = codes;
+        kinds = new DescriptorColumn[bounds.length];
+        scales = new double[bounds.length];
+        for (int c = 0; c < kinds.length; c++) {
+            kinds[c] = store.getColumnKind(c);
+            scales[c] = kinds[c].l1Scale(bounds[c][bounds[c].length - 1]);
+        }
+    }
+
+    /**
+     * Trains codebooks on a store with the default parameters and encodes
+     * its records.
+     *
+     * @param store the store
+     * @return the index
+     */
+    public static PqIndex train(DescriptorStore store) {
+        return train(store, DEFAULT_SUBSPACE_SIZE, DEFAULT_TRAINING_SAMPLES);
+    }
+
+    /**
+     * Trains codebooks on a sample of the records of a store and encodes all
+     * of them. Both steps run on the common fork/join pool.
+     *
+     * @param store the store
+     * @param subspaceSize the values per subspace of the L1 columns
+     * @param samples the number of records used to train the codebooks
+     * @return the index
+     * @throws IllegalArgumentException if a parameter is out of range, or the
+     * codes of a column would not fit in an array
+     */
+    public static PqIndex train(DescriptorStore store, int subspaceSize, int samples) {
+        if (subspaceSize < 1 || samples < 1) {
+            throw new IllegalArgumentException("Invalid quantization parameters: subspaceSize=" + subspaceSize
+                    + ", samples=" + samples);
+        }
+        int columns = store.getStrides().length;
+        int[] strides = store.getStrides();
+        int[][] bounds = new int[columns][];
+        for (int c = 0; c < columns; c++) {
+            int width = store.getColumnKind(c).l1Scale(strides[c]) > 0 ? subspaceSize : Math.max(1, strides[c]);
+            int count = Math.max(1, (strides[c] + width - 1) / width);
+            bounds[c] = new int[count + 1];
+            for (int s = 0; s <= count; s++) {
+                bounds[c][s] = Math.min(s * width, strides[c]);
+            }
+            if ((long) store.size() * count > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too many records to quantize: " + store.size());
+            }
+        }
+
+        int[] sample = sample(store.size(), samples);
+        float[][][] centroids = new float[columns][][];
+        List<RecursiveAction> jobs = new ArrayList<>();
+        for (int c = 0; c < columns; c++) {
+            centroids[c] = new float[bounds[c].length - 1][];
+            float[][] values = new float[sample.length][];
+            for (int i = 0; i < sample.length; i++) {
+                values[i] = toFloat(store.values(c, sample[i]));
+            }
+            for (int s = 0; s < centroids[c].length; s++) {
+                int column = c;
+                int subspace = s;
+                boolean l1 = store.getColumnKind(c).l1Scale(strides[c]) > 0;
+                jobs.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        centroids[column][subspace] = kMeans(values, bounds[column][subspace], bounds[column][subspace + 1],
+                                l1, store.getColumnKind(column), SEED + 31 * column + subspace);
+                    }
+                });
+            }
+        }
+        ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(jobs);
+            }
+        });
+
+        byte[][] codes = new byte[columns][];
+        for (int c = 0; c < columns; c++) {
+            codes[c] = new byte[store.size() * (bounds[c].length - 1)];
+        }
+        PqIndex index = new PqIndex(store, bounds, centroids, codes);
+        ForkJoinPool.commonPool().invoke(index.new EncodeTask(0, store.size()));
+        return index;
+    }
+
+    /**
+     * Returns the code file of a store file.
+     *
+     * @param base the store file
+     * @return the code file
+     */
+    public static File fileFor(File base) {
+        return new File(base.getPath() + EXTENSION);
+    }
+
+    /**
+     * Returns the number of records encoded.
+     *
+     * @return the number of records
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the bytes of the codes of a record.
+     *
+     * @return the size of the codes of a record, in bytes
+     */
+    public int getBytesPerRecord() {
+        int bytes = 0;
+        for (int[] b : bounds) {
+            bytes += b.length - 1;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes used by the codes and the codebooks.
+     *
+     * @return the size of the index, in bytes
+     */
+    public long getUsedBytes() {
+        long bytes = 0;
+        for (int c = 0; c < codes.length; c++) {
+            bytes += codes[c].length;
+            for (float[] centroid : centroids[c]) {
+                bytes += (long) centroid.length * Float.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    public synchronized int getRerank() {
+        return rerank;
+    }
+
+    /**
+     * Sets the candidates re-ranked exactly per result requested. More
+     * candidates give better recall for slower queries.
+     *
+     * @param rerank the candidates per result, at least 1
+     */
+    public synchronized void setRerank(int rerank) {
+        if (rerank < 1) {
+            throw new IllegalArgumentException("Invalid rerank: " + rerank);
+        }
+        this.rerank = rerank;
+    }
+
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (size == 0) {
+            return new ArrayList<>();
+        }
+        return query(store.queryValues(query), k);
+    }
+
+    /**
+     * Finds the records closest to the given query values.
+     *
+     * @param query the query values, as returned by
+     * {@link DescriptorStore#queryValues}
+     * @param k the maximum number of results to return
+     * @return the closest records, sorted by ascending exact distance
+     */
+    public List<QueryResult> query(int[][] query, int k) {
+        int capacity = Math.max(0, Math.min(k, size));
+        if (capacity == 0) {
+            return new ArrayList<>();
+        }
+        float[][] tables = tables(query);
+        int candidates = (int) Math.min(size, (long) capacity * getRerank());
+        TopKHeap approximate = size <= SHARD_SIZE
+                ? scan(tables, 0, size, new TopKHeap(candidates))
+                : ForkJoinPool.commonPool().invoke(new ScanTask(tables, 0, size, candidates));
+
+        approximate.sort();
+        TopKHeap best = new TopKHeap(capacity);
+        for (int i = 0; i < approximate.size(); i++) {
+            int index = approximate.getIndex(i);
+            best.offer(store.distance(query, index), index);
+        }
+        best.sort();
+        List<QueryResult> results = new ArrayList<>(best.size());
+        for (int i = 0; i < best.size(); i++) {
+            int index = best.getIndex(i);
+            results.add(new QueryResult(index, best.getDistance(i), store.getLocator(index)));
+        }
+        return results;
+    }
+
+    /**
+     * Estimates the recall@k of the index: the mean fraction of the k results
+     * of an exact scan of the store also returned by this one. A result at
+     * the same distance as the k-th exact one counts as found, since any of
+     * them is a valid k-th result. The queries are a random sample of the
+     * records of the store.
+     *
+     * @param samples the number of queries
+     * @param k the number of results per query
+     * @return the recall, between 0 and 1; 1 if the store is empty
+     */
+    public double recall(int samples, int k) {
+        if (size == 0) {
+            return 1.0;
+        }
+        double recall = 0;
+        for (int i : sample(size, samples)) {
+            int[][] query = new int[kinds.length][];
+            for (int c = 0; c < kinds.length; c++) {
+                query[c] = store.values(c, i);
+            }
+            List<QueryResult> expected = store.query(query, k);
+            double last = expected.get(expected.size() - 1).getDistance();
+            int hits = 0;
+            for (QueryResult r : query(query, k)) {
+                if (r.getDistance() <= last) {
+                    hits++;
+                }
+            }
+            recall += Math.min(hits, expected.size()) / (double) expected.size();
+        }
+        return recall / Math.min(size, samples);
+    }
+
+    /**
+     * Returns a description of the codes and the parameters.
+     *
+     * @return the statistics
+     */
+    public String getStatistics() {
+        return size + " records, " + getBytesPerRecord() + " bytes per record (" + getUsedBytes() / 1024
+                + " KB), rerank=" + getRerank();
+    }
+
+    /**
+     * Writes the codebooks and the codes next to a store file, through a
+     * temporary file moved into place.
+     *
+     * @param base the store file
+     * @throws IOException if the codes cannot be written
+     */
+    public void save(File base) throws IOException {
+        File file = fileFor(base);
+        File tmp = File.createTempFile("codes", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(base.length());
+                out.writeLong(base.lastModified());
+                out.writeInt(size);
+                out.writeInt(bounds.length);
+                for (int c = 0; c < bounds.length; c++) {
+                    out.writeInt(bounds[c].length);
+                    for (int b : bounds[c]) {
+                        out.writeInt(b);
+                    }
+                    for (float[] centroid : centroids[c]) {
+                        out.writeInt(centroid.length);
+                        for (float v : centroid) {
+                            out.writeFloat(v);
+                        }
+                    }
+                    out.write(codes[c]);
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Loads the codes saved next to a store file.
+     *
+     * @param base the store file
+     * @param store the store opened from that file
+     * @return the index, or null if there is no code file or it was saved for
+     * a different store
+     * @throws IOException if the code file cannot be read or is corrupt
+     */
+    public static PqIndex load(File base, DescriptorStore store) throws IOException {
+        File file = fileFor(base);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a code file: " + file);
+            }
+            if (in.readInt() != VERSION || in.readLong() != base.length() || in.readLong() != base.lastModified()
+                    || in.readInt() != store.size()) {
+                return null;
+            }
+            int[] strides = store.getStrides();
+            int columns = in.readInt();
+            if (columns != strides.length) {
+                return null;
+            }
+            int[][] bounds = new int[columns][];
+            float[][][] centroids = new float[columns][][];
+            byte[][] codes = new byte[columns][];
+            for (int c = 0; c < columns; c++) {
+                bounds[c] = new int[in.readInt()];
+                for (int s = 0; s < bounds[c].length; s++) {
+                    bounds[c][s] = in.readInt();
+                }
+                if (bounds[c].length < 2 || bounds[c][bounds[c].length - 1] != strides[c]) {
+                    return null;
+                }
+                centroids[c] = new float[bounds[c].length - 1][];
+                for (int s = 0; s < centroids[c].length; s++) {
+                    int length = in.readInt();
+                    int width = bounds[c][s + 1] - bounds[c][s];
+                    if (width <= 0 || length % width != 0 || length / width > CENTROIDS) {
+                        throw new IOException("Corrupt code file: " + file);
+                    }
+                    centroids[c][s] = new float[length];
+                    for (int i = 0; i < length; i++) {
+                        centroids[c][s][i] = in.readFloat();
+                    }
+                }
+                codes[c] = new byte[store.size() * centroids[c].length];
+                in.readFully(codes[c]);
+            }
+            return new PqIndex(store, bounds, centroids, codes);
+        }
+    }
+
+    /**
+     * Computes the distance from the query values to every centroid: the L1
+     * sums for the L1 columns, the distance of the column otherwise.
+     */
+    private float[][] tables(int[][] query) {
+        float[][] tables = new float[kinds.length][];
+        for (int c = 0; c < kinds.length; c++) {
+            float[] values = toFloat(query[c]);
+            int subspaces = bounds[c].length - 1;
+            tables[c] = new float[subspaces * CENTROIDS];
+            for (int s = 0; s < subspaces; s++) {
+                int from = bounds[c][s];
+                int width = bounds[c][s + 1] - from;
+                float[] centroid = centroids[c][s];
+                for (int j = 0; j < centroid.length / width; j++) {
+                    tables[c][s * CENTROIDS + j] = scales[c] > 0
+                            ? DescriptorColumn.l1(values, from, centroid, j * width, width)
+                            : (float) kinds[c].distance(values, from, centroid, j * width, width);
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Offers the records in [from, to) to a heap by the square of their
+     * approximate distance, which keeps their order.
+     */
+    private TopKHeap scan(float[][] tables, int from, int to, TopKHeap heap) {
+        for (int i = from; i < to; i++) {
+            double sum = 0.0;
+            for (int c = 0; c < kinds.length; c++) {
+                float[] table = tables[c];
+                byte[] code = codes[c];
+                int subspaces = bounds[c].length - 1;
+                int offset = i * subspaces;
+                float d = 0;
+                for (int s = 0; s < subspaces; s++) {
+                    d += table[s * CENTROIDS + (code[offset + s] & 0xFF)];
+                }
+                double distance = scales[c] > 0 ? d * scales[c] : d;
+                sum += distance * distance;
+            }
+            heap.offer(sum, i);
+        }
+        return heap;
+    }
+
+    /**
+     * Replaces the values of each record in [from, to) by the codes of their
+     * nearest centroids.
+     */
+    private void encode(int from, int to) {
+        for (int i = from; i < to; i++) {
+            for (int c = 0; c < kinds.length; c++) {
+                float[] values = toFloat(store.values(c, i));
+                int subspaces = bounds[c].length - 1;
+                for (int s = 0; s < subspaces; s++) {
+                    int nearest = nearest(values, bounds[c][s], bounds[c][s + 1] - bounds[c][s], centroids[c][s],
+                            scales[c] > 0, kinds[c]);
+                    codes[c][i * subspaces + s] = (byte) nearest;
+                }
+            }
+        }
+    }
+
+    /**
+     * Trains the centroids of one subspace: k-medians for an L1 distance,
+     * k-means otherwise. The initial centroids are distinct random samples;
+     * a centroid left without samples is moved to a random one.
+     */
+    private static float[] kMeans(float[][] values, int from, int to, boolean l1, DescriptorColumn kind, long seed) {
+        int width = to - from;
+        int n = values.length;
+        float[] data = new float[n * width];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(values[i], from, data, i * width, width);
+        }
+        Random random = new Random(seed);
+        int k = Math.min(CENTROIDS, n);
+        float[] centroids = new float[k * width];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+        for (int j = 0; j < k; j++) {
+            System.arraycopy(data, order[j] * width, centroids, j * width, width);
+        }
+
+        int[] assignment = new int[n];
+        int[] counts = new int[k];
+        float[] column = new float[n];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                assignment[i] = nearest(data, i * width, width, centroids, l1, kind);
+                counts[assignment[i]]++;
+            }
+            // members of each centroid, contiguous
+            int[] starts = new int[k + 1];
+            for (int j = 0; j < k; j++) {
+                starts[j + 1] = starts[j] + counts[j];
+            }
+            int[] members = new int[n];
+            int[] next = Arrays.copyOf(starts, k);
+            for (int i = 0; i < n; i++) {
+                members[next[assignment[i]]++] = i;
+            }
+            for (int j = 0; j < k; j++) {
+                int count = counts[j];
+                if (count == 0) {
+                    System.arraycopy(data, random.nextInt(n) * width, centroids, j * width, width);
+                    continue;
+                }
+                for (int e = 0; e < width; e++) {
+                    if (l1) {
+                        for (int m = 0; m < count; m++) {
+                            column[m] = data[members[starts[j] + m] * width + e];
+                        }
+                        Arrays.sort(column, 0, count);
+                        centroids[j * width + e] = column[count / 2];
+                    } else {
+                        double sum = 0;
+                        for (int m = 0; m < count; m++) {
+                            sum += data[members[starts[j] + m] * width + e];
+                        }
+                        centroids[j * width + e] = (float) (sum / count);
+                    }
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Returns the index of the centroid nearest to a subvector; on ties, the
+     * lowest one.
+     */
+    private static int nearest(float[] values, int offset, int width, float[] centroids, boolean l1, DescriptorColumn kind) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < centroids.length / width; j++) {
+            double d = l1
+                    ? DescriptorColumn.l1(values, offset, centroids, j * width, width)
+                    : kind.distance(values, offset, centroids, j * width, width);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns up to count distinct record indices, at random but always the
+     * same for the same arguments; all of them, in order, if there are no
+     * more than count.
+     */
+    private static int[] sample(int size, int count) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        if (size <= count) {
+            return indices;
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(size - i);
+            int t = indices[i];
+            indices[i] = indices[j];
+            indices[j] = t;
+        }
+        int[] sample = Arrays.copyOf(indices, count);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    private static float[] toFloat(int[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = values[i];
+        }
+        return floats;
+    }
+
+    /**
+     * Encodes the records in [from, to), splitting the range while it is
+     * larger than {@link #SHARD_SIZE}.
+     */
+    private final class EncodeTask extends RecursiveAction {
+
+        private final int from;
+        private final int to;
+
+        EncodeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SHARD_SIZE) {
+                encode(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new EncodeTask(from, middle), new EncodeTask(middle, to));
+        }
+    }
+
+    /**
+     * Scans the records in [from, to), splitting the range while it is larger
+     * than {@link #SHARD_SIZE}.
+     */
+    private final class ScanTask extends RecursiveTask<TopKHeap> {
+
+        private final float[][] tables;
+        private final int from;
+        private final int to;
+        private final int k;
+
+        ScanTask(float[][] tables, int from, int to, int k) {
+            this.tables = tables;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= SHARD_SIZE) {
+                return scan(tables, from, to, new TopKHeap(k));
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask right = new ScanTask(tables, middle, to, k);
+            right.fork();
+            TopKHeap heap = new ScanTask(tables, from, middle, k).compute();
+            heap.merge(right.join());
+            return heap;
+        }
+    }
+}
@@ -1,15 +1,18 @@
 package tfg;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.HeadlessException;
 import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import javax.swing.JButton;
 import javax.swing.JInternalFrame;
 import javax.swing.JOptionPane;
-import jmr.descriptor.generated.AbstractPromptImageDescriptor;
-import jmr.descriptor.generated.PromptGeneratedImageDescriptor;
-import jmr.descriptor.generated.PromptGeneratedImageDescriptorLocal;
+import javax.swing.JProgressBar;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
 
 /**
  * This class represents a window that allows the user to input a text prompt,
@@ -17,6 +20,10 @@ import jmr.descriptor.generated.PromptGeneratedImageDescriptorLocal;
  * It integrates into the main application frame and displays the result both in
  * a preview panel and as a new internal image window.
  *
+ * Images are generated in background, so several prompt windows can generate
+ * at the same time without blocking the application. While an image is being
+ * generated, the window shows the elapsed time and a button to cancel it.
+ *
  * A default placeholder image is shown until an image is generated.
  *
  * @author Carlota de la Vega
@@ -27,6 +34,31 @@ public class PromptWindow extends JInternalFrame {
 
     private final MainWindow parent;
 
+    /**
+     * Progress shown while an image is being generated
+     */
+    private final JProgressBar progressBar = new JProgressBar();
+
+    /**
+     * Button used to cancel the running generation
+     */
+    private final JButton cancelButton = new JButton("Cancel");
+
+    /**
+     * Timer refreshing the elapsed time of the running generation
+     */
+    private final Timer elapsedTimer = new Timer(1000, null);
+
+    /**
+     * Generation currently running, or null if none
+     */
+    private GenerationTask generation = null;
+
+    /**
+     * Moment the running generation started
+     */
+    private long startedAt;
+
     /**
      * Creates a new PromptWindow associated with a given parent window. This
      * constructor initializes the GUI components and links the generated images
@@ -38,6 +70,7 @@ public class PromptWindow extends JInternalFrame {
     public PromptWindow(MainWindow parent) {
         this.parent = parent;
         initComponents();
+        initGenerationPanel();
         setPreferredSize(dim);
 
         if (parent != null) {
@@ -81,40 +114,114 @@ public class PromptWindow extends JInternalFrame {
     }
 
     /**
-     * Triggers generation of the descriptor from the prompt text.
+     * Builds the progress bar and the cancel button shown while an image is
+     * being generated.
+     */
+    private void initGenerationPanel() {
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        buttonsPanel.add(progressBar, BorderLayout.PAGE_START);
+        buttonsPanel.add(cancelButton, BorderLayout.EAST);
+
+        cancelButton.addActionListener(evt -> cancelGeneration());
+        elapsedTimer.addActionListener(evt -> updateElapsed());
+        addInternalFrameListener(new InternalFrameAdapter() {
+            @Override
+            public void internalFrameClosed(InternalFrameEvent e) {
+                cancelGeneration();
+            }
+        });
+    }
+
+    /**
+     * Returns whether an image is being generated in this window.
      *
-     * @return A valid descriptor or null if generation failed.
+     * @return true while a generation is running
      */
-    private AbstractPromptImageDescriptor<?> generateDescriptor() {
-        AbstractPromptImageDescriptor<?> descriptor = null;
-        String description = this.textDescription.getText();
+    public boolean isGenerating() {
+        return generation != null && !generation.isDone();
+    }
 
-        if (description.isBlank()) {
-            JOptionPane.showMessageDialog(this, "Please enter a prompt description.", "Missing Input", JOptionPane.WARNING_MESSAGE);
-            return null;
+    /**
+     * Cancels the running generation, if any. The request to the backend is
+     * abandoned and its result discarded.
+     */
+    public void cancelGeneration() {
+        if (isGenerating()) {
+            generation.cancel(true);
         }
+    }
 
-        setCursor(new java.awt.Cursor(java.awt.Cursor.WAIT_CURSOR));
-        try {
-            if (parent.getOnlineAPImenu().isSelected()) {
-                String token = parent.getCustomApiToken();
-                if (token == null || token.isBlank()) {
-                    JOptionPane.showMessageDialog(this, "API token is missing.", "Token Required", JOptionPane.WARNING_MESSAGE);
-                    return null;
-                }
-
-                descriptor = new PromptGeneratedImageDescriptor(description, token);
-            } else {
-                descriptor = new PromptGeneratedImageDescriptorLocal(description);
-            }
+    private void startProgress() {
+        startedAt = System.nanoTime();
+        generateButton.setEnabled(false);
+        progressBar.setIndeterminate(true);
+        progressBar.setString("Generating...");
+        progressBar.setVisible(true);
+        cancelButton.setVisible(true);
+        elapsedTimer.start();
+        revalidate();
+    }
+
+    private void updateElapsed() {
+        long seconds = (System.nanoTime() - startedAt) / 1_000_000_000L;
+        progressBar.setString("Generating... " + seconds + " s");
+    }
 
-        } catch (HeadlessException ex) {
-            JOptionPane.showMessageDialog(this, "Error generating image from prompt.", "Error", JOptionPane.ERROR_MESSAGE);
-        } finally {
-            setCursor(java.awt.Cursor.getDefaultCursor());
+    private void finishProgress() {
+        elapsedTimer.stop();
+        progressBar.setIndeterminate(false);
+        progressBar.setVisible(false);
+        cancelButton.setVisible(false);
+        generateButton.setEnabled(true);
+        revalidate();
+    }
+
+    /**
+     * Background task that generates an image through the
+     * {@link GenerationCache}, which also saves it to the generated images
+     * folder.
+     */
+    private final class GenerationTask extends SwingWorker<GenerationCache.CachedImage, Void> {
+
+        private final ImageGenerator generator;
+        private final String prompt;
+
+        GenerationTask(ImageGenerator generator, String prompt) {
+            this.generator = generator;
+            this.prompt = prompt;
+        }
+
+        @Override
+        protected GenerationCache.CachedImage doInBackground() throws Exception {
+            return GenerationCache.getDefault().generate(generator, prompt);
         }
 
-        return descriptor;
+        @Override
+        protected void done() {
+            if (generation == this) {
+                generation = null;
+            }
+            finishProgress();
+            if (isCancelled()) {
+                return;
+            }
+            try {
+                GenerationCache.CachedImage generated = get();
+                imagePanel.setImage(generated.getImage());
+                imagePanel.repaint();
+
+                parent.addToHistory(generated, prompt);
+
+                InternalWindow vi = new InternalWindow(parent, generated.getImage(), generated.getURL());
+                vi.setTitle("Generated: " + prompt);
+                parent.showInternalWindow(vi);
+            } catch (InterruptedException | ExecutionException | IOException ex) {
+                System.err.println("Error generating image: " + ex.getMessage());
+                JOptionPane.showMessageDialog(PromptWindow.this, "Error generating image from prompt.", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
     }
 
     /**
@@ -189,32 +296,23 @@ public class PromptWindow extends JInternalFrame {
     }// </editor-fold>//GEN-END:initComponents
 
     private void generateButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_generateButtonActionPerformed
-        AbstractPromptImageDescriptor<?> descriptor = generateDescriptor();
-
-        if (descriptor != null && descriptor.getGeneratedImage() != null) {
-            try {
-                BufferedImage img = descriptor.getGeneratedImage();
-                imagePanel.setImage(img);
-                imagePanel.repaint();
-
-                String prompt = this.textDescription.getText();
-                parent.addToHistory(img, prompt);
-
-                String safePrompt = prompt.replaceAll("\\s+", "_").replaceAll("[^a-zA-Z0-9_]", "");
-                File outFile = new File("generated_images/" + safePrompt + "_" + java.util.UUID.randomUUID() + ".png");
-                outFile.getParentFile().mkdirs();
-                javax.imageio.ImageIO.write(img, "png", outFile);
-                java.net.URL fileURL = outFile.toURI().toURL();
-
-                InternalWindow vi = new InternalWindow(parent, img, fileURL);
-                vi.setTitle("Generated: " + prompt);
-                parent.showInternalWindow(vi);
-
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                JOptionPane.showMessageDialog(this, "Error saving or showing generated image.", "IO Error", JOptionPane.ERROR_MESSAGE);
-            }
+        if (isGenerating()) {
+            return;
         }
+        String prompt = this.textDescription.getText();
+        if (prompt.isBlank()) {
+            JOptionPane.showMessageDialog(this, "Please enter a prompt description.", "Missing Input", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        ImageGenerator generator = parent.getSelectedGenerator();
+        if (generator == null) {
+            return;
+        }
+
+        GenerationTask task = new GenerationTask(generator, prompt);
+        generation = task;
+        startProgress();
+        task.execute();
     }//GEN-LAST:event_generateButtonActionPerformed
 
 
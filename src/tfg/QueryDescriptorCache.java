@@ -0,0 +1,160 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import jmr.db.ListDB;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Cache of the descriptors computed for query images, so repeating a query
+ * (e.g. the same prompt, or an image picked again from the history) goes
+ * straight to the database scan.
+ *
+ * Entries are keyed by a hash of the image pixels and by the descriptor
+ * classes of the database, so the same image queried against databases with
+ * different descriptors gets one entry per descriptor set. The hash of each
+ * image is remembered while the image is alive, so querying the same image
+ * object again does not even hash its pixels. The cache keeps a bounded
+ * number of entries, evicting the least recently used ones.
+ *
+ * All methods are thread safe.
+ *
+ * @author Carlota de la Vega
+ */
+public class QueryDescriptorCache {
+
+    /**
+     * Default number of cached descriptor sets
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Maximum number of cached descriptor sets
+     */
+    private final int capacity;
+
+    /**
+     * Cached descriptors, in access order
+     */
+    private final LinkedHashMap<String, List<MediaDescriptor<BufferedImage>>> entries;
+
+    /**
+     * Pixel hash of the images seen recently; entries go away with the images
+     */
+    private final Map<BufferedImage, String> hashes = new WeakHashMap<>();
+
+    /**
+     * Lookups answered from the cache and lookups that computed the
+     * descriptors
+     */
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param capacity the maximum number of cached descriptor sets
+     */
+    public QueryDescriptorCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<MediaDescriptor<BufferedImage>>> eldest) {
+                return size() > QueryDescriptorCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cache shared by the application windows.
+     *
+     * @return the default cache
+     */
+    public static QueryDescriptorCache getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+
+        static final QueryDescriptorCache INSTANCE = new QueryDescriptorCache(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Builds a query record for an image, computing its descriptors only if
+     * they are not cached.
+     *
+     * @param database the database to query
+     * @param image the query image
+     * @return a record with the descriptors of the database
+     */
+    public ListDB<BufferedImage>.Record record(ListDB<BufferedImage> database, BufferedImage image) {
+        List<Class> classes = database.getDescriptorClasses();
+        String key = key(image, classes);
+        List<MediaDescriptor<BufferedImage>> descriptors;
+        synchronized (this) {
+            descriptors = entries.get(key);
+            if (descriptors != null) {
+                hits++;
+            }
+        }
+        if (descriptors == null) {
+            descriptors = DescriptorExtractor.describe(image, classes);
+            synchronized (this) {
+                misses++;
+                entries.put(key, descriptors);
+            }
+        }
+        // the records only read the descriptors, so they can share them
+        return DescriptorExtractor.toRecord(database, new ArrayList<>(descriptors), null);
+    }
+
+    /**
+     * Returns the hit rate of the cache.
+     *
+     * @return the fraction of lookups answered from the cache, between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Returns a summary of the lookups answered so far.
+     *
+     * @return the hit counts and the fill of the cache
+     */
+    public synchronized String getStatistics() {
+        return String.format("hits %d, misses %d (%.0f%% hit rate), %d/%d entries",
+                hits, misses, 100 * getHitRate(), entries.size(), capacity);
+    }
+
+    private String key(BufferedImage image, List<Class> classes) {
+        StringBuilder key = new StringBuilder(hash(image));
+        for (Class c : classes) {
+            key.append(' ').append(c.getName());
+        }
+        return key.toString();
+    }
+
+    /**
+     * Hashes the size and the pixels of an image, reusing the hash computed
+     * for the same image object.
+     */
+    private String hash(BufferedImage image) {
+        synchronized (this) {
+            String hash = hashes.get(image);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        String hash = ImageWriterService.contentHash(image);
+        synchronized (this) {
+            hashes.put(image, hash);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,41 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import jmr.db.ListDB;
+
+/**
+ * Strategy used to find the records of a database closest to a query.
+ *
+ * Implementations return the results sorted by ascending distance. Exact
+ * engines must produce the same ranking as {@link ListDB#query}.
+ *
+ * @author Carlota de la Vega
+ */
+public interface QueryEngine {
+
+    /**
+     * Finds the records closest to the given query.
+     *
+     * @param query a record holding the query descriptors; it must share the
+     * descriptor structure of the database
+     * @param k the maximum number of results to return
+     * @return the closest records, sorted by ascending distance
+     */
+    List<QueryResult> query(ListDB<BufferedImage>.Record query, int k);
+
+    /**
+     * Creates the exact engine the application uses for an in-memory
+     * database: a {@link CascadeQueryEngine} over a {@link FlatIndex} if the
+     * flat index supports every descriptor of the database, or a
+     * {@link ParallelQueryEngine} otherwise.
+     *
+     * @param database the database
+     * @return the query engine
+     */
+    static QueryEngine forDatabase(ListDB<BufferedImage> database) {
+        return FlatIndex.supports(database)
+                ? new CascadeQueryEngine(database, new FlatIndex(database))
+                : new ParallelQueryEngine(database);
+    }
+}
@@ -0,0 +1,215 @@
+package tfg;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import javax.swing.JOptionPane;
+import javax.swing.SwingWorker;
+import jmr.db.ListDB;
+
+/**
+ * Runs similarity queries against a {@link ListDB} outside the Swing event
+ * dispatch thread.
+ *
+ * Each query goes through three stages on a worker thread: extraction of the
+ * query descriptors (looked up first in a {@link QueryDescriptorCache}, so a
+ * repeated query goes straight to the scan), the database scan (delegated to a
+ * {@link QueryEngine}) and the loading of the result thumbnails from a
+ * {@link ThumbnailCache}. Loaded
+ * thumbnails are streamed into the target {@link ListInternalWindow} as soon
+ * as they are available, and the window shows the progress of the query.
+ *
+ * Only one query is kept alive at a time: submitting a new query cancels the
+ * one still running, so back-to-back searches do not pile up.
+ *
+ * @author Carlota de la Vega
+ */
+public class QueryExecutor {
+
+    /**
+     * Progress reached once the query descriptors have been computed
+     */
+    private static final int EXTRACTION_PROGRESS = 20;
+
+    /**
+     * Progress reached once the database scan has finished
+     */
+    private static final int SCAN_PROGRESS = 50;
+
+    /**
+     * Component used as parent of the error dialogs
+     */
+    private final Component parent;
+
+    /**
+     * Cache providing the thumbnails of the results
+     */
+    private final ThumbnailCache thumbnails;
+
+    /**
+     * Cache providing the descriptors of the query images
+     */
+    private final QueryDescriptorCache descriptors;
+
+    /**
+     * Query currently running, or null if none
+     */
+    private QueryTask current = null;
+
+    /**
+     * Creates a new executor that uses the default thumbnail and query
+     * descriptor caches.
+     *
+     * @param parent the component used as parent of the error dialogs
+     */
+    public QueryExecutor(Component parent) {
+        this(parent, ThumbnailCache.getDefault(), QueryDescriptorCache.getDefault());
+    }
+
+    /**
+     * Creates a new executor.
+     *
+     * @param parent the component used as parent of the error dialogs
+     * @param thumbnails the cache providing the thumbnails of the results
+     * @param descriptors the cache providing the descriptors of the query
+     * images
+     */
+    public QueryExecutor(Component parent, ThumbnailCache thumbnails, QueryDescriptorCache descriptors) {
+        this.parent = parent;
+        this.thumbnails = thumbnails;
+        this.descriptors = descriptors;
+    }
+
+    /**
+     * Launches a query in background, cancelling the previous one if it is
+     * still running. The results are added to the given window as they are
+     * loaded.
+     *
+     * @param database the database to query
+     * @param engine the engine used to scan the database
+     * @param queryImage the image used as query
+     * @param maxResults the maximum number of results to show
+     * @param window the window where the results are displayed
+     */
+    public void submit(ListDB<BufferedImage> database, QueryEngine engine, BufferedImage queryImage, int maxResults, ListInternalWindow window) {
+        cancel();
+        QueryTask task = new QueryTask(database, engine, queryImage, maxResults, window);
+        window.startProgress(() -> task.cancel(true));
+        task.addPropertyChangeListener(evt -> {
+            if ("progress".equals(evt.getPropertyName())) {
+                window.setProgress((Integer) evt.getNewValue());
+            }
+        });
+        current = task;
+        task.execute();
+    }
+
+    /**
+     * Cancels the running query, if any.
+     */
+    public void cancel() {
+        if (current != null && !current.isDone()) {
+            current.cancel(true);
+        }
+        current = null;
+    }
+
+    /**
+     * Image loaded from a query result, ready to be shown.
+     */
+    private static final class LoadedResult {
+
+        private final BufferedImage image;
+        private final String label;
+
+        LoadedResult(BufferedImage image, String label) {
+            this.image = image;
+            this.label = label;
+        }
+    }
+
+    /**
+     * Background task that computes the query descriptors, scans the database
+     * and loads the result images.
+     */
+    private final class QueryTask extends SwingWorker<Integer, LoadedResult> {
+
+        private final ListDB<BufferedImage> database;
+        private final QueryEngine engine;
+        private final BufferedImage queryImage;
+        private final int maxResults;
+        private final ListInternalWindow window;
+
+        QueryTask(ListDB<BufferedImage> database, QueryEngine engine, BufferedImage queryImage, int maxResults, ListInternalWindow window) {
+            this.database = database;
+            this.engine = engine;
+            this.queryImage = queryImage;
+            this.maxResults = maxResults;
+            this.window = window;
+        }
+
+        @Override
+        protected Integer doInBackground() throws Exception {
+            ListDB<BufferedImage>.Record query = descriptors.record(database, queryImage);
+            if (isCancelled()) {
+                return 0;
+            }
+            setProgress(EXTRACTION_PROGRESS);
+
+            List<QueryResult> hits = engine.query(query, maxResults);
+            if (isCancelled()) {
+                return 0;
+            }
+            setProgress(SCAN_PROGRESS);
+
+            int loaded = 0;
+            for (int i = 0; i < hits.size() && !isCancelled(); i++) {
+                URL locator = hits.get(i).getLocator();
+                if (locator != null) {
+                    try {
+                        BufferedImage image = thumbnails.get(locator);
+                        if (image != null) {
+                            publish(new LoadedResult(image, locator.getFile()));
+                            loaded++;
+                        }
+                    } catch (IOException ex) {
+                        System.err.println("Error loading image from URL: " + ex);
+                    }
+                }
+                setProgress(SCAN_PROGRESS + (100 - SCAN_PROGRESS) * (i + 1) / hits.size());
+            }
+            return loaded;
+        }
+
+        @Override
+        protected void process(List<LoadedResult> chunks) {
+            if (isCancelled()) {
+                return;
+            }
+            for (LoadedResult r : chunks) {
+                window.add(r.image, r.label);
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (current == this) {
+                current = null;
+            }
+            try {
+                int loaded = get();
+                window.finishProgress(loaded + " results");
+            } catch (CancellationException ex) {
+                window.finishProgress("Cancelled");
+            } catch (InterruptedException | ExecutionException ex) {
+                System.err.println("Error performing query: " + ex.getMessage());
+                window.finishProgress("Query failed");
+                JOptionPane.showMessageDialog(parent, "Failed to perform query", "Query Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+}
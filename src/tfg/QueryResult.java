@@ -0,0 +1,72 @@
+package tfg;
+
+import java.net.URL;
+
+/**
+ * A single result of a similarity query: the position of the record in the
+ * database, its distance to the query and the locator of its image.
+ *
+ * @author Carlota de la Vega
+ */
+public class QueryResult {
+
+    /**
+     * Index of the record in the database
+     */
+    private final int index;
+
+    /**
+     * Distance between the record and the query
+     */
+    private final double distance;
+
+    /**
+     * Locator of the record image, or null if the record has none
+     */
+    private final URL locator;
+
+    /**
+     * Constructs a new QueryResult.
+     *
+     * @param index the index of the record in the database
+     * @param distance the distance between the record and the query
+     * @param locator the locator of the record image; can be null
+     */
+    public QueryResult(int index, double distance, URL locator) {
+        this.index = index;
+        this.distance = distance;
+        this.locator = locator;
+    }
+
+    /**
+     * Returns the index of the record in the database.
+     *
+     * @return the record index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the distance between the record and the query.
+     *
+     * @return the distance
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Returns the locator of the record image.
+     *
+     * @return the locator, or null if the record has none
+     */
+    public URL getLocator() {
+        return locator;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + index + " (" + distance + ") " + locator;
+    }
+}
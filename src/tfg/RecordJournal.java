@@ -0,0 +1,352 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import jmr.db.ListDB;
+import jmr.descriptor.MediaDescriptor;
+
+/**
+ * Append-only journal of the records added to a saved database.
+ *
+ * Saving a {@link ListDB} rewrites the whole file, whatever the number of
+ * records added since the last save. The journal lives beside the database
+ * file ({@code <database>.journal}) and receives each batch of new records as
+ * a small entry as soon as it is added, so saving only has to flush the
+ * journal. When the database is opened again, the entries are replayed on top
+ * of the records of the file. Once the journal grows large, the database is
+ * compacted: the whole database is written to its file and the journal is
+ * emptied.
+ *
+ * The journal header records the length and modification time of the
+ * database file it extends. A journal whose header does not match its file
+ * (e.g. the file was rewritten after the journal was last emptied) is stale
+ * and discarded. Each entry holds its length and a CRC32 of its content, so
+ * an entry left incomplete by a crash is detected and dropped as a whole.
+ *
+ * @author Carlota de la Vega
+ */
+public class RecordJournal implements Closeable {
+
+    /**
+     * Extension added to the database file name
+     */
+    public static final String EXTENSION = ".journal";
+
+    /**
+     * First bytes of every journal file ("JMRJ")
+     */
+    private static final int MAGIC = 0x4A4D524A;
+
+    /**
+     * Version of the file layout
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the header: magic, version, base length and base modification
+     * time
+     */
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES;
+
+    /**
+     * Database file extended by the journal
+     */
+    private final File base;
+
+    /**
+     * Channel of the journal file
+     */
+    private final FileChannel channel;
+
+    /**
+     * Number of records in the journal and position where the next entry is
+     * written
+     */
+    private int entries = 0;
+    private long end = HEADER_SIZE;
+
+    /**
+     * Whether the header matched the database file when the journal was
+     * opened
+     */
+    private boolean stale = false;
+
+    private RecordJournal(File base) throws IOException {
+        this.base = base;
+        this.channel = FileChannel.open(fileFor(base).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() == 0) {
+            writeHeader();
+        } else if (!headerMatches()) {
+            stale = channel.size() > HEADER_SIZE;
+            writeHeader();
+        }
+    }
+
+    /**
+     * Opens the journal of a database file, creating it if needed. A stale
+     * journal is emptied.
+     *
+     * @param base the database file
+     * @return the journal
+     * @throws IOException if the journal cannot be opened
+     */
+    public static RecordJournal open(File base) throws IOException {
+        return new RecordJournal(base);
+    }
+
+    /**
+     * Returns the journal file of a database file.
+     *
+     * @param base the database file
+     * @return the journal file
+     */
+    public static File fileFor(File base) {
+        return new File(base.getPath() + EXTENSION);
+    }
+
+    /**
+     * Returns the database file extended by this journal.
+     *
+     * @return the database file
+     */
+    public File getBase() {
+        return base;
+    }
+
+    /**
+     * Returns whether a stale journal was discarded when it was opened.
+     *
+     * @return true if stale entries were discarded
+     */
+    public boolean wasStale() {
+        return stale;
+    }
+
+    /**
+     * Returns the number of records in the journal.
+     *
+     * @return the number of records
+     */
+    public synchronized int getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the size of the journal, in bytes.
+     *
+     * @return the size of the journal
+     */
+    public synchronized long getSize() {
+        return end;
+    }
+
+    private boolean headerMatches() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        read(header, 0);
+        header.flip();
+        return header.remaining() == HEADER_SIZE
+                && header.getInt() == MAGIC
+                && header.getInt() == VERSION
+                && header.getLong() == base.length()
+                && header.getLong() == base.lastModified();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(base.length());
+        header.putLong(base.lastModified());
+        header.flip();
+        channel.truncate(0);
+        write(header, 0);
+        channel.force(false);
+        entries = 0;
+        end = HEADER_SIZE;
+    }
+
+    /**
+     * Adds the entries of the journal to a database. An incomplete or corrupt
+     * entry ends the replay, and it is removed together with anything after
+     * it.
+     *
+     * @param database the database opened from the base file
+     * @return the number of records added
+     * @throws IOException if the journal cannot be read or its records do not
+     * have the descriptors of the database
+     */
+    public synchronized int replay(ListDB<BufferedImage> database) throws IOException {
+        List<Class> classes = database.getDescriptorClasses();
+        List<ListDB<BufferedImage>.Record> records = new ArrayList<>();
+        long position = HEADER_SIZE;
+        long size = channel.size();
+        ByteBuffer prefix = ByteBuffer.allocate(2 * Integer.BYTES);
+        while (position + prefix.capacity() <= size) {
+            prefix.clear();
+            read(prefix, position);
+            prefix.flip();
+            int length = prefix.getInt();
+            int crc = prefix.getInt();
+            if (length <= 0 || position + prefix.capacity() + length > size) {
+                break;
+            }
+            ByteBuffer content = ByteBuffer.allocate(length);
+            read(content, position + prefix.capacity());
+            if (checksum(content.array()) != crc) {
+                break;
+            }
+            List<ListDB<BufferedImage>.Record> batch = decode(database, classes, content.array());
+            records.addAll(batch);
+            position += prefix.capacity() + length;
+        }
+        if (position < size) {
+            System.err.println("Discarding incomplete journal entry in " + fileFor(base));
+            channel.truncate(position);
+        }
+        synchronized (database) {
+            for (ListDB<BufferedImage>.Record r : records) {
+                database.add(r);
+            }
+        }
+        entries = records.size();
+        end = position;
+        return records.size();
+    }
+
+    /**
+     * Appends a batch of records to the journal as a single entry. The entry
+     * reaches the disk when the journal is synced or closed.
+     *
+     * @param records the records to append
+     * @throws IOException if the entry cannot be written
+     */
+    public synchronized void append(List<ListDB<BufferedImage>.Record> records) throws IOException {
+        byte[] content = encode(records);
+        ByteBuffer buffer = ByteBuffer.allocate(2 * Integer.BYTES + content.length);
+        buffer.putInt(content.length);
+        buffer.putInt(checksum(content));
+        buffer.put(content);
+        buffer.flip();
+        write(buffer, end);
+        end += buffer.capacity();
+        entries += records.size();
+    }
+
+    /**
+     * Forces the entries written so far to the disk.
+     *
+     * @throws IOException if the journal cannot be synced
+     */
+    public synchronized void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Empties the journal once its records have been written to the database
+     * file. Must be called right after the file is rewritten, before any
+     * other record is appended.
+     *
+     * @throws IOException if the journal cannot be written
+     */
+    public synchronized void reset() throws IOException {
+        writeHeader();
+    }
+
+    /**
+     * Syncs and closes the journal.
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Serializes the descriptors and the locator of a batch of records. The
+     * descriptor classes are described once per batch.
+     */
+    private static byte[] encode(List<ListDB<BufferedImage>.Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeInt(records.size());
+            for (ListDB<BufferedImage>.Record record : records) {
+                out.writeInt(record.size());
+                for (int i = 0; i < record.size(); i++) {
+                    out.writeObject(record.get(i));
+                }
+                URL locator = record.getLocator();
+                out.writeObject(locator == null ? null : locator.toString());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<ListDB<BufferedImage>.Record> decode(ListDB<BufferedImage> database, List<Class> classes, byte[] content) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(content))) {
+            int count = in.readInt();
+            List<ListDB<BufferedImage>.Record> records = new ArrayList<>(count);
+            for (int r = 0; r < count; r++) {
+                int n = in.readInt();
+                if (n != classes.size()) {
+                    throw new IOException("The journal does not match the database descriptors.");
+                }
+                List<MediaDescriptor<BufferedImage>> descriptors = new ArrayList<>(n);
+                for (int i = 0; i < n; i++) {
+                    Object d = in.readObject();
+                    if (d == null || d.getClass() != classes.get(i)) {
+                        throw new IOException("The journal does not match the database descriptors.");
+                    }
+                    descriptors.add((MediaDescriptor<BufferedImage>) d);
+                }
+                String locator = (String) in.readObject();
+                records.add(DescriptorExtractor.toRecord(database, descriptors, locator == null ? null : URI.create(locator).toURL()));
+            }
+            return records;
+        } catch (ClassNotFoundException | IllegalArgumentException ex) {
+            throw new IOException("Invalid journal entry: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static int checksum(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private void read(ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int n = channel.read(dst, position);
+            if (n < 0) {
+                return;
+            }
+            position += n;
+        }
+    }
+
+    private void write(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package tfg;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Lightweight stand-in for the local generation server, running in process.
+ *
+ * It answers the same endpoints as the real server ({@code POST
+ * /images/generate/} and {@code GET /images/download/<name>}), so a
+ * {@link LocalImageGenerator} pointed at it works unchanged, but instead of
+ * running a model it draws a synthetic image after a configurable delay. The
+ * image only depends on the prompt and the configured size, so runs are
+ * reproducible. It is meant for development and benchmarks on machines
+ * without a GPU.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp TFG.jar tfg.StandInGenerationServer [--port 8000]
+ *        [--latency milliseconds] [--size widthxheight]
+ * </pre>
+ *
+ * @author Carlota de la Vega
+ */
+public class StandInGenerationServer implements AutoCloseable {
+
+    /**
+     * Port of the real local generation server
+     */
+    public static final int DEFAULT_PORT = 8000;
+
+    /**
+     * Default width and height of the generated images
+     */
+    public static final int DEFAULT_SIZE = 512;
+
+    /**
+     * Number of generated images kept for download
+     */
+    private static final int MAX_IMAGES = 256;
+
+    /**
+     * Underlying server
+     */
+    private final HttpServer server;
+
+    /**
+     * Threads handling the requests, so slow generations overlap
+     */
+    private final ExecutorService executor;
+
+    /**
+     * Delay of each generation, in milliseconds
+     */
+    private final long latency;
+
+    /**
+     * Size of the generated images
+     */
+    private final int width;
+    private final int height;
+
+    /**
+     * Encoded images waiting to be downloaded, by name
+     */
+    private final Map<String, byte[]> images = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_IMAGES;
+        }
+    };
+
+    /**
+     * Generations served so far
+     */
+    private final AtomicLong generations = new AtomicLong();
+
+    /**
+     * Creates a server listening on the loopback interface. The server starts
+     * when {@link #start} is called.
+     *
+     * @param port the port to listen on, or 0 to pick a free one
+     * @param latency the delay of each generation, in milliseconds
+     * @param width the width of the generated images
+     * @param height the height of the generated images
+     * @throws IOException if the port cannot be bound
+     */
+    public StandInGenerationServer(int port, long latency, int width, int height) throws IOException {
+        this.latency = latency;
+        this.width = width;
+        this.height = height;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stand-in-generator");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/images/generate/", this::handleGenerate);
+        server.createContext("/images/download/", this::handleDownload);
+    }
+
+    /**
+     * Starts answering requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Returns the base address of the server, to be given to a
+     * {@link LocalImageGenerator}.
+     *
+     * @return the base address
+     */
+    public URI getURI() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/");
+    }
+
+    /**
+     * Returns the number of generations served so far.
+     *
+     * @return the number of generations
+     */
+    public long getGenerations() {
+        return generations.get();
+    }
+
+    /**
+     * Stops the server.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handleGenerate(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "text/plain", "Method not allowed".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            String prompt;
+            try {
+                prompt = new JSONObject(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8)).getString("prompt");
+            } catch (JSONException ex) {
+                send(exchange, 400, "text/plain", ex.getMessage().getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ImageIO.write(render(prompt, width, height), "png", png);
+            String name = "standin_" + generations.incrementAndGet() + ".png";
+            synchronized (images) {
+                images.put(name, png.toByteArray());
+            }
+            String answer = new JSONObject().put("image_path", "generated_images/" + name).toString();
+            send(exchange, 200, "application/json", answer.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private void handleDownload(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String path = exchange.getRequestURI().getPath();
+            String name = path.substring(path.lastIndexOf('/') + 1);
+            byte[] image;
+            synchronized (images) {
+                image = images.get(name);
+            }
+            if (image == null) {
+                send(exchange, 404, "text/plain", ("Unknown image " + name).getBytes(StandardCharsets.UTF_8));
+            } else {
+                send(exchange, 200, "image/png", image);
+            }
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Draws the synthetic image of a prompt: a gradient background with a few
+     * colored shapes, all chosen from a random generator seeded with the hash
+     * of the prompt.
+     *
+     * @param prompt the prompt
+     * @param width the width of the image
+     * @param height the height of the image
+     * @return the image of the prompt
+     */
+    public static BufferedImage render(String prompt, int width, int height) {
+        Random random = new Random(seed(prompt));
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setPaint(new GradientPaint(0, 0, randomColor(random), width, height, randomColor(random)));
+            g.fillRect(0, 0, width, height);
+            int shapes = 3 + random.nextInt(6);
+            for (int i = 0; i < shapes; i++) {
+                g.setColor(randomColor(random));
+                int w = 1 + random.nextInt(Math.max(1, width / 2));
+                int h = 1 + random.nextInt(Math.max(1, height / 2));
+                int x = random.nextInt(Math.max(1, width - w));
+                int y = random.nextInt(Math.max(1, height - h));
+                if (random.nextBoolean()) {
+                    g.fillOval(x, y, w, h);
+                } else {
+                    g.fillRect(x, y, w, h);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+    private static Color randomColor(Random random) {
+        return new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+
+    private static long seed(String prompt) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(prompt.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(hash).getLong();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        int port = DEFAULT_PORT;
+        long latency = 0;
+        int width = DEFAULT_SIZE;
+        int height = DEFAULT_SIZE;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--port" -> port = Integer.parseInt(args[++i]);
+                    case "--latency" -> latency = Long.parseLong(args[++i]);
+                    case "--size" -> {
+                        String[] size = args[++i].split("x");
+                        width = Integer.parseInt(size[0]);
+                        height = Integer.parseInt(size[1]);
+                    }
+                    default -> throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Usage: StandInGenerationServer [--port port] [--latency milliseconds] [--size widthxheight]");
+            System.exit(2);
+        }
+
+        try {
+            StandInGenerationServer server = new StandInGenerationServer(port, latency, width, height);
+            server.start();
+            System.out.println("Stand-in generator listening on " + server.getURI() + " (" + latency + " ms, "
+                    + width + "x" + height + ")");
+        } catch (IOException ex) {
+            System.err.println("Error starting the stand-in generator: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
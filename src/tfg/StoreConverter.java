@@ -0,0 +1,179 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import jmr.db.ListDB;
+
+/**
+ * Command-line tool that converts a database saved with {@link ListDB#save}
+ * into a {@link DescriptorStore}.
+ *
+ * The records of the serialized database are streamed into a
+ * {@link DescriptorStoreWriter}, which writes them in chunks, so the
+ * conversion does not hold a second copy of the database in memory. Once
+ * written, the store is opened and a sample of queries is run against both
+ * databases to check that they return the same results.
+ *
+ * Usage:
+ * <pre>
+ *   java -cp TFG.jar tfg.StoreConverter input.jmr.db [output.jmr.store]
+ *        [--chunk records] [--verify queries] [--k results]
+ * </pre>
+ *
+ * @author Carlota de la Vega
+ */
+public class StoreConverter {
+
+    /**
+     * Default number of sample queries run to verify the store
+     */
+    private static final int DEFAULT_VERIFY_QUERIES = 20;
+
+    /**
+     * Default number of results compared for each sample query
+     */
+    private static final int DEFAULT_VERIFY_RESULTS = 10;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String args[]) {
+        File input = null;
+        File output = null;
+        int chunk = DescriptorStoreWriter.DEFAULT_CHUNK_RECORDS;
+        int queries = DEFAULT_VERIFY_QUERIES;
+        int k = DEFAULT_VERIFY_RESULTS;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--chunk" -> chunk = Integer.parseInt(args[++i]);
+                    case "--verify" -> queries = Integer.parseInt(args[++i]);
+                    case "--k" -> k = Integer.parseInt(args[++i]);
+                    default -> {
+                        if (input == null) {
+                            input = new File(args[i]);
+                        } else {
+                            output = new File(args[i]);
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            input = null;
+        }
+        if (input == null) {
+            System.err.println("Usage: StoreConverter input.jmr.db [output" + DescriptorStore.EXTENSION
+                    + "] [--chunk records] [--verify queries] [--k results]");
+            System.exit(2);
+        }
+        if (output == null) {
+            output = defaultOutput(input);
+        }
+
+        try {
+            long start = System.nanoTime();
+            @SuppressWarnings("unchecked")
+            ListDB<BufferedImage> database = ListDB.open(input);
+            long opened = System.nanoTime();
+            convert(database, output, chunk);
+            long converted = System.nanoTime();
+            System.out.printf("Converted %d records from %s to %s (open %.1f ms, write %.1f ms)%n",
+                    database.size(), input, output, (opened - start) / 1e6, (converted - opened) / 1e6);
+
+            int mismatches = verify(database, output, queries, k);
+            if (mismatches > 0) {
+                System.err.println("Verification failed: " + mismatches + " of " + queries + " queries differ.");
+                System.exit(1);
+            }
+            System.out.println("Verified " + Math.min(queries, database.size()) + " queries: results match.");
+        } catch (IOException | ClassNotFoundException ex) {
+            System.err.println("Error converting database: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Builds the name of the store next to the input file, replacing the
+     * {@code .jmr.db} extension.
+     */
+    private static File defaultOutput(File input) {
+        String name = input.getName();
+        if (name.endsWith(".jmr.db")) {
+            name = name.substring(0, name.length() - ".jmr.db".length());
+        }
+        return new File(input.getAbsoluteFile().getParentFile(), name + DescriptorStore.EXTENSION);
+    }
+
+    /**
+     * Streams the records of a database into a new store file.
+     *
+     * @param database the source database
+     * @param output the store file to write
+     * @param chunk the number of records buffered by the writer
+     * @throws IOException if the store cannot be written
+     */
+    public static void convert(ListDB<BufferedImage> database, File output, int chunk) throws IOException {
+        try (DescriptorStoreWriter writer = new DescriptorStoreWriter(output, database.getDescriptorClasses(), database.size(), chunk)) {
+            for (int i = 0; i < database.size(); i++) {
+                ListDB<BufferedImage>.Record r = database.get(i);
+                writer.append(r, r.getLocator());
+            }
+        }
+    }
+
+    /**
+     * Runs a sample of queries against a database and its converted store,
+     * comparing the store results with the ones of {@link ListDB#query}. The
+     * queries are records of the database picked at random.
+     *
+     * @param database the source database
+     * @param storeFile the converted store
+     * @param queries the number of queries to run
+     * @param k the number of results compared for each query
+     * @return the number of queries whose results differ
+     * @throws IOException if the store cannot be opened
+     */
+    public static int verify(ListDB<BufferedImage> database, File storeFile, int queries, int k) throws IOException {
+        int mismatches = 0;
+        try (DescriptorStore store = DescriptorStore.open(storeFile)) {
+            if (store.size() != database.size()) {
+                return Math.max(1, queries);
+            }
+            Random random = new Random(0);
+            int n = Math.min(k, database.size());
+            for (int q = 0; q < Math.min(queries, database.size()); q++) {
+                ListDB<BufferedImage>.Record query = database.get(random.nextInt(database.size()));
+                List<ListDB<BufferedImage>.Record> expected = database.query(query, n);
+                List<QueryResult> actual = store.query(query, n);
+                if (!sameResults(database, expected, actual)) {
+                    mismatches++;
+                }
+            }
+        }
+        return mismatches;
+    }
+
+    /**
+     * Checks that the store returned the same records, in the same order, as
+     * the original query.
+     */
+    private static boolean sameResults(ListDB<BufferedImage> database, List<ListDB<BufferedImage>.Record> expected, List<QueryResult> actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            ListDB<BufferedImage>.Record e = expected.get(i);
+            QueryResult a = actual.get(i);
+            if (database.get(a.getIndex()) != e
+                    || !Objects.equals(String.valueOf(e.getLocator()), String.valueOf(a.getLocator()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
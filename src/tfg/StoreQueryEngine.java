@@ -0,0 +1,81 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import jmr.db.ListDB;
+
+/**
+ * Query engine for a database opened from a {@link DescriptorStore}.
+ *
+ * The store is read-only, so the records added after opening it are kept in
+ * a {@link ListDB} and queried with their own engine. Both result lists are
+ * merged by distance; the added records are numbered after the store records,
+ * as if they had been appended to it. The store records are scanned by the
+ * store itself, or by another engine over them such as a {@link PqIndex}.
+ *
+ * @author Carlota de la Vega
+ */
+public class StoreQueryEngine implements QueryEngine {
+
+    /**
+     * Engine over the records loaded from the store file
+     */
+    private final QueryEngine stored;
+
+    /**
+     * Number of records of the store
+     */
+    private final int offset;
+
+    /**
+     * Engine over the records added since the store was opened
+     */
+    private final QueryEngine added;
+
+    /**
+     * Creates an engine over a store and the records added to it.
+     *
+     * @param store the opened store
+     * @param added the engine over the records added since the store was
+     * opened
+     */
+    public StoreQueryEngine(DescriptorStore store, QueryEngine added) {
+        this(store, store, added);
+    }
+
+    /**
+     * Creates an engine over a store, queried through another engine, and
+     * the records added to it.
+     *
+     * @param store the opened store
+     * @param stored the engine over the records of the store
+     * @param added the engine over the records added since the store was
+     * opened
+     */
+    public StoreQueryEngine(DescriptorStore store, QueryEngine stored, QueryEngine added) {
+        this.stored = stored;
+        this.offset = store.size();
+        this.added = added;
+    }
+
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        List<QueryResult> fromStore = stored.query(query, k);
+        List<QueryResult> fromAdded = added.query(query, k);
+
+        List<QueryResult> results = new ArrayList<>(Math.min(k, fromStore.size() + fromAdded.size()));
+        int i = 0, j = 0;
+        while (results.size() < k && (i < fromStore.size() || j < fromAdded.size())) {
+            // on ties the store records go first, as they have lower indices
+            if (j >= fromAdded.size() || (i < fromStore.size()
+                    && Double.compare(fromStore.get(i).getDistance(), fromAdded.get(j).getDistance()) <= 0)) {
+                results.add(fromStore.get(i++));
+            } else {
+                QueryResult r = fromAdded.get(j++);
+                results.add(new QueryResult(r.getIndex() + offset, r.getDistance(), r.getLocator()));
+            }
+        }
+        return results;
+    }
+}
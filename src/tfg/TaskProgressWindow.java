@@ -0,0 +1,139 @@
+package tfg;
+
+import java.awt.BorderLayout;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.event.InternalFrameAdapter;
+import javax.swing.event.InternalFrameEvent;
+
+/**
+ * Small internal window showing the progress of a long-running background
+ * task, such as adding many images to the database.
+ *
+ * The window shows a progress bar, a status line (e.g. the throughput of the
+ * task) and a button to cancel the task. Closing the window also cancels the
+ * task.
+ *
+ * @author Carlota de la Vega
+ */
+public class TaskProgressWindow extends javax.swing.JInternalFrame {
+
+    /**
+     * Progress of the task
+     */
+    private final JProgressBar progressBar = new JProgressBar(0, 100);
+
+    /**
+     * Status line shown below the progress bar
+     */
+    private final JLabel statusLabel = new JLabel(" ");
+
+    /**
+     * Button used to cancel the task
+     */
+    private final JButton cancelButton = new JButton("Cancel");
+
+    /**
+     * Action executed when the task is cancelled, or null if the task is not
+     * running
+     */
+    private Runnable cancelAction = null;
+
+    /**
+     * Creates a new progress window.
+     *
+     * @param title the title of the window
+     */
+    public TaskProgressWindow(String title) {
+        super(title, false, true, false, true);
+        progressBar.setStringPainted(true);
+
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(8, 8, 8, 8));
+        panel.add(progressBar, BorderLayout.CENTER);
+        panel.add(cancelButton, BorderLayout.EAST);
+        panel.add(statusLabel, BorderLayout.PAGE_END);
+        getContentPane().add(panel, BorderLayout.CENTER);
+
+        cancelButton.addActionListener(evt -> cancelTask());
+        addInternalFrameListener(new InternalFrameAdapter() {
+            @Override
+            public void internalFrameClosed(InternalFrameEvent e) {
+                cancelTask();
+            }
+        });
+        setSize(360, 110);
+    }
+
+    /**
+     * Resets the window for a task that is about to start.
+     *
+     * @param cancelAction action executed if the user cancels the task or
+     * closes the window before it finishes
+     */
+    public void startProgress(Runnable cancelAction) {
+        this.cancelAction = cancelAction;
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(0);
+        progressBar.setString("0%");
+        cancelButton.setEnabled(true);
+        statusLabel.setText("Starting...");
+    }
+
+    /**
+     * Updates the progress of the task.
+     *
+     * @param value the progress, between 0 and 100
+     */
+    public void setProgress(int value) {
+        progressBar.setIndeterminate(false);
+        progressBar.setValue(value);
+        progressBar.setString(value + "%");
+    }
+
+    /**
+     * Shows that the task is running while its total amount of work is not
+     * known yet. The next call to {@link #setProgress(int)} shows the
+     * progress again.
+     */
+    public void setIndeterminate() {
+        progressBar.setIndeterminate(true);
+        progressBar.setString("");
+    }
+
+    /**
+     * Updates the status line.
+     *
+     * @param status the text to show
+     */
+    public void setStatus(String status) {
+        statusLabel.setText(status);
+    }
+
+    /**
+     * Marks the task as finished. The window is kept open so the final status
+     * can be read.
+     *
+     * @param status short description of how the task ended
+     */
+    public void finishProgress(String status) {
+        cancelAction = null;
+        progressBar.setIndeterminate(false);
+        cancelButton.setEnabled(false);
+        statusLabel.setText(status);
+    }
+
+    /**
+     * Cancels the task, if it is still running.
+     */
+    private void cancelTask() {
+        if (cancelAction != null) {
+            Runnable action = cancelAction;
+            cancelAction = null;
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package tfg;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import jmr.iu.ImageListPanel;
+
+/**
+ * Two-level cache of downscaled images, used to show query results without
+ * decoding the full-resolution files every time.
+ *
+ * Thumbnails are looked up first in an in-memory LRU map, bounded by the
+ * bytes of the decoded pixels, and then in a directory on disk, where they are
+ * kept as JPEG (or PNG, if the image has transparency). Entries are keyed by
+ * the locator URL and, for local files, by their modification time, so a
+ * modified file gets a new thumbnail.
+ *
+ * On a miss, the source image is decoded with source subsampling
+ * ({@link ImageReadParam#setSourceSubsampling}), so only a fraction of its
+ * pixels are read, and scaled down to the thumbnail size.
+ *
+ * All methods are thread safe.
+ *
+ * @author Carlota de la Vega
+ */
+public class ThumbnailCache {
+
+    /**
+     * Default maximum width and height of the thumbnails: twice the size of
+     * the image views of the result windows
+     */
+    public static final int DEFAULT_SIZE = 2 * Math.max(ImageListPanel.DEFAULT_IMAGE_VIEW_SIZE.width,
+            ImageListPanel.DEFAULT_IMAGE_VIEW_SIZE.height);
+
+    /**
+     * Default bytes of decoded thumbnails kept in memory
+     */
+    public static final long DEFAULT_MEMORY_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Directory of the thumbnail files of the default cache
+     */
+    public static final String DEFAULT_DIRECTORY = "thumbnails";
+
+    /**
+     * Directory of the thumbnail files
+     */
+    private final File directory;
+
+    /**
+     * Maximum width and height of the thumbnails
+     */
+    private final int size;
+
+    /**
+     * Decoded thumbnails
+     */
+    private final ImageMemoryCache<String> memory;
+
+    /**
+     * Lookups served from memory, from disk and by decoding the source
+     */
+    private long memoryHits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a cache with the default thumbnail size and memory bound.
+     *
+     * @param directory the directory of the thumbnail files; it is created if
+     * needed
+     */
+    public ThumbnailCache(File directory) {
+        this(directory, DEFAULT_SIZE, DEFAULT_MEMORY_BYTES);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param directory the directory of the thumbnail files; it is created if
+     * needed
+     * @param size the maximum width and height of the thumbnails
+     * @param memoryBytes the maximum bytes of decoded thumbnails kept in
+     * memory
+     */
+    public ThumbnailCache(File directory, int size, long memoryBytes) {
+        this.directory = directory;
+        this.size = size;
+        this.memory = new ImageMemoryCache<>(memoryBytes);
+    }
+
+    /**
+     * Returns the cache shared by the application windows, stored in
+     * {@value #DEFAULT_DIRECTORY} under the working directory.
+     *
+     * @return the default cache
+     */
+    public static ThumbnailCache getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    private static final class DefaultHolder {
+
+        static final ThumbnailCache INSTANCE = new ThumbnailCache(new File(DEFAULT_DIRECTORY));
+    }
+
+    /**
+     * Returns the thumbnail of an image, creating it if needed.
+     *
+     * @param locator the locator of the image
+     * @return the thumbnail, or null if the image format is not supported
+     * @throws IOException if the image cannot be read
+     */
+    public BufferedImage get(URL locator) throws IOException {
+        String key = key(locator);
+        BufferedImage cached = memory.get(key);
+        if (cached != null) {
+            synchronized (this) {
+                memoryHits++;
+            }
+            return cached;
+        }
+
+        String name = hash(key);
+        BufferedImage thumbnail = readFile(name);
+        if (thumbnail != null) {
+            synchronized (this) {
+                diskHits++;
+            }
+        } else {
+            thumbnail = decode(locator);
+            if (thumbnail == null) {
+                return null;
+            }
+            synchronized (this) {
+                misses++;
+            }
+            writeFile(name, thumbnail);
+        }
+        memory.put(key, thumbnail);
+        return thumbnail;
+    }
+
+    /**
+     * Returns a summary of the lookups served so far.
+     *
+     * @return the hit counts of each level
+     */
+    public synchronized String getStatistics() {
+        return String.format("memory hits %d, disk hits %d, misses %d, %d thumbnails in memory (%d KB)",
+                memoryHits, diskHits, misses, memory.size(), memory.getUsedBytes() / 1024);
+    }
+
+    /**
+     * Builds the cache key of a locator: the URL plus, for local files, the
+     * modification time.
+     */
+    private static String key(URL locator) {
+        String key = locator.toString();
+        if ("file".equals(locator.getProtocol())) {
+            try {
+                key += "@" + new File(locator.toURI()).lastModified();
+            } catch (URISyntaxException | IllegalArgumentException ex) {
+                // keyed by the URL alone
+            }
+        }
+        return key;
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private BufferedImage readFile(String name) {
+        for (String format : new String[]{"jpg", "png"}) {
+            File file = new File(directory, name + "." + format);
+            if (file.isFile()) {
+                try {
+                    BufferedImage image = ImageIO.read(file);
+                    if (image != null) {
+                        return image;
+                    }
+                } catch (IOException ex) {
+                    System.err.println("Error reading thumbnail " + file + ": " + ex.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a thumbnail to disk. A failure only costs decoding the source
+     * again, so it is reported but not thrown.
+     */
+    private void writeFile(String name, BufferedImage thumbnail) {
+        String format = thumbnail.getColorModel().hasAlpha() ? "png" : "jpg";
+        File file = new File(directory, name + "." + format);
+        try {
+            Files.createDirectories(directory.toPath());
+            File tmp = File.createTempFile(name, ".tmp", directory);
+            try {
+                if (!ImageIO.write(thumbnail, format, tmp)) {
+                    throw new IOException("No writer for " + format);
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp.toPath());
+            }
+        } catch (IOException ex) {
+            System.err.println("Error writing thumbnail " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Decodes a source image reading only the pixels needed for the
+     * thumbnail, and scales it down to the thumbnail size.
+     */
+    private BufferedImage decode(URL locator) throws IOException {
+        try (InputStream in = locator.openStream();
+                ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                // the largest step that still reads at least the thumbnail size
+                int step = Math.max(1, Math.max(width, height) / size);
+                param.setSourceSubsampling(step, step, 0, 0);
+                return scale(reader.read(0, param), size);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Scales an image so that it fits in a square, keeping its aspect ratio.
+     * Images already small enough are returned as they are. Large reductions
+     * are made in steps (see {@link #halve}).
+     *
+     * @param image the image to scale
+     * @param size the maximum width and height
+     * @return the scaled image
+     */
+    static BufferedImage scale(BufferedImage image, int size) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        double factor = Math.min(1.0, (double) size / Math.max(width, height));
+        int w = Math.max(1, (int) Math.round(width * factor));
+        int h = Math.max(1, (int) Math.round(height * factor));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (factor == 1.0 && image.getType() == type) {
+            return image;
+        }
+        return resize(halve(image, w, h), w, h, type);
+    }
+
+    /**
+     * Halves an image in steps while it is more than twice as large as the
+     * given size, so that a bilinear filter scaling it to that size takes
+     * every pixel into account.
+     *
+     * @param image the image to reduce
+     * @param width the width the image is going to be scaled to
+     * @param height the height the image is going to be scaled to
+     * @return the reduced image, or the same image if it is small enough
+     */
+    static BufferedImage halve(BufferedImage image, int width, int height) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage source = image;
+        while (source.getWidth() > 2 * width && source.getHeight() > 2 * height) {
+            source = resize(source, source.getWidth() / 2, source.getHeight() / 2, type);
+        }
+        return source;
+    }
+
+    private static BufferedImage resize(BufferedImage image, int w, int h, int type) {
+        BufferedImage resized = new BufferedImage(w, h, type);
+        Graphics2D g = resized.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return resized;
+    }
+}
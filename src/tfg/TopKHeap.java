@@ -0,0 +1,215 @@
+package tfg;
+
+/**
+ * Bounded max-heap of (distance, record index) pairs used to keep the k best
+ * results of a similarity scan.
+ *
+ * Entries are ordered by ascending distance and, for equal distances, by
+ * ascending record index. This is the same order produced by the stable sort
+ * of {@link jmr.db.ListDB#query}, so the k entries kept by the heap are exactly
+ * the first k records of that query. Distances and indices are held in
+ * primitive arrays, so offering an entry never allocates.
+ *
+ * @author Carlota de la Vega
+ */
+public class TopKHeap {
+
+    /**
+     * Distances of the entries, organized as a max-heap
+     */
+    private final double[] distances;
+
+    /**
+     * Record indices of the entries, parallel to {@code distances}
+     */
+    private final int[] indices;
+
+    /**
+     * Number of entries currently held
+     */
+    private int size = 0;
+
+    /**
+     * Whether the entries have been sorted by {@link #sort()}
+     */
+    private boolean sorted = false;
+
+    /**
+     * Creates an empty heap.
+     *
+     * @param capacity the maximum number of entries to keep
+     */
+    public TopKHeap(int capacity) {
+        this.distances = new double[capacity];
+        this.indices = new int[capacity];
+    }
+
+    /**
+     * Returns the maximum number of entries kept by this heap.
+     *
+     * @return the capacity of the heap
+     */
+    public int capacity() {
+        return distances.length;
+    }
+
+    /**
+     * Returns the number of entries currently held.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the entries, so the heap can be reused for a new scan.
+     */
+    public void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Returns the largest distance currently held. While the heap is not full
+     * any distance is accepted, so positive infinity is returned.
+     *
+     * @return the distance an entry has to beat to enter the heap
+     */
+    public double threshold() {
+        return size < distances.length ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * Offers an entry to the heap. It is kept if the heap is not full or if it
+     * precedes the worst entry held, which is then discarded.
+     *
+     * @param distance the distance of the record to the query
+     * @param index the index of the record in the database
+     * @return true if the entry was kept
+     */
+    public boolean offer(double distance, int index) {
+        if (sorted) {
+            throw new IllegalStateException("The heap has already been sorted.");
+        }
+        if (size < distances.length) {
+            distances[size] = distance;
+            indices[size] = index;
+            siftUp(size++);
+            return true;
+        }
+        if (size == 0 || !precedes(distance, index, distances[0], indices[0])) {
+            return false;
+        }
+        distances[0] = distance;
+        indices[0] = index;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * Offers all the entries of another heap to this one.
+     *
+     * @param other the heap to merge into this one
+     */
+    public void merge(TopKHeap other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.distances[i], other.indices[i]);
+        }
+    }
+
+    /**
+     * Sorts the entries in place by ascending distance. After this call the
+     * entries can be read with {@link #getDistance(int)} and
+     * {@link #getIndex(int)}, and no more entries can be offered until the heap
+     * is cleared.
+     */
+    public void sort() {
+        if (sorted) {
+            return;
+        }
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * Returns the distance of the i-th entry once the heap has been sorted.
+     *
+     * @param i the position of the entry, 0 being the closest one
+     * @return the distance of the entry
+     */
+    public double getDistance(int i) {
+        checkSorted(i);
+        return distances[i];
+    }
+
+    /**
+     * Returns the record index of the i-th entry once the heap has been sorted.
+     *
+     * @param i the position of the entry, 0 being the closest one
+     * @return the record index of the entry
+     */
+    public int getIndex(int i) {
+        checkSorted(i);
+        return indices[i];
+    }
+
+    private void checkSorted(int i) {
+        if (!sorted) {
+            throw new IllegalStateException("The heap must be sorted first.");
+        }
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+        }
+    }
+
+    /**
+     * Checks whether entry a goes before entry b in the query ranking.
+     */
+    private static boolean precedes(double da, int ia, double db, int ib) {
+        int c = Double.compare(da, db);
+        return c < 0 || (c == 0 && ia < ib);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!precedes(distances[parent], indices[parent], distances[i], indices[i])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int largest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < end && precedes(distances[largest], indices[largest], distances[left], indices[left])) {
+                largest = left;
+            }
+            if (right < end && precedes(distances[largest], indices[largest], distances[right], indices[right])) {
+                largest = right;
+            }
+            if (largest == i) {
+                return;
+            }
+            swap(i, largest);
+            i = largest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        double d = distances[a];
+        distances[a] = distances[b];
+        distances[b] = d;
+        int idx = indices[a];
+        indices[a] = indices[b];
+        indices[b] = idx;
+    }
+}
@@ -0,0 +1,74 @@
+package tfg;
+
+import java.awt.image.BufferedImage;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import jmr.db.ListDB;
+
+/**
+ * Exact query engine that scans a {@link ListDB} sequentially keeping only the
+ * k best records.
+ *
+ * Unlike {@link ListDB#query(ListDB.Record, int)}, which sorts a copy of the
+ * whole database, this engine pushes every distance through a bounded
+ * {@link TopKHeap}, so a query costs O(n log k). The heap is reused between
+ * queries, so the memory allocated by a query does not depend on the size of
+ * the database.
+ *
+ * @author Carlota de la Vega
+ */
+public class TopKQuery implements QueryEngine {
+
+    /**
+     * Database to be queried
+     */
+    private final ListDB<BufferedImage> database;
+
+    /**
+     * Heap reused between queries; guarded by the database monitor
+     */
+    private TopKHeap heap = new TopKHeap(0);
+
+    /**
+     * Creates a new top-k engine over the given database.
+     *
+     * @param database the database to be queried
+     */
+    public TopKQuery(ListDB<BufferedImage> database) {
+        this.database = database;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The database monitor is held during the scan, so records cannot be
+     * added while it is running.
+     */
+    @Override
+    public List<QueryResult> query(ListDB<BufferedImage>.Record query, int k) {
+        if (!query.isCompatible()) {
+            throw new InvalidParameterException("The query record does not share the data base structure.");
+        }
+        synchronized (database) {
+            int n = database.size();
+            int capacity = Math.min(k, n);
+            if (heap.capacity() != capacity) {
+                heap = new TopKHeap(capacity);
+            }
+            heap.clear();
+            for (int i = 0; i < n; i++) {
+                Double distance = query.compare(database.get(i));
+                heap.offer(distance, i);
+            }
+            heap.sort();
+
+            List<QueryResult> results = new ArrayList<>(heap.size());
+            for (int i = 0; i < heap.size(); i++) {
+                int index = heap.getIndex(i);
+                results.add(new QueryResult(index, heap.getDistance(i), database.get(index).getLocator()));
+            }
+            return results;
+        }
+    }
+}